@@ -0,0 +1,321 @@
+package io.cherry.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Storage/ShardedStorage的异步接口，请求线程只提交任务，不加storage锁也不访问数据区
+// 两个有界线程池: 快速池先在锁内用Storage.isResident判断数据页是否在内存中，在则直接完成；
+// 不在(可能缺页读盘)则转给冷读池，冷读缺页时只占住冷读池的线程，快速池继续处理内存中的key
+// 冷读线程先在锁外用FileChannel把数据块读入页缓存，再加锁重新查找并读取，缺页读盘时不占storage(分片)的锁
+// 预读后到加锁前页可能又被换出或key被移动，此时仍在锁内缺页，只是概率很小
+// 队列满时返回的future以RejectedExecutionException失败，请求线程不会被阻塞
+// 代码最低要求JDK 17(如MappedByteBuffer.slice(int, int))，虚拟线程JDK 21才正式可用，所以用有界的平台线程池
+public class AsyncStorage implements AutoCloseable {
+	private final Storage[] shards;
+	private final ShardedStorage sharded;
+	private final ThreadPoolExecutor fastPool;
+	private final ThreadPoolExecutor coldPool;
+	private final AtomicLong fastNum = new AtomicLong();
+	private final AtomicLong coldNum = new AtomicLong();
+	private final AtomicLong rejectedNum = new AtomicLong();
+	// 预读用的只读文件通道，按数据文件缓存，close时关闭
+	private final ConcurrentHashMap<File, FileChannel> channels = new ConcurrentHashMap<File, FileChannel>();
+	private final ThreadLocal<ByteBuffer> scratch = new ThreadLocal<ByteBuffer>();
+	private volatile boolean closed;
+
+	// queueSize为每个池的队列长度
+	public AsyncStorage(Storage storage, int fastThreadNum,
+			int coldThreadNum, int queueSize) {
+		this(new Storage[] { storage }, null, fastThreadNum, coldThreadNum,
+				queueSize);
+	}
+
+	public AsyncStorage(ShardedStorage storage, int fastThreadNum,
+			int coldThreadNum, int queueSize) {
+		this(shardsOf(storage), storage, fastThreadNum, coldThreadNum,
+				queueSize);
+	}
+
+	private AsyncStorage(Storage[] shards, ShardedStorage sharded,
+			int fastThreadNum, int coldThreadNum, int queueSize) {
+		if (fastThreadNum <= 0 || coldThreadNum <= 0 || queueSize <= 0)
+			throw new IllegalArgumentException("argument err. fastThreadNum:"
+					+ fastThreadNum + ", coldThreadNum:" + coldThreadNum
+					+ ", queueSize:" + queueSize);
+
+		this.shards = shards;
+		this.sharded = sharded;
+		this.fastPool = newPool("async-storage-fast", fastThreadNum, queueSize);
+		this.coldPool = newPool("async-storage-cold", coldThreadNum, queueSize);
+	}
+
+	public CompletableFuture<byte[]> getAsync(final long key) {
+		final CompletableFuture<byte[]> future = new CompletableFuture<byte[]>();
+		final Storage shard = shardFor(key);
+		submit(this.fastPool, future, new Runnable() {
+			@Override
+			public void run() {
+				synchronized (shard) {
+					if (shard.isResident(key)) {
+						fastNum.incrementAndGet();
+						future.complete(shard.get(key));
+						return;
+					}
+				}
+				coldNum.incrementAndGet();
+				submit(coldPool, future, new Runnable() {
+					@Override
+					public void run() {
+						prefetch(shard, key);
+						synchronized (shard) {
+							future.complete(shard.get(key));
+						}
+					}
+				});
+			}
+		});
+		return future;
+	}
+
+	// 覆盖写的数据页不在内存中时同样转给冷读池
+	public CompletableFuture<Void> putAsync(final long key, final byte[] bytes) {
+		final CompletableFuture<Void> future = new CompletableFuture<Void>();
+		final Storage shard = shardFor(key);
+		submit(this.fastPool, future, new Runnable() {
+			@Override
+			public void run() {
+				synchronized (shard) {
+					if (shard.isResident(key)) {
+						fastNum.incrementAndGet();
+						put(shard, key, bytes, future);
+						return;
+					}
+				}
+				coldNum.incrementAndGet();
+				submit(coldPool, future, new Runnable() {
+					@Override
+					public void run() {
+						prefetch(shard, key);
+						synchronized (shard) {
+							put(shard, key, bytes, future);
+						}
+					}
+				});
+			}
+		});
+		return future;
+	}
+
+	// 返回值与keys一一对应，不存在的为null；内存中的key在快速池完成，其余一批交给冷读池
+	public CompletableFuture<byte[][]> multiGetAsync(final long[] keys) {
+		final CompletableFuture<byte[][]> future = new CompletableFuture<byte[][]>();
+		submit(this.fastPool, future, new Runnable() {
+			@Override
+			public void run() {
+				final byte[][] values = new byte[keys.length][];
+				final List<Integer> colds = new ArrayList<Integer>();
+				for (int i = 0; i < keys.length; i++) {
+					Storage shard = shardFor(keys[i]);
+					synchronized (shard) {
+						if (shard.isResident(keys[i]))
+							values[i] = shard.get(keys[i]);
+						else
+							colds.add(i);
+					}
+				}
+				fastNum.addAndGet(keys.length - colds.size());
+				if (colds.isEmpty()) {
+					future.complete(values);
+					return;
+				}
+
+				coldNum.addAndGet(colds.size());
+				submit(coldPool, future, new Runnable() {
+					@Override
+					public void run() {
+						for (int i : colds) {
+							Storage shard = shardFor(keys[i]);
+							prefetch(shard, keys[i]);
+							synchronized (shard) {
+								values[i] = shard.get(keys[i]);
+							}
+						}
+						future.complete(values);
+					}
+				});
+			}
+		});
+		return future;
+	}
+
+	public long getFastNum() {
+		return this.fastNum.get();
+	}
+
+	public long getColdNum() {
+		return this.coldNum.get();
+	}
+
+	public long getRejectedNum() {
+		return this.rejectedNum.get();
+	}
+
+	// 只关闭线程池和预读用的文件通道，storage由调用方关闭；已提交的任务会执行完
+	// 等待时被中断则不再等待，恢复中断标记后返回
+	@Override
+	public void close() {
+		this.closed = true;
+		shutdown(this.fastPool);
+		shutdown(this.coldPool);
+		for (FileChannel channel : this.channels.values()) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				System.out.println("close prefetch channel failed: " + e);
+			}
+		}
+		this.channels.clear();
+	}
+
+	@Override
+	public String toString() {
+		return "AsyncStorage fast=" + this.fastNum + ", cold=" + this.coldNum
+				+ ", rejected=" + this.rejectedNum + ", fastQueue="
+				+ this.fastPool.getQueue().size() + ", coldQueue="
+				+ this.coldPool.getQueue().size();
+	}
+
+	// 锁外把key的数据块读入页缓存，之后加锁读取时重新查找，key被删除或移动时只是预读无效
+	private void prefetch(Storage shard, long key) {
+		long position;
+		File file;
+		int len;
+		synchronized (shard) {
+			position = shard.getSlotPosition(key);
+			if (position < 0)
+				return;
+			file = shard.getDataFile((int) (position >>> 32));
+			len = shard.getSlotSize();
+		}
+		if (file == null || this.closed)
+			return;
+
+		ByteBuffer buffer = this.scratch.get();
+		if (buffer == null || buffer.capacity() < len) {
+			buffer = ByteBuffer.allocateDirect(len);
+			this.scratch.set(buffer);
+		}
+		buffer.clear().limit(len);
+		FileChannel channel = null;
+		try {
+			channel = channelOf(file);
+			long offset = position & 0xFFFFFFFFL;
+			while (buffer.hasRemaining()
+					&& channel.read(buffer, offset + buffer.position()) >= 0) {
+			}
+		} catch (ClosedChannelException e) {
+			// 线程被中断会关闭通道，丢弃后下次重新打开
+			if (channel != null)
+				this.channels.remove(file, channel);
+		} catch (IOException e) {
+			// 预读失败不影响之后加锁读取
+		}
+	}
+
+	private FileChannel channelOf(File file) throws IOException {
+		FileChannel channel = this.channels.get(file);
+		if (channel != null)
+			return channel;
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		FileChannel old = this.channels.putIfAbsent(file, channel);
+		if (old != null) {
+			channel.close();
+			return old;
+		}
+		return channel;
+	}
+
+	private static void shutdown(ThreadPoolExecutor pool) {
+		pool.shutdown();
+		try {
+			pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private Storage shardFor(long key) {
+		return this.sharded == null ? this.shards[0] : this.shards[this.sharded
+				.shardOf(key)];
+	}
+
+	private static void put(Storage shard, long key, byte[] bytes,
+			CompletableFuture<Void> future) {
+		try {
+			shard.put(key, bytes);
+			future.complete(null);
+		} catch (StorageException e) {
+			future.completeExceptionally(e);
+		}
+	}
+
+	// 任务抛出的运行时异常和提交被拒绝都转为future失败
+	private void submit(ThreadPoolExecutor pool,
+			final CompletableFuture<?> future, final Runnable task) {
+		try {
+			pool.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						task.run();
+					} catch (RuntimeException e) {
+						future.completeExceptionally(e);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			this.rejectedNum.incrementAndGet();
+			future.completeExceptionally(e);
+		}
+	}
+
+	private static Storage[] shardsOf(ShardedStorage storage) {
+		Storage[] shards = new Storage[storage.getShardNum()];
+		for (int i = 0; i < shards.length; i++) {
+			shards[i] = storage.getShard(i);
+		}
+		return shards;
+	}
+
+	private static ThreadPoolExecutor newPool(final String name,
+			int threadNum, int queueSize) {
+		return new ThreadPoolExecutor(threadNum, threadNum, 0,
+				TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(
+						queueSize), new ThreadFactory() {
+					private final AtomicInteger seq = new AtomicInteger();
+
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, name + "-"
+								+ seq.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					}
+				}, new ThreadPoolExecutor.AbortPolicy());
+	}
+}
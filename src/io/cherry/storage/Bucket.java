@@ -4,9 +4,17 @@ import java.nio.ByteBuffer;
 import java.nio.IntBuffer;
 import java.util.Random;
 
+// BUCKET_VERSION: 初始化时把所有bucket串成空闲链
+// BUCKET_VERSION_LAZY: 初始化时不写链接，另外用水位(存在下标0的链接里)记录分配过的最大下标，
+// 空闲链为空时从水位往上分配，创建时只写头部，未分配的部分不会被访问
+// BUCKET_VERSION_BITMAP: 链接区改存三级位图(每个bucket一位，上一级每位表示下一级的一个long已满)，
+// 总是分配下标最小的空闲bucket，数据集中在文件前部，减少驻留内存的页面；水位同样存在下标0的链接里
+// 位图从链接区的第4个字节开始，依次为第0、1、2级；创建时位图区须全为0(新文件)
 public class Bucket {
 	public static final int BUCKET_LINK_SIZE = 4;
 	public static final int BUCKET_VERSION = 0x3201;
+	public static final int BUCKET_VERSION_LAZY = 0x3202;
+	public static final int BUCKET_VERSION_BITMAP = 0x3203;
 	public static final int HEADER_SIZE = 20;
 
 	private static final int INDEX_USEDNUM = 2;
@@ -24,6 +32,12 @@ public class Bucket {
 	private int usedNum;
 	private int linkBegin;
 	private int linkEnd;
+	private int highWater; // BUCKET_VERSION时为bucketNum
+
+	// 位图，BUCKET_VERSION_BITMAP时使用
+	private boolean bitmap;
+	private int[] levelOffsets;
+	private int freeHint; // 第2级中可能有空闲的最小long下标
 
 	// 创建前先通过calSize方法预先计算大小,
 	// 需要保留一个bucket不用(下标为0的bucket)，每个bucket需要保留4个字节的指针用来标识使用情况
@@ -34,6 +48,13 @@ public class Bucket {
 
 	public Bucket(ByteBuffer buffer, int bufferSize, int bucketNum,
 			boolean isInit) throws StorageException {
+		this(buffer, bufferSize, bucketNum, isInit, BUCKET_VERSION_LAZY);
+	}
+
+	// version为初始化时使用的格式(BUCKET_VERSION_LAZY或BUCKET_VERSION_BITMAP)，已存在时以头部为准
+	// bucket太少放不下位图时用BUCKET_VERSION_LAZY
+	public Bucket(ByteBuffer buffer, int bufferSize, int bucketNum,
+			boolean isInit, int version) throws StorageException {
 		if (bucketNum <= 0 || bucketNum >= 0x7FFFFFFF) {
 			throw new IllegalArgumentException("bucketNum[" + bucketNum
 					+ "] not valid.");
@@ -53,12 +74,17 @@ public class Bucket {
 		this.linkBuffer = tmpBuffer.slice().asIntBuffer();
 
 		if (isInit) {
-			this.initialize();
+			this.initialize(version == BUCKET_VERSION_BITMAP
+					&& canUseBitmap(bucketNum));
 		} else {
 			this.check();
 		}
 	}
 
+	public int getVersion() {
+		return this.bucketVersion;
+	}
+
 	public boolean isEmpty() {
 		return this.usedNum == 0;
 	}
@@ -79,11 +105,36 @@ public class Bucket {
 		return this.bucketNum;
 	}
 
+	// 分配过的最大下标
+	public int getHighWater() {
+		return this.highWater;
+	}
+
 	// 注意分配的bucket从1开始计算
 	public int alloc() throws StorageException {
 		if (this.isFull())
 			throw new StorageException("Bucket alloc err: Bucket is full.");
 
+		if (this.bitmap) {
+			int pos = allocBit();
+			if (pos > this.highWater) {
+				this.highWater = pos;
+				this.linkBuffer.put(0, this.highWater);
+			}
+			this.usedNum = usedNum + 1;
+			this.headerBuffer.put(INDEX_USEDNUM, usedNum);
+			return pos;
+		}
+
+		if (this.linkBegin == 0 && this.highWater < this.bucketNum) {
+			int pos = ++this.highWater;
+			this.linkBuffer.put(pos, 0x80000000);
+			this.linkBuffer.put(0, this.highWater);
+			this.usedNum = usedNum + 1;
+			this.headerBuffer.put(INDEX_USEDNUM, usedNum);
+			return pos;
+		}
+
 		if (this.linkBegin == 0 || this.linkEnd == 0)
 			throw new StorageException("Bucket alloc err: linkBegin: "
 					+ linkBegin + ", linkEnd: " + linkEnd);
@@ -101,7 +152,7 @@ public class Bucket {
 			assert (this.linkEnd == pos);
 			this.linkEnd = 0;
 			this.headerBuffer.put(INDEX_LINK_END, linkEnd);
-			assert (this.isFull());
+			assert (this.isFull() || this.highWater < this.bucketNum);
 		}
 		assert (pos > 0);
 		return pos;
@@ -111,6 +162,10 @@ public class Bucket {
 		if (idx <= 0 || idx > this.bucketNum)
 			throw new IllegalArgumentException("idx[" + idx + "] not valid.");
 
+		if (this.bitmap)
+			return (this.buffer.getLong(this.levelOffsets[0] + (idx >>> 6)
+					* 8) & (1L << idx)) != 0;
+
 		int link = this.linkBuffer.get(idx);
 		if ((link & 0x80000000) == 0)
 			return false;
@@ -122,13 +177,21 @@ public class Bucket {
 		if (idx <= 0 || idx > this.bucketNum)
 			throw new IllegalArgumentException("idx[" + idx + "] not valid.");
 
+		if (this.bitmap) {
+			if (!freeBit(idx))
+				return false;
+			this.usedNum = this.usedNum - 1;
+			this.headerBuffer.put(INDEX_USEDNUM, this.usedNum);
+			return true;
+		}
+
 		int link = this.linkBuffer.get(idx);
 		if ((link & 0x80000000) == 0)
 			return false;
 
 		if (this.linkBegin == 0) {
 			assert (this.linkEnd == 0);
-			assert (this.usedNum == this.bucketNum);
+			assert (this.usedNum == this.highWater);
 			this.linkBuffer.put(idx, 0);
 			this.linkBegin = idx;
 			this.linkEnd = idx;
@@ -147,6 +210,118 @@ public class Bucket {
 		return true;
 	}
 
+	// 从第2级往下找第一个没满的long，取其中最低的0位
+	private int allocBit() {
+		int offset2 = this.levelOffsets[2];
+		while (this.buffer.getLong(offset2 + this.freeHint * 8) == -1L) {
+			this.freeHint++;
+		}
+
+		int w2 = this.freeHint;
+		long v2 = this.buffer.getLong(offset2 + w2 * 8);
+		int w1 = (w2 << 6) + Long.numberOfTrailingZeros(~v2);
+		int offset1 = this.levelOffsets[1] + w1 * 8;
+		long v1 = this.buffer.getLong(offset1);
+		int w0 = (w1 << 6) + Long.numberOfTrailingZeros(~v1);
+		int offset0 = this.levelOffsets[0] + w0 * 8;
+		long v0 = this.buffer.getLong(offset0);
+		int bit = Long.numberOfTrailingZeros(~v0);
+
+		v0 |= 1L << bit;
+		this.buffer.putLong(offset0, v0);
+		if (v0 == -1L) {
+			v1 |= 1L << w0;
+			this.buffer.putLong(offset1, v1);
+			if (v1 == -1L)
+				this.buffer.putLong(offset2 + w2 * 8, v2 | (1L << w1));
+		}
+		return (w0 << 6) + bit;
+	}
+
+	private boolean freeBit(int idx) {
+		int w0 = idx >>> 6;
+		int offset0 = this.levelOffsets[0] + w0 * 8;
+		long v0 = this.buffer.getLong(offset0);
+		if ((v0 & (1L << idx)) == 0)
+			return false;
+
+		this.buffer.putLong(offset0, v0 & ~(1L << idx));
+		if (v0 == -1L) {
+			int w1 = w0 >>> 6;
+			int offset1 = this.levelOffsets[1] + w1 * 8;
+			long v1 = this.buffer.getLong(offset1);
+			this.buffer.putLong(offset1, v1 & ~(1L << w0));
+			if (v1 == -1L) {
+				int offset2 = this.levelOffsets[2] + (w1 >>> 6) * 8;
+				this.buffer.putLong(offset2, this.buffer.getLong(offset2)
+						& ~(1L << w1));
+			}
+		}
+		if ((w0 >>> 12) < this.freeHint)
+			this.freeHint = w0 >>> 12;
+		return true;
+	}
+
+	// 各级位图的long数量
+	private static int[] levelSizes(int bucketNum) {
+		int n0 = (int) ((bucketNum + 1L + 63) >>> 6);
+		int n1 = (n0 + 63) >>> 6;
+		int n2 = (n1 + 63) >>> 6;
+		return new int[] { n0, n1, n2 };
+	}
+
+	// 各级位图在bucket缓冲区中的偏移
+	private static int[] levelOffsets(int bucketNum) {
+		int[] sizes = levelSizes(bucketNum);
+		int offset0 = HEADER_SIZE + BUCKET_LINK_SIZE;
+		int offset1 = offset0 + sizes[0] * 8;
+		return new int[] { offset0, offset1, offset1 + sizes[1] * 8 };
+	}
+
+	public static boolean canUseBitmap(int bucketNum) {
+		int[] sizes = levelSizes(bucketNum);
+		return BUCKET_LINK_SIZE + (sizes[0] + sizes[1] + sizes[2]) * 8L <= (bucketNum + 1L) * BUCKET_LINK_SIZE;
+	}
+
+	// 按使用位写各级位图，不存在的下标(0和bucketNum以上)视为已使用，返回使用数量
+	private static int writeBitmap(ByteBuffer buffer, int bucketNum,
+			long[] used) {
+		int[] sizes = levelSizes(bucketNum);
+		int[] offsets = levelOffsets(bucketNum);
+		int usedNum = 0;
+		long[] upper = new long[sizes[1]];
+		for (int w = 0; w < sizes[0]; w++) {
+			long v = used == null || w >= used.length ? 0 : used[w];
+			if (w == 0)
+				v |= 1L;
+			if (w == sizes[0] - 1 && ((bucketNum + 1) & 63) != 0)
+				v |= -1L << ((bucketNum + 1) & 63);
+			usedNum += Long.bitCount(v);
+			if (v == -1L)
+				upper[w >>> 6] |= 1L << w;
+			buffer.putLong(offsets[0] + w * 8, v);
+		}
+
+		// 上面两级，不存在的下一级long视为已满
+		for (int level = 1; level <= 2; level++) {
+			int num = sizes[level];
+			int lowerNum = sizes[level - 1];
+			long[] next = new long[(num + 63) >>> 6];
+			for (int w = 0; w < num; w++) {
+				long v = upper[w];
+				if (w == num - 1 && (lowerNum & 63) != 0)
+					v |= -1L << (lowerNum & 63);
+				if (v == -1L)
+					next[w >>> 6] |= 1L << w;
+				buffer.putLong(offsets[level] + w * 8, v);
+			}
+			upper = next;
+		}
+
+		// 去掉下标0和末尾不存在的bucket
+		return usedNum - 1 - (int) (sizes[0] * 64L - bucketNum - 1);
+	}
+
 	// don't use it
 	void setLink(int idx, int next) {
 		if (next == 0) {
@@ -160,10 +335,15 @@ public class Bucket {
 		this.linkBuffer.put(idx, 0x80000000);
 	}
 
+	// 调用方已把所有bucket串好，懒初始化的水位直接设到最高
 	public void setUsedAndLink(int usedNum, int linkBegin, int linkEnd) {
 		this.linkBegin = linkBegin;
 		this.linkEnd = linkEnd;
 		this.usedNum = usedNum;
+		if (this.bucketVersion == BUCKET_VERSION_LAZY) {
+			this.highWater = this.bucketNum;
+			this.linkBuffer.put(0, this.highWater);
+		}
 
 		this.headerBuffer.put(INDEX_LINK_BEGIN, linkBegin);
 		this.headerBuffer.put(INDEX_LINK_END, linkEnd);
@@ -175,34 +355,50 @@ public class Bucket {
 		StringBuilder strBu = new StringBuilder();
 		strBu.append("Bucket [").append("version=").append(bucketVersion)
 				.append(" , bucketNum=").append(bucketNum)
-				.append(" , usedNum=").append(usedNum).append(" , linkBegin=")
+				.append(" , usedNum=").append(usedNum)
+				.append(" , highWater=").append(highWater)
+				.append(" , linkBegin=")
 				.append(linkBegin).append(" , linkEnd=").append(linkEnd);
 		return strBu.toString();
 	}
 
-	private void initialize() throws StorageException {
+	private void initialize(boolean bitmap) throws StorageException {
 		if (this.headerBuffer.get(0) != 0)
 			throw new StorageException(
 					"Bucket Initialize failed: bucketVersion["
 							+ headerBuffer.get(0) + "] is not 0");
 
-		this.bucketVersion = BUCKET_VERSION;
+		if (bitmap) {
+			// 位图区为0，只写首尾的几个long
+			int[] sizes = levelSizes(this.bucketNum);
+			int[] offsets = levelOffsets(this.bucketNum);
+			for (int level = 0; level <= 2; level++) {
+				int num = level == 0 ? this.bucketNum + 1 : sizes[level - 1];
+				long v = (num & 63) != 0 ? -1L << (num & 63) : 0;
+				if (level == 0 && sizes[0] == 1)
+					v |= 1L;
+				else if (level == 0)
+					this.buffer.putLong(offsets[0], 1L);
+				this.buffer.putLong(offsets[level] + (sizes[level] - 1) * 8,
+						v);
+			}
+			this.bitmap = true;
+			this.levelOffsets = offsets;
+		}
+
+		// 懒初始化，只写头部和水位
+		this.bucketVersion = bitmap ? BUCKET_VERSION_BITMAP
+				: BUCKET_VERSION_LAZY;
 		this.usedNum = 0;
-		this.linkBegin = 1; // 0-保留
-		this.linkEnd = this.bucketNum;
+		this.linkBegin = 0;
+		this.linkEnd = 0;
+		this.highWater = 0;
 		this.headerBuffer.put(0, this.bucketVersion);
 		this.headerBuffer.put(1, this.bucketNum);
 		this.headerBuffer.put(2, this.usedNum);
 		this.headerBuffer.put(3, this.linkBegin);
 		this.headerBuffer.put(4, this.linkEnd);
-
-		for (int i = 1; i <= this.bucketNum; i++) {
-			if (i == this.bucketNum) {
-				this.linkBuffer.put(i, 0);
-			} else {
-				this.linkBuffer.put(i, i + 1);
-			}
-		}
+		this.linkBuffer.put(0, this.highWater);
 	}
 
 	private void check() throws StorageException {
@@ -212,10 +408,27 @@ public class Bucket {
 		this.linkBegin = this.headerBuffer.get(3);
 		this.linkEnd = this.headerBuffer.get(4);
 
-		if (this.bucketVersion != BUCKET_VERSION) {
+		if (this.bucketVersion != BUCKET_VERSION
+				&& this.bucketVersion != BUCKET_VERSION_LAZY
+				&& this.bucketVersion != BUCKET_VERSION_BITMAP) {
 			throw new StorageException("Bucket check failed: bucketVersion="
 					+ this.bucketVersion);
 		}
+		if (this.bucketVersion == BUCKET_VERSION_BITMAP) {
+			if (!canUseBitmap(bucketNum))
+				throw new StorageException(
+						"Bucket check failed: too small for bitmap, bucketNum="
+								+ bucketNum);
+			this.bitmap = true;
+			this.levelOffsets = levelOffsets(bucketNum);
+		}
+		this.highWater = this.bucketVersion != BUCKET_VERSION ? this.linkBuffer
+				.get(0) : bucketNum;
+		if (this.highWater < 0 || this.highWater > bucketNum
+				|| this.usedNum > this.highWater) {
+			throw new StorageException("Bucket check failed: highWater="
+					+ this.highWater + ", usedNum=" + this.usedNum);
+		}
 		if (this.bucketNum != bucketNum) {
 			throw new StorageException("Bucket check failed: bucketNum="
 					+ bucketNum + "!=" + this.bucketNum);
@@ -238,21 +451,224 @@ public class Bucket {
 
 	private void showCapacity() {
 		int realUsed = 0;
-		int idle = 0;
+		int idle = this.bucketNum - this.highWater;
 
-		for (int i = 1; i <= this.bucketNum; i++) {
-			int link = this.linkBuffer.get(i);
-			if ((link & 0x80000000) == 0) {
-				idle++;
-			} else {
+		// 水位以上的没有分配过，不去读，避免把整个链接数组读入内存
+		for (int i = 1; i <= this.highWater; i++) {
+			if (hasLink(i)) {
 				realUsed++;
+			} else {
+				idle++;
 			}
 		}
 
 		System.out.println("realUsed: " + realUsed + ", idle: " + idle);
 		System.out.println("usedNum=" + this.usedNum + ", bucketNum="
-				+ bucketNum + ", linkBegin=" + this.linkBegin + ", linkEnd="
-				+ this.linkEnd);
+				+ bucketNum + ", highWater=" + this.highWater + ", linkBegin="
+				+ this.linkBegin + ", linkEnd=" + this.linkEnd);
+	}
+
+	// 按期望的使用位(used，每个bucket一位)检查使用位、usedNum和空闲链，返回问题数量
+	static int fsck(ByteBuffer buffer, int bucketNum, long[] used, String name) {
+		IntBuffer header = buffer.asIntBuffer();
+		IntBuffer link = linkBuffer(buffer, bucketNum);
+		int problemNum = 0;
+		int version = header.get(0);
+		if ((version != BUCKET_VERSION && version != BUCKET_VERSION_LAZY
+				&& version != BUCKET_VERSION_BITMAP)
+				|| header.get(1) != bucketNum
+				|| (version == BUCKET_VERSION_BITMAP && !canUseBitmap(bucketNum))) {
+			System.out.println(name + ": header err. version=" + header.get(0)
+					+ ", bucketNum=" + header.get(1));
+			problemNum++;
+		}
+		if (version == BUCKET_VERSION_BITMAP && canUseBitmap(bucketNum))
+			return problemNum + fsckBitmap(buffer, bucketNum, used, name);
+
+		// 水位以上的bucket未分配过，不看其链接
+		int highWater = version == BUCKET_VERSION_LAZY ? link.get(0)
+				: bucketNum;
+		if (highWater < 0 || highWater > bucketNum) {
+			System.out.println(name + ": highWater err. " + highWater);
+			highWater = bucketNum;
+			problemNum++;
+		}
+		int usedNum = 0;
+		int mismatchNum = 0;
+		for (int i = 1; i <= bucketNum; i++) {
+			boolean expected = (used[i >>> 6] & (1L << i)) != 0;
+			if (expected)
+				usedNum++;
+			boolean isUsed = i <= highWater && (link.get(i) & 0x80000000) != 0;
+			if (isUsed != expected)
+				mismatchNum++;
+		}
+		if (mismatchNum > 0) {
+			System.out.println(name + ": " + mismatchNum
+					+ " used bits mismatch");
+			problemNum++;
+		}
+		if (header.get(INDEX_USEDNUM) != usedNum) {
+			System.out.println(name + ": usedNum=" + header.get(INDEX_USEDNUM)
+					+ ", expected " + usedNum);
+			problemNum++;
+		}
+
+		// 沿空闲链走，步数不超过水位下的空闲数，可发现环和断链
+		int idleNum = Math.max(0, highWater - usedNum);
+		int linkBegin = header.get(INDEX_LINK_BEGIN);
+		int linkEnd = header.get(INDEX_LINK_END);
+		int num = 0, last = 0;
+		int idx = linkBegin;
+		while (idx != 0 && num <= idleNum) {
+			if (idx < 0 || idx > highWater
+					|| (used[idx >>> 6] & (1L << idx)) != 0
+					|| (link.get(idx) & 0x80000000) != 0)
+				break;
+			last = idx;
+			num++;
+			idx = link.get(idx);
+		}
+		if (idx != 0 || num != idleNum || last != linkEnd) {
+			System.out.println(name + ": free link broken. linkBegin="
+					+ linkBegin + ", linkEnd=" + linkEnd + ", walked=" + num
+					+ ", idleNum=" + idleNum);
+			problemNum++;
+		}
+		return problemNum;
+	}
+
+	private static int fsckBitmap(ByteBuffer buffer, int bucketNum,
+			long[] used, String name) {
+		IntBuffer header = buffer.asIntBuffer();
+		int[] sizes = levelSizes(bucketNum);
+		int[] offsets = levelOffsets(bucketNum);
+		int problemNum = 0;
+		int usedNum = 0, maxUsed = 0;
+		int mismatchNum = 0;
+		long[] actual = new long[sizes[0]];
+		for (int i = 1; i <= bucketNum; i++) {
+			boolean expected = (used[i >>> 6] & (1L << i)) != 0;
+			if (expected) {
+				usedNum++;
+				maxUsed = i;
+			}
+			boolean isUsed = (buffer.getLong(offsets[0] + (i >>> 6) * 8)
+					& (1L << i)) != 0;
+			if (isUsed)
+				actual[i >>> 6] |= 1L << i;
+			if (isUsed != expected)
+				mismatchNum++;
+		}
+		if (mismatchNum > 0) {
+			System.out.println(name + ": " + mismatchNum
+					+ " used bits mismatch");
+			problemNum++;
+		}
+		if (header.get(INDEX_USEDNUM) != usedNum) {
+			System.out.println(name + ": usedNum=" + header.get(INDEX_USEDNUM)
+					+ ", expected " + usedNum);
+			problemNum++;
+		}
+		int highWater = buffer.getInt(HEADER_SIZE);
+		if (highWater < maxUsed || highWater > bucketNum) {
+			System.out.println(name + ": highWater err. " + highWater
+					+ ", max used " + maxUsed);
+			problemNum++;
+		}
+
+		// 按实际的第0级重新算一遍，对比保留位和上两级
+		ByteBuffer expectedBuffer = ByteBuffer.allocate(offsets[2] + sizes[2]
+				* 8);
+		writeBitmap(expectedBuffer, bucketNum, actual);
+		int levelNum = 0;
+		for (int level = 0; level <= 2; level++) {
+			for (int w = 0; w < sizes[level]; w++) {
+				int offset = offsets[level] + w * 8;
+				if (buffer.getLong(offset) != expectedBuffer.getLong(offset)) {
+					levelNum++;
+					break;
+				}
+			}
+		}
+		if (levelNum > 0) {
+			System.out.println(name + ": " + levelNum + " bitmap levels err");
+			problemNum++;
+		}
+		return problemNum;
+	}
+
+	// 把链表格式的bucket就地转换为位图格式，已是位图或放不下位图时不变，返回是否转换
+	static boolean convertToBitmap(ByteBuffer buffer, int bucketNum) {
+		IntBuffer header = buffer.asIntBuffer();
+		int version = header.get(0);
+		if (version == BUCKET_VERSION_BITMAP || !canUseBitmap(bucketNum))
+			return false;
+
+		IntBuffer link = linkBuffer(buffer, bucketNum);
+		int highWater = version == BUCKET_VERSION_LAZY ? link.get(0)
+				: bucketNum;
+		long[] used = new long[(bucketNum >>> 6) + 1];
+		for (int i = 1; i <= highWater; i++) {
+			if ((link.get(i) & 0x80000000) != 0)
+				used[i >>> 6] |= 1L << i;
+		}
+		header.put(0, BUCKET_VERSION_BITMAP);
+		rebuild(buffer, bucketNum, used);
+		return true;
+	}
+
+	// 按使用位重写头部和链接，存为懒初始化格式，水位取使用中的最大下标
+	// 水位下的空闲bucket按下标从小到大串起来，水位以上的不写
+	// 原来是位图格式的仍写成位图
+	static void rebuild(ByteBuffer buffer, int bucketNum, long[] used) {
+		IntBuffer header = buffer.asIntBuffer();
+		IntBuffer link = linkBuffer(buffer, bucketNum);
+		int highWater = 0;
+		for (int w = Math.min(used.length - 1, bucketNum >>> 6); w >= 0; w--) {
+			if (used[w] != 0) {
+				highWater = Math.min(bucketNum, (w << 6) + 63
+						- Long.numberOfLeadingZeros(used[w]));
+				break;
+			}
+		}
+
+		if (header.get(0) == BUCKET_VERSION_BITMAP && canUseBitmap(bucketNum)) {
+			int usedNum = writeBitmap(buffer, bucketNum, used);
+			link.put(0, highWater);
+			header.put(1, bucketNum);
+			header.put(INDEX_USEDNUM, usedNum);
+			header.put(INDEX_LINK_BEGIN, 0);
+			header.put(INDEX_LINK_END, 0);
+			return;
+		}
+
+		int usedNum = 0;
+		int next = 0, linkEnd = 0;
+		for (int i = highWater; i > 0; i--) {
+			if ((used[i >>> 6] & (1L << i)) != 0) {
+				link.put(i, 0x80000000);
+				usedNum++;
+			} else {
+				if (next == 0)
+					linkEnd = i;
+				link.put(i, next);
+				next = i;
+			}
+		}
+		link.put(0, highWater);
+		header.put(0, BUCKET_VERSION_LAZY);
+		header.put(1, bucketNum);
+		header.put(INDEX_USEDNUM, usedNum);
+		header.put(INDEX_LINK_BEGIN, next);
+		header.put(INDEX_LINK_END, linkEnd);
+	}
+
+	private static IntBuffer linkBuffer(ByteBuffer buffer, int bucketNum) {
+		ByteBuffer tmpBuffer = buffer.duplicate();
+		tmpBuffer.position(HEADER_SIZE);
+		tmpBuffer.limit(HEADER_SIZE + (bucketNum + 1) * BUCKET_LINK_SIZE);
+		return tmpBuffer.slice().asIntBuffer();
 	}
 
 	public static void main(String[] args) throws StorageException {
@@ -0,0 +1,177 @@
+package io.cherry.storage;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// 支持任意byte[]/String作为key，基于long key的Storage实现
+// 索引中存key的64位hash(即指纹)，完整key存在数据块里，hash相同时才比较数据块中的key
+// value部分格式: [short keyLen][key][value]
+// 不同key的hash相同时(概率约2^-64)，依次换用下一个探测位置的hash
+// 删除时把同一探测链最后一个元素移到空位，保证探测链中间没有空洞
+// 与Storage一样非线程安全，多线程访问时须在storage对象上加锁
+public class BytesKeyStorage {
+	public static final int MAX_KEY_SIZE = 0xFFFF;
+	private static final int MAX_PROBE = 64;
+
+	private final Storage storage;
+
+	public BytesKeyStorage(Storage storage) {
+		this.storage = storage;
+	}
+
+	public Storage getStorage() {
+		return this.storage;
+	}
+
+	public boolean contains(byte[] key) {
+		return find(key, hashKey(key)) >= 0;
+	}
+
+	public byte[] get(byte[] key) {
+		ByteBuffer bb = getByteBuffer(key);
+		if (bb == null)
+			return null;
+
+		byte[] bytes = new byte[bb.remaining()];
+		bb.get(bytes);
+		return bytes;
+	}
+
+	public byte[] get(String key) {
+		return get(key.getBytes(StandardCharsets.UTF_8));
+	}
+
+	// 返回的ByteBuffer直接指向数据区，只包含value部分
+	public ByteBuffer getByteBuffer(byte[] key) {
+		long h0 = hashKey(key);
+		for (int i = 0; i < MAX_PROBE; i++) {
+			ByteBuffer bb = this.storage.getByteBuffer(probeKey(h0, i));
+			if (bb == null)
+				return null;
+			if (keyEquals(bb, key)) {
+				bb.position(2 + key.length);
+				return bb.slice();
+			}
+		}
+		return null;
+	}
+
+	public void put(byte[] key, byte[] value) throws StorageException {
+		checkKey(key);
+		long h0 = hashKey(key);
+		int i = find(key, h0);
+		if (i < 0)
+			i = -i - 1;
+		if (i >= MAX_PROBE)
+			throw new StorageException(
+					"BytesKeyStorage put failed: too many hash collisions");
+
+		this.storage.put(probeKey(h0, i), encode(key, value));
+	}
+
+	public void put(String key, byte[] value) throws StorageException {
+		put(key.getBytes(StandardCharsets.UTF_8), value);
+	}
+
+	public void free(byte[] key) throws StorageException {
+		long h0 = hashKey(key);
+		int i = find(key, h0);
+		if (i < 0)
+			return;
+
+		// 找到探测链上最后一个同hash的元素，移到被删除的位置
+		int last = i;
+		for (int j = i + 1; j < MAX_PROBE; j++) {
+			ByteBuffer bb = this.storage.getByteBuffer(probeKey(h0, j));
+			if (bb == null)
+				break;
+			if (hashKey(bb) == h0)
+				last = j;
+		}
+
+		if (last == i) {
+			this.storage.free(probeKey(h0, i));
+		} else {
+			this.storage.put(probeKey(h0, i),
+					this.storage.get(probeKey(h0, last)));
+			this.storage.free(probeKey(h0, last));
+		}
+	}
+
+	public void free(String key) throws StorageException {
+		free(key.getBytes(StandardCharsets.UTF_8));
+	}
+
+	public int getUsedNum() {
+		return this.storage.getUsedNum();
+	}
+
+	public int size() {
+		return this.storage.size();
+	}
+
+	@Override
+	public String toString() {
+		return "BytesKeyStorage " + this.storage.toString();
+	}
+
+	// 找到返回探测序号，否则返回-(第一个空位的序号+1)
+	private int find(byte[] key, long h0) {
+		int i = 0;
+		for (; i < MAX_PROBE; i++) {
+			ByteBuffer bb = this.storage.getByteBuffer(probeKey(h0, i));
+			if (bb == null)
+				return -i - 1;
+			if (keyEquals(bb, key))
+				return i;
+		}
+		return -i - 1;
+	}
+
+	private static long hashKey(byte[] key) {
+		return Utils.hash64(key, 0, key.length);
+	}
+
+	// 数据块中保存的key的hash
+	private static long hashKey(ByteBuffer bb) {
+		int keyLen = bb.getShort(0) & 0xFFFF;
+		byte[] key = new byte[keyLen];
+		ByteBuffer tmpBuffer = bb.duplicate();
+		tmpBuffer.position(2);
+		tmpBuffer.get(key);
+		return hashKey(key);
+	}
+
+	// Index只支持正数key
+	private static long probeKey(long h0, int i) {
+		long h = i == 0 ? h0 : Utils.mix64(h0 + i * 0x9E3779B97F4A7C15L);
+		h &= Long.MAX_VALUE;
+		return h == 0 ? 1 : h;
+	}
+
+	private static boolean keyEquals(ByteBuffer bb, byte[] key) {
+		if (bb.remaining() < 2 + key.length
+				|| (bb.getShort(0) & 0xFFFF) != key.length)
+			return false;
+
+		ByteBuffer tmpBuffer = bb.duplicate();
+		tmpBuffer.position(2);
+		tmpBuffer.limit(2 + key.length);
+		return tmpBuffer.equals(ByteBuffer.wrap(key));
+	}
+
+	private static void checkKey(byte[] key) {
+		if (key == null || key.length == 0 || key.length > MAX_KEY_SIZE)
+			throw new IllegalArgumentException("key length must in [1, "
+					+ MAX_KEY_SIZE + "]");
+	}
+
+	private static byte[] encode(byte[] key, byte[] value) {
+		byte[] bytes = new byte[2 + key.length + value.length];
+		bytes[0] = (byte) (key.length >>> 8);
+		bytes[1] = (byte) key.length;
+		System.arraycopy(key, 0, bytes, 2, key.length);
+		System.arraycopy(value, 0, bytes, 2 + key.length, value.length);
+		return bytes;
+	}
+}
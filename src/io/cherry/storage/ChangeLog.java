@@ -0,0 +1,213 @@
+package io.cherry.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+// 变更日志，按顺序记录put/free事件，供同机其他进程中的从库追赶
+// 文件格式: header(64字节) + 环形数据区，写满后覆盖最旧的记录
+// 单写多读: 写入者须持有对应Storage的锁，读取者见ChangeLogReader
+public class ChangeLog implements AutoCloseable {
+	public static final int CHANGELOG_VERSION = 0x3401;
+	public static final int HEADER_SIZE = 64;
+	// recLen + type + seq + key + valueLen
+	public static final int RECORD_HEADER_SIZE = 28;
+	public static final int TYPE_PUT = 1;
+	public static final int TYPE_FREE = 2;
+
+	// 环形区尾部放不下一条记录时写入填充标记，读取者跳到环形区开头
+	static final int PADDING = -1;
+
+	static final int INDEX_VERSION = 0;
+	static final int INDEX_CAPACITY = 4;
+	static final int INDEX_WRITE_POS = 8;
+	static final int INDEX_LAST_SEQ = 16;
+	static final int INDEX_RESERVE_POS = 24;
+
+	// 写记录前先发布reservePos(之后的写入可能覆盖到的位置)，写完再用release发布writePos
+	// 读取者用acquire读writePos保证看到完整记录，拷贝后再读reservePos判断是否被覆盖
+	private static final VarHandle LONG_HANDLE = MethodHandles
+			.byteBufferViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+	private MmapFile file;
+	private ByteBuffer buffer;
+	private ByteBuffer dataBuffer;
+	private int capacity;
+	private long writePos; // 绝对位置，只增不减
+	private long lastSeq;
+	private boolean closed;
+
+	// fileName不要加后缀，会自动增加clog后缀
+	// capacity为环形区大小，须为8的倍数，重新打开时须一致
+	public ChangeLog(String fileName, int capacity) throws StorageException,
+			IOException {
+		if (capacity <= 0 || capacity % 8 != 0
+				|| capacity > Integer.MAX_VALUE - HEADER_SIZE)
+			throw new IllegalArgumentException("argument err. capacity:"
+					+ capacity);
+
+		this.capacity = capacity;
+		File f = new File(fileName + ".clog");
+		boolean needInit = !f.exists();
+		this.file = new MmapFile(f, HEADER_SIZE + capacity);
+		this.buffer = this.file.getBuffer();
+		ByteBuffer tmpBuffer = this.buffer.duplicate();
+		tmpBuffer.position(HEADER_SIZE);
+		this.dataBuffer = tmpBuffer.slice();
+
+		try {
+			if (needInit)
+				this.initialize();
+			else
+				this.check();
+		} catch (StorageException e) {
+			this.file.close();
+			throw e;
+		}
+	}
+
+	public long getWritePos() {
+		return this.writePos;
+	}
+
+	public long getLastSeq() {
+		return this.lastSeq;
+	}
+
+	public int getCapacity() {
+		return this.capacity;
+	}
+
+	// 能否记录长度为valueLen的value，单条记录不能超过环形区的一半
+	public boolean canHold(int valueLen) {
+		return calRecordSize(valueLen) <= this.capacity / 2;
+	}
+
+	public void logPut(long key, byte[] bytes, int len) throws StorageException {
+		append(TYPE_PUT, key, ByteBuffer.wrap(bytes, 0, len));
+	}
+
+	// 记录value的[position, limit)部分
+	public void logPut(long key, ByteBuffer value) throws StorageException {
+		append(TYPE_PUT, key, value.duplicate());
+	}
+
+	public void logFree(long key) throws StorageException {
+		append(TYPE_FREE, key, null);
+	}
+
+	public void forceWrite() {
+		checkOpen();
+		this.file.forceWrite();
+	}
+
+	// 刷盘并解除映射，之后不能再写入，须先从Storage上摘下(setChangeLog(null))或关闭Storage
+	@Override
+	public void close() {
+		if (this.closed)
+			return;
+
+		this.closed = true;
+		this.file.forceWrite();
+		this.file.close();
+		this.buffer = null;
+		this.dataBuffer = null;
+	}
+
+	@Override
+	public String toString() {
+		return "ChangeLog [version=" + CHANGELOG_VERSION + " ,capacity="
+				+ this.capacity + " ,writePos=" + this.writePos + " ,lastSeq="
+				+ this.lastSeq + "]";
+	}
+
+	static int calRecordSize(int valueLen) {
+		return (RECORD_HEADER_SIZE + valueLen + 7) & ~7;
+	}
+
+	static long getWritePosAcquire(ByteBuffer buffer) {
+		return (long) LONG_HANDLE.getAcquire(buffer, INDEX_WRITE_POS);
+	}
+
+	// 读取者拷贝完数据后调用
+	static long getReservePosAfterRead(ByteBuffer buffer) {
+		VarHandle.loadLoadFence();
+		return (long) LONG_HANDLE.getOpaque(buffer, INDEX_RESERVE_POS);
+	}
+
+	private void append(int type, long key, ByteBuffer value)
+			throws StorageException {
+		checkOpen();
+		int len = value == null ? 0 : value.remaining();
+		int recLen = calRecordSize(len);
+		if (!canHold(len))
+			throw new StorageException("ChangeLog append failed: record "
+					+ recLen + " too big for capacity " + this.capacity);
+
+		int offset = (int) (this.writePos % this.capacity);
+		int padding = offset + recLen > this.capacity ? this.capacity
+				- offset : 0;
+		LONG_HANDLE.setOpaque(this.buffer, INDEX_RESERVE_POS, this.writePos
+				+ padding + recLen);
+		VarHandle.storeStoreFence();
+		if (padding > 0) {
+			this.dataBuffer.putInt(offset, PADDING);
+			this.writePos += this.capacity - offset;
+			offset = 0;
+		}
+
+		++this.lastSeq;
+		this.dataBuffer.putInt(offset, recLen);
+		this.dataBuffer.putInt(offset + 4, type);
+		this.dataBuffer.putLong(offset + 8, this.lastSeq);
+		this.dataBuffer.putLong(offset + 16, key);
+		this.dataBuffer.putInt(offset + 24, len);
+		if (len > 0) {
+			ByteBuffer tmpBuffer = this.dataBuffer.duplicate();
+			tmpBuffer.position(offset + RECORD_HEADER_SIZE);
+			tmpBuffer.put(value);
+		}
+
+		this.writePos += recLen;
+		this.buffer.putLong(INDEX_LAST_SEQ, this.lastSeq);
+		LONG_HANDLE.setRelease(this.buffer, INDEX_WRITE_POS, this.writePos);
+	}
+
+	private void checkOpen() {
+		if (this.closed)
+			throw new IllegalStateException("change log closed");
+	}
+
+	private void initialize() throws StorageException {
+		if (this.buffer.getInt(INDEX_VERSION) != 0)
+			throw new StorageException(
+					"ChangeLog initialize failed: version must be 0");
+
+		this.writePos = 0;
+		this.lastSeq = 0;
+		this.buffer.putInt(INDEX_CAPACITY, this.capacity);
+		this.buffer.putLong(INDEX_WRITE_POS, this.writePos);
+		this.buffer.putLong(INDEX_RESERVE_POS, this.writePos);
+		this.buffer.putLong(INDEX_LAST_SEQ, this.lastSeq);
+		this.buffer.putInt(INDEX_VERSION, CHANGELOG_VERSION);
+	}
+
+	private void check() throws StorageException {
+		int version = this.buffer.getInt(INDEX_VERSION);
+		int capacity = this.buffer.getInt(INDEX_CAPACITY);
+		if (version != CHANGELOG_VERSION)
+			throw new StorageException("ChangeLog check failed: version="
+					+ version);
+		if (capacity != this.capacity)
+			throw new StorageException("ChangeLog check failed: capacity="
+					+ capacity + "!=" + this.capacity);
+
+		this.writePos = this.buffer.getLong(INDEX_WRITE_POS);
+		this.lastSeq = this.buffer.getLong(INDEX_LAST_SEQ);
+		// 上次写到一半的记录作废
+		this.buffer.putLong(INDEX_RESERVE_POS, this.writePos);
+	}
+}
@@ -0,0 +1,126 @@
+package io.cherry.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+// 从库: 追赶ChangeLog并批量应用到本地Storage
+// 每批应用完后把游标(位置+序号)写入cursor文件，重启后从游标处继续
+// put/free重放是幂等的，游标落后于实际应用进度时重复应用没有问题
+public class ChangeLogFollower implements AutoCloseable {
+	private ChangeLogReader reader;
+	private Storage storage;
+	private FileChannel cursorChannel;
+	private ByteBuffer cursorBuffer;
+	private long appliedNum;
+	private ChangeLogReader.Handler handler;
+
+	// cursorFileName不存在时从ChangeLog开头开始，须保证从库此前为空或与开头一致
+	public ChangeLogFollower(String logFileName, Storage storage,
+			String cursorFileName) throws StorageException, IOException {
+		this.storage = storage;
+		File f = new File(cursorFileName);
+		boolean exists = f.exists() && f.length() >= 16;
+		RandomAccessFile raf = new RandomAccessFile(f, "rw");
+		this.cursorChannel = raf.getChannel();
+		this.cursorBuffer = ByteBuffer.allocate(16);
+
+		long cursor = 0;
+		if (exists) {
+			this.cursorChannel.read(this.cursorBuffer, 0);
+			cursor = this.cursorBuffer.getLong(0);
+		}
+		this.reader = new ChangeLogReader(logFileName, cursor);
+
+		final Storage _storage = storage;
+		this.handler = new ChangeLogReader.Handler() {
+			private byte[] bytes = new byte[0];
+
+			@Override
+			public void onChange(long seq, int type, long key, ByteBuffer value)
+					throws StorageException {
+				if (type == ChangeLog.TYPE_FREE) {
+					_storage.free(key);
+					return;
+				}
+
+				if (bytes.length != value.remaining())
+					bytes = new byte[value.remaining()];
+				value.get(bytes);
+				_storage.put(key, bytes);
+			}
+		};
+	}
+
+	public long getCursor() {
+		return this.reader.getCursor();
+	}
+
+	public long getLastSeq() {
+		return this.reader.getLastSeq();
+	}
+
+	public long getAppliedNum() {
+		return this.appliedNum;
+	}
+
+	// 应用一批变更，返回条数，没有新变更返回0
+	public int apply(int batchNum) throws StorageException, IOException {
+		int num;
+		synchronized (this.storage) {
+			num = this.reader.poll(this.handler, batchNum);
+		}
+		if (num > 0) {
+			this.appliedNum += num;
+			this.cursorBuffer.clear();
+			this.cursorBuffer.putLong(0, this.reader.getCursor());
+			this.cursorBuffer.putLong(8, this.reader.getLastSeq());
+			this.cursorChannel.write(this.cursorBuffer, 0);
+		}
+		return num;
+	}
+
+	// 只关闭游标文件和ChangeLogReader，storage由调用方关闭
+	@Override
+	public void close() throws IOException {
+		this.reader.close();
+		this.cursorChannel.close();
+	}
+
+	// 从库进程: ChangeLogFollower logFile storageFile dataNum dataSize cursorFile
+	public static void main(String[] args) throws StorageException,
+			IOException, InterruptedException {
+		if (args.length < 5) {
+			System.out
+					.println("usage: ChangeLogFollower logFile storageFile dataNum dataSize cursorFile");
+			return;
+		}
+
+		Storage storage = new Storage(args[1], Integer.parseInt(args[2]),
+				Integer.parseInt(args[3]));
+		ChangeLogFollower follower = new ChangeLogFollower(args[0], storage,
+				args[4]);
+		System.out.println("follow from cursor:" + follower.getCursor());
+
+		long lastPrintTime = System.currentTimeMillis();
+		long lastNum = 0;
+		for (;;) {
+			int num = follower.apply(4096);
+			if (num == 0)
+				Thread.sleep(1);
+
+			long now = System.currentTimeMillis();
+			if (now - lastPrintTime >= 1000) {
+				System.out.println("applied:" + follower.getAppliedNum()
+						+ ", rate:"
+						+ ((follower.getAppliedNum() - lastNum) * 1000 / (now - lastPrintTime))
+						+ "/s, seq:" + follower.getLastSeq() + ", used:"
+						+ storage.getUsedNum());
+				lastPrintTime = now;
+				lastNum = follower.getAppliedNum();
+			}
+		}
+	}
+}
@@ -0,0 +1,175 @@
+package io.cherry.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// 读取ChangeLog，可与写入者不在同一进程，无锁
+// 先把一批记录拷贝出来，再确认拷贝期间没有被写入者覆盖，最后才交给handler
+// 落后超过一个环形区的长度时抛出异常，此时只能重新全量同步
+public class ChangeLogReader implements AutoCloseable {
+	public interface Handler {
+		// value为null表示free
+		void onChange(long seq, int type, long key, ByteBuffer value)
+				throws StorageException;
+	}
+
+	private MmapFile file;
+	private ByteBuffer buffer;
+	private ByteBuffer dataBuffer;
+	private int capacity;
+	private long cursor;
+	private long lastSeq;
+	private ByteBuffer batchBuffer;
+	private boolean closed;
+
+	// cursor为开始读取的绝对位置，新从库全量同步前先记下ChangeLog.getWritePos()
+	public ChangeLogReader(String fileName, long cursor)
+			throws StorageException, IOException {
+		File f = new File(fileName + ".clog");
+		if (!f.exists())
+			throw new StorageException(fileName + ".clog not exists.");
+		if (cursor < 0)
+			throw new IllegalArgumentException("argument err. cursor:"
+					+ cursor);
+
+		this.file = new MmapFile(f, (int) f.length());
+		this.buffer = this.file.getBuffer();
+		int version = this.buffer.getInt(ChangeLog.INDEX_VERSION);
+		this.capacity = this.buffer.getInt(ChangeLog.INDEX_CAPACITY);
+		if (version != ChangeLog.CHANGELOG_VERSION) {
+			this.file.close();
+			throw new StorageException("ChangeLogReader check failed: version="
+					+ version);
+		}
+		if (this.capacity + ChangeLog.HEADER_SIZE != this.file.getTotalSize()) {
+			this.file.close();
+			throw new StorageException(
+					"ChangeLogReader check failed: capacity=" + this.capacity);
+		}
+
+		ByteBuffer tmpBuffer = this.buffer.duplicate();
+		tmpBuffer.position(ChangeLog.HEADER_SIZE);
+		this.dataBuffer = tmpBuffer.slice();
+		this.cursor = cursor;
+		this.batchBuffer = ByteBuffer.allocate(64 * 1024);
+	}
+
+	public long getCursor() {
+		return this.cursor;
+	}
+
+	// 最后一条已交给handler的记录的序号
+	public long getLastSeq() {
+		return this.lastSeq;
+	}
+
+	public long getWritePos() {
+		checkOpen();
+		return ChangeLog.getWritePosAcquire(this.buffer);
+	}
+
+	// 读取最多maxNum条记录，返回处理的条数，没有新记录返回0
+	public int poll(Handler handler, int maxNum) throws StorageException {
+		checkOpen();
+		long writePos = ChangeLog.getWritePosAcquire(this.buffer);
+		checkOverrun(writePos);
+		if (writePos == this.cursor)
+			return 0;
+
+		// 找出本批次的结束位置
+		long end = this.cursor;
+		int num = 0;
+		while (end < writePos && num < maxNum) {
+			int offset = (int) (end % this.capacity);
+			int recLen = this.dataBuffer.getInt(offset);
+			if (recLen == ChangeLog.PADDING) {
+				end += this.capacity - offset;
+				continue;
+			}
+			if (recLen < ChangeLog.RECORD_HEADER_SIZE
+					|| offset + recLen > this.capacity) {
+				checkOverrun(ChangeLog.getReservePosAfterRead(this.buffer));
+				throw new StorageException("ChangeLogReader failed: recLen="
+						+ recLen + " at " + end);
+			}
+			end += recLen;
+			num++;
+		}
+
+		// 拷贝后再检查一次，确认拷贝的内容没有被覆盖
+		int batchSize = (int) (end - this.cursor);
+		if (this.batchBuffer.capacity() < batchSize)
+			this.batchBuffer = ByteBuffer.allocate(Math.max(batchSize,
+					this.batchBuffer.capacity() * 2));
+		this.batchBuffer.clear();
+		long pos = this.cursor;
+		while (pos < end) {
+			int offset = (int) (pos % this.capacity);
+			int len = (int) Math.min(end - pos, this.capacity - offset);
+			ByteBuffer tmpBuffer = this.dataBuffer.duplicate();
+			tmpBuffer.position(offset);
+			tmpBuffer.limit(offset + len);
+			this.batchBuffer.put(tmpBuffer);
+			pos += len;
+		}
+		checkOverrun(ChangeLog.getReservePosAfterRead(this.buffer));
+		this.batchBuffer.flip();
+
+		pos = this.cursor;
+		while (this.batchBuffer.hasRemaining()) {
+			int start = this.batchBuffer.position();
+			int recLen = this.batchBuffer.getInt(start);
+			if (recLen == ChangeLog.PADDING) {
+				int skip = this.capacity - (int) (pos % this.capacity);
+				this.batchBuffer.position(start + skip);
+				pos += skip;
+				continue;
+			}
+
+			int type = this.batchBuffer.getInt(start + 4);
+			long seq = this.batchBuffer.getLong(start + 8);
+			long key = this.batchBuffer.getLong(start + 16);
+			int valueLen = this.batchBuffer.getInt(start + 24);
+			ByteBuffer value = null;
+			if (type == ChangeLog.TYPE_PUT) {
+				ByteBuffer tmpBuffer = this.batchBuffer.duplicate();
+				tmpBuffer.position(start + ChangeLog.RECORD_HEADER_SIZE);
+				tmpBuffer.limit(start + ChangeLog.RECORD_HEADER_SIZE
+						+ valueLen);
+				value = tmpBuffer.slice();
+			}
+			handler.onChange(seq, type, key, value);
+			this.batchBuffer.position(start + recLen);
+			pos += recLen;
+			this.lastSeq = seq;
+			this.cursor = pos;
+		}
+		this.cursor = end;
+		return num;
+	}
+
+	// 解除映射，之后不能再读取
+	@Override
+	public void close() {
+		if (this.closed)
+			return;
+
+		this.closed = true;
+		this.file.close();
+		this.buffer = null;
+		this.dataBuffer = null;
+	}
+
+	private void checkOpen() {
+		if (this.closed)
+			throw new IllegalStateException("change log reader closed");
+	}
+
+	private void checkOverrun(long pos) throws StorageException {
+		if (pos - this.cursor > this.capacity)
+			throw new StorageException("ChangeLogReader overrun: cursor="
+					+ this.cursor + ", writePos=" + pos + ", capacity="
+					+ this.capacity);
+	}
+}
@@ -0,0 +1,69 @@
+package io.cherry.storage;
+
+// 后台迁移冷数据的线程，每隔intervalMs在storage锁内调用一次migrateCold
+// 每次最多检查batchScan个数据块，控制单次持锁时间
+public class ColdMigrator implements Runnable {
+	private final Storage storage;
+	private final int olderThanSec;
+	private final int batchScan;
+	private final long intervalMs;
+	private volatile boolean running;
+	private volatile long migratedNum;
+	private Thread thread;
+
+	public ColdMigrator(Storage storage, int olderThanSec, int batchScan,
+			long intervalMs) {
+		if (storage.getColdTier() == null)
+			throw new IllegalArgumentException("argument err. cold tier not set");
+		if (olderThanSec < 0 || batchScan <= 0 || intervalMs < 0)
+			throw new IllegalArgumentException("argument err. olderThanSec:"
+					+ olderThanSec + ", batchScan:" + batchScan
+					+ ", intervalMs:" + intervalMs);
+
+		this.storage = storage;
+		this.olderThanSec = olderThanSec;
+		this.batchScan = batchScan;
+		this.intervalMs = intervalMs;
+	}
+
+	public void start() {
+		this.running = true;
+		this.thread = new Thread(this, "cold-migrator");
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	public void stop() throws InterruptedException {
+		this.running = false;
+		this.thread.interrupt();
+		this.thread.join();
+	}
+
+	public long getMigratedNum() {
+		return this.migratedNum;
+	}
+
+	@Override
+	public void run() {
+		while (this.running) {
+			try {
+				int num;
+				synchronized (this.storage) {
+					num = this.storage.migrateCold(this.olderThanSec,
+							this.batchScan);
+				}
+				this.migratedNum += num;
+				Thread.sleep(this.intervalMs);
+			} catch (StorageException e) {
+				System.out.println("migrate cold failed: " + e.getMessage());
+				try {
+					Thread.sleep(Math.max(1000, this.intervalMs));
+				} catch (InterruptedException ie) {
+					return;
+				}
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+}
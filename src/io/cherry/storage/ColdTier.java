@@ -0,0 +1,240 @@
+package io.cherry.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// 冷数据层: 从Storage迁出的长时间未访问的数据，压缩后追加写到冷数据文件
+// fileName.cidx: 索引，key->记录号，复用Index
+// fileName.coff: 记录号->[long 文件偏移][int 压缩长度][int 原长度]
+// fileName.cold: 只追加，每条记录[long key][int 原长度][int 压缩长度][int 写入时间(秒)][压缩数据]，按偏移随机读
+// 写入时间是数据在热数据区最后一次写入的时间，提升回热数据区时恢复，读冷数据不会改变它
+// 覆盖和删除不回收冷文件空间，旧记录变为垃圾，getGarbageSize可查看
+// 非线程安全，由所属Storage的锁保护
+public class ColdTier implements AutoCloseable {
+	public static final int RECORD_HEADER_SIZE = 20;
+	private static final int OFFSET_UNIT_SIZE = 16;
+
+	private final String fileName;
+	private final MmapFile indexFile;
+	private final Index index;
+	private final MmapFile offsetFile;
+	private final ByteBuffer offsetBuffer;
+	private final FileChannel channel;
+	private long writePos;
+	private long garbageSize;
+
+	private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+	private final Inflater inflater = new Inflater();
+	private final ByteBuffer headerBuffer = ByteBuffer
+			.allocate(RECORD_HEADER_SIZE);
+	private byte[] compBuffer = new byte[4096];
+
+	// fileName不要加后缀；maxNum为冷数据最大条数
+	public ColdTier(String fileName, int maxNum) throws StorageException,
+			IOException {
+		if (maxNum <= 0 || maxNum >= Integer.MAX_VALUE / OFFSET_UNIT_SIZE)
+			throw new IllegalArgumentException("argument err. maxNum:"
+					+ maxNum);
+
+		this.fileName = fileName;
+		int hashNum = Utils.getlargerPrime(maxNum * 2);
+		int conflictNum = Math.abs(maxNum / 2);
+		int indexSize = Index.calSize(hashNum, conflictNum, maxNum);
+		File f = new File(fileName + ".cidx");
+		boolean needInit = !f.exists();
+		this.indexFile = new MmapFile(f, indexSize);
+		this.index = new Index(this.indexFile.getBuffer(), indexSize,
+				hashNum, conflictNum, maxNum, 12 + OFFSET_UNIT_SIZE, needInit);
+
+		this.offsetFile = new MmapFile(new File(fileName + ".coff"),
+				(maxNum + 1) * OFFSET_UNIT_SIZE);
+		this.offsetBuffer = this.offsetFile.getBuffer();
+
+		RandomAccessFile raf = new RandomAccessFile(fileName + ".cold", "rw");
+		this.channel = raf.getChannel();
+		// 写到一半的记录没有索引指向，直接跳过
+		this.writePos = this.channel.size();
+	}
+
+	public boolean contains(long key) {
+		return this.index.getIndex(key) > 0;
+	}
+
+	public int getUsedNum() {
+		return this.index.getUsedNum();
+	}
+
+	// 供Storage.forEachKey分段遍历冷数据的key
+	Index getIndex() {
+		return this.index;
+	}
+
+	public boolean isFull() {
+		return this.index.isFull();
+	}
+
+	public long getFileSize() {
+		return this.writePos;
+	}
+
+	// 本次打开以来产生的垃圾字节数
+	public long getGarbageSize() {
+		return this.garbageSize;
+	}
+
+	// 不存在返回null
+	public byte[] get(long key) throws StorageException {
+		return get(key, null);
+	}
+
+	// time不为null时time[0]返回记录的写入时间(秒)
+	public byte[] get(long key, int[] time) throws StorageException {
+		int id = this.index.getIndex(key);
+		if (id <= 0)
+			return null;
+
+		long offset = this.offsetBuffer.getLong(id * OFFSET_UNIT_SIZE);
+		int compLen = this.offsetBuffer.getInt(id * OFFSET_UNIT_SIZE + 8);
+		int rawLen = this.offsetBuffer.getInt(id * OFFSET_UNIT_SIZE + 12);
+		if (this.compBuffer.length < RECORD_HEADER_SIZE + compLen)
+			this.compBuffer = new byte[RECORD_HEADER_SIZE + compLen];
+
+		ByteBuffer bb = ByteBuffer.wrap(this.compBuffer, 0, RECORD_HEADER_SIZE
+				+ compLen);
+		try {
+			while (bb.hasRemaining()) {
+				if (this.channel.read(bb, offset + bb.position()) < 0)
+					throw new StorageException("ColdTier read failed: eof at "
+							+ offset + ", key:" + key);
+			}
+		} catch (IOException e) {
+			throw new StorageException("ColdTier read failed: " + fileName, e);
+		}
+		if (bb.getLong(0) != key || bb.getInt(8) != rawLen
+				|| bb.getInt(12) != compLen)
+			throw new StorageException("ColdTier record err. key:" + key
+					+ ", offset:" + offset);
+		if (time != null)
+			time[0] = bb.getInt(16);
+
+		byte[] bytes = new byte[rawLen];
+		this.inflater.reset();
+		this.inflater.setInput(this.compBuffer, RECORD_HEADER_SIZE, compLen);
+		try {
+			if (this.inflater.inflate(bytes) != rawLen)
+				throw new StorageException("ColdTier inflate err. key:" + key);
+		} catch (DataFormatException e) {
+			throw new StorageException("ColdTier inflate err. key:" + key, e);
+		}
+		return bytes;
+	}
+
+	// 压缩后追加到冷文件，存在则覆盖；time为数据的写入时间(秒)
+	public void put(long key, ByteBuffer value, int time)
+			throws StorageException {
+		int rawLen = value.remaining();
+		byte[] raw = new byte[rawLen];
+		value.duplicate().get(raw);
+
+		this.deflater.reset();
+		this.deflater.setInput(raw);
+		this.deflater.finish();
+		int compLen = 0;
+		for (;;) {
+			compLen += this.deflater.deflate(this.compBuffer, compLen,
+					this.compBuffer.length - compLen);
+			if (this.deflater.finished())
+				break;
+			byte[] bigger = new byte[this.compBuffer.length * 2];
+			System.arraycopy(this.compBuffer, 0, bigger, 0, compLen);
+			this.compBuffer = bigger;
+		}
+
+		this.headerBuffer.clear();
+		this.headerBuffer.putLong(key).putInt(rawLen).putInt(compLen)
+				.putInt(time).flip();
+		ByteBuffer body = ByteBuffer.wrap(this.compBuffer, 0, compLen);
+		long offset = this.writePos;
+		try {
+			long pos = offset;
+			while (this.headerBuffer.hasRemaining()) {
+				pos += this.channel.write(this.headerBuffer, pos);
+			}
+			while (body.hasRemaining()) {
+				pos += this.channel.write(body, pos);
+			}
+			this.writePos = pos;
+		} catch (IOException e) {
+			throw new StorageException("ColdTier write failed: " + fileName, e);
+		}
+
+		// 先写记录再写索引
+		int id = this.index.getIndex(key);
+		if (id > 0) {
+			this.garbageSize += RECORD_HEADER_SIZE
+					+ this.offsetBuffer.getInt(id * OFFSET_UNIT_SIZE + 8);
+			writeOffset(id, offset, compLen, rawLen);
+			return;
+		}
+
+		id = this.index.insertData();
+		writeOffset(id, offset, compLen, rawLen);
+		try {
+			this.index.insertIndex(key, id);
+		} catch (StorageException e) {
+			this.index.freeData(id);
+			throw e;
+		}
+	}
+
+	// 返回是否存在
+	public boolean free(long key) {
+		int id = this.index.getIndex(key);
+		if (id <= 0)
+			return false;
+
+		this.garbageSize += RECORD_HEADER_SIZE
+				+ this.offsetBuffer.getInt(id * OFFSET_UNIT_SIZE + 8);
+		this.index.freeIndex(key);
+		this.index.freeData(id);
+		return true;
+	}
+
+	public void flush() throws StorageException {
+		try {
+			this.channel.force(false);
+		} catch (IOException e) {
+			throw new StorageException("ColdTier flush failed: " + fileName, e);
+		}
+		this.offsetFile.forceWrite();
+		this.indexFile.forceWrite();
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.channel.close();
+		this.deflater.end();
+		this.inflater.end();
+		this.offsetFile.close();
+		this.indexFile.close();
+	}
+
+	@Override
+	public String toString() {
+		return "ColdTier [" + fileName + "] used=" + getUsedNum()
+				+ ", fileSize=" + this.writePos + ", garbage="
+				+ this.garbageSize;
+	}
+
+	private void writeOffset(int id, long offset, int compLen, int rawLen) {
+		this.offsetBuffer.putLong(id * OFFSET_UNIT_SIZE, offset);
+		this.offsetBuffer.putInt(id * OFFSET_UNIT_SIZE + 8, compLen);
+		this.offsetBuffer.putInt(id * OFFSET_UNIT_SIZE + 12, rawLen);
+	}
+}
@@ -0,0 +1,10 @@
+package io.cherry.storage;
+
+import java.nio.ByteBuffer;
+
+// 原地修改数据的回调，在持有Storage锁的情况下调用
+// data直接指向数据区，position为0，limit为当前长度(key不存在时为0)，capacity为最大长度
+// 返回修改后的长度，返回负数表示删除该key
+public interface DataMutator {
+	int mutate(long key, ByteBuffer data, boolean exists);
+}
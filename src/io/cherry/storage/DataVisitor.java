@@ -0,0 +1,9 @@
+package io.cherry.storage;
+
+import java.nio.ByteBuffer;
+
+// 遍历数据时的回调，data为value部分(不含key、长度和时间戳)
+// 注意data直接指向数据区，回调返回后不要再持有
+public interface DataVisitor {
+	void visit(long key, ByteBuffer data);
+}
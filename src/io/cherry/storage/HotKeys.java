@@ -0,0 +1,236 @@
+package io.cherry.storage;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+// 热点key统计，通过Storage.setHotKeys挂到get/put等操作上，不设置时没有开销
+// 每sampleRate次操作采样一次，count-min sketch(4行)估计采样次数，小顶堆维护估计次数最大的topK个key
+// 每采样decayInterval次，所有计数减半，反映的是最近的热度
+// 可被多个Storage(如ShardedStorage的各分片)共用: 采样计数不加锁(偶尔少计无所谓)，采样后的部分加锁
+public class HotKeys implements HotKeysMXBean {
+	private static final int DEPTH = 4;
+
+	private final int sampleRate;
+	private final int width;
+	private final int[] counters;
+	private final int topK;
+	private final int decayInterval;
+	private final long[] heapKeys;
+	private final int[] heapCounts;
+	private final HashMap<Long, Integer> heapIndex = new HashMap<Long, Integer>();
+	private int heapSize;
+	private int tick;
+	private int sinceDecay;
+	private long sampledNum;
+
+	public HotKeys() {
+		this(64, 1 << 16, 32, 1 << 20);
+	}
+
+	// sampleRate和width取不小于它的2的幂
+	public HotKeys(int sampleRate, int width, int topK, int decayInterval) {
+		if (sampleRate <= 0 || width <= 0 || topK <= 0 || decayInterval <= 0)
+			throw new IllegalArgumentException("argument err. sampleRate:"
+					+ sampleRate + ", width:" + width + ", topK:" + topK
+					+ ", decayInterval:" + decayInterval);
+
+		this.sampleRate = ceilPow2(sampleRate);
+		this.width = ceilPow2(width);
+		this.counters = new int[DEPTH * this.width];
+		this.topK = topK;
+		this.decayInterval = decayInterval;
+		this.heapKeys = new long[topK];
+		this.heapCounts = new int[topK];
+	}
+
+	// 每次操作调用
+	public void record(long key) {
+		if ((++this.tick & (this.sampleRate - 1)) != 0)
+			return;
+		sample(key);
+	}
+
+	@Override
+	public int getSampleRate() {
+		return this.sampleRate;
+	}
+
+	@Override
+	public synchronized long getSampledNum() {
+		return this.sampledNum;
+	}
+
+	@Override
+	public synchronized long[] getTopKeys() {
+		Integer[] order = sortedHeap();
+		long[] keys = new long[order.length];
+		for (int i = 0; i < order.length; i++) {
+			keys[i] = this.heapKeys[order[i]];
+		}
+		return keys;
+	}
+
+	@Override
+	public synchronized long[] getTopCounts() {
+		Integer[] order = sortedHeap();
+		long[] counts = new long[order.length];
+		for (int i = 0; i < order.length; i++) {
+			counts[i] = (long) this.heapCounts[order[i]] * this.sampleRate;
+		}
+		return counts;
+	}
+
+	@Override
+	public synchronized long estimate(long key) {
+		long h = Utils.mix64(key);
+		int min = Integer.MAX_VALUE;
+		for (int d = 0; d < DEPTH; d++) {
+			min = Math.min(min, this.counters[slot(h, d)]);
+		}
+		return (long) min * this.sampleRate;
+	}
+
+	@Override
+	public synchronized void reset() {
+		Arrays.fill(this.counters, 0);
+		this.heapIndex.clear();
+		this.heapSize = 0;
+		this.sinceDecay = 0;
+		this.sampledNum = 0;
+	}
+
+	// 注册到platform MBeanServer: io.cherry.storage:type=HotKeys,name=name
+	public void register(String name) throws StorageException {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(
+					this,
+					new ObjectName("io.cherry.storage:type=HotKeys,name="
+							+ ObjectName.quote(name)));
+		} catch (JMException e) {
+			throw new StorageException("register HotKeys failed: "
+					+ e.getMessage(), e);
+		}
+	}
+
+	@Override
+	public synchronized String toString() {
+		Integer[] order = sortedHeap();
+		StringBuilder strBu = new StringBuilder();
+		strBu.append("HotKeys [sampled=").append(this.sampledNum)
+				.append(" , rate=").append(this.sampleRate).append(" , top=");
+		for (int i = 0; i < order.length && i < 10; i++) {
+			if (i > 0)
+				strBu.append(',');
+			strBu.append(this.heapKeys[order[i]]).append(':')
+					.append((long) this.heapCounts[order[i]] * this.sampleRate);
+		}
+		return strBu.append(']').toString();
+	}
+
+	private synchronized void sample(long key) {
+		this.sampledNum++;
+		long h = Utils.mix64(key);
+		int min = Integer.MAX_VALUE;
+		for (int d = 0; d < DEPTH; d++) {
+			int c = ++this.counters[slot(h, d)];
+			if (c < min)
+				min = c;
+		}
+
+		// 小顶堆，堆顶是topK中次数最少的
+		Integer i = this.heapIndex.get(key);
+		if (i != null) {
+			this.heapCounts[i] = min;
+			siftDown(i);
+		} else if (this.heapSize < this.topK) {
+			set(this.heapSize, key, min);
+			siftUp(this.heapSize++);
+		} else if (min > this.heapCounts[0]) {
+			this.heapIndex.remove(this.heapKeys[0]);
+			set(0, key, min);
+			siftDown(0);
+		}
+
+		if (++this.sinceDecay >= this.decayInterval)
+			decay();
+	}
+
+	// 减半不改变堆中的大小顺序
+	private void decay() {
+		this.sinceDecay = 0;
+		for (int i = 0; i < this.counters.length; i++) {
+			this.counters[i] >>>= 1;
+		}
+		for (int i = 0; i < this.heapSize; i++) {
+			this.heapCounts[i] >>>= 1;
+		}
+	}
+
+	// 第d行的位置: h1 + d * h2
+	private int slot(long h, int d) {
+		return d * this.width
+				+ (((int) h + d * (int) (h >>> 32)) & (this.width - 1));
+	}
+
+	private void set(int i, long key, int count) {
+		this.heapKeys[i] = key;
+		this.heapCounts[i] = count;
+		this.heapIndex.put(key, i);
+	}
+
+	private void swap(int i, int j) {
+		long key = this.heapKeys[i];
+		int count = this.heapCounts[i];
+		set(i, this.heapKeys[j], this.heapCounts[j]);
+		set(j, key, count);
+	}
+
+	private void siftUp(int i) {
+		while (i > 0) {
+			int parent = (i - 1) >>> 1;
+			if (this.heapCounts[parent] <= this.heapCounts[i])
+				break;
+			swap(i, parent);
+			i = parent;
+		}
+	}
+
+	private void siftDown(int i) {
+		for (;;) {
+			int child = 2 * i + 1;
+			if (child >= this.heapSize)
+				break;
+			if (child + 1 < this.heapSize
+					&& this.heapCounts[child + 1] < this.heapCounts[child])
+				child++;
+			if (this.heapCounts[i] <= this.heapCounts[child])
+				break;
+			swap(i, child);
+			i = child;
+		}
+	}
+
+	// 堆中下标按次数从大到小排序
+	private Integer[] sortedHeap() {
+		Integer[] order = new Integer[this.heapSize];
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Integer.compare(heapCounts[b], heapCounts[a]);
+			}
+		});
+		return order;
+	}
+
+	private static int ceilPow2(int n) {
+		return n <= 1 ? 1 : Integer.highestOneBit(n - 1) << 1;
+	}
+}
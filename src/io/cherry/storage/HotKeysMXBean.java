@@ -0,0 +1,17 @@
+package io.cherry.storage;
+
+// HotKeys的JMX接口，次数均为按采样率放大后的估计值
+public interface HotKeysMXBean {
+	int getSampleRate();
+
+	long getSampledNum();
+
+	// 按次数从大到小
+	long[] getTopKeys();
+
+	long[] getTopCounts();
+
+	long estimate(long key);
+
+	void reset();
+}
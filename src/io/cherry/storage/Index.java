@@ -2,6 +2,7 @@ package io.cherry.storage;
 
 import java.nio.ByteBuffer;
 import java.nio.IntBuffer;
+import java.util.function.LongConsumer;
 
 // 不支持key为0的情况
 // 只维护索引，不维护数据，数据区需自行处理(2G空间问题)
@@ -39,9 +40,31 @@ public class Index {
 		return size;
 	}
 
+	// 各区域在索引文件中的偏移，供离线工具直接读写
+	static int conflictBucketOffset(int hashNum) {
+		return HEADER_SIZE + hashNum * HASH_UNIT_SIZE;
+	}
+
+	static int conflictOffset(int hashNum, int conflictNum) {
+		return conflictBucketOffset(hashNum) + Bucket.calSize(conflictNum);
+	}
+
+	static int dataBucketOffset(int hashNum, int conflictNum) {
+		return conflictOffset(hashNum, conflictNum) + (conflictNum + 1)
+				* HASH_UNIT_SIZE;
+	}
+
 	public Index(ByteBuffer buffer, int bufferSize, int hashNum,
 			int conflictNum, int dataNum, int dataSize, boolean isInit)
 			throws StorageException {
+		this(buffer, bufferSize, hashNum, conflictNum, dataNum, dataSize,
+				isInit, Bucket.BUCKET_VERSION_LAZY);
+	}
+
+	// bucketVersion为Bucket.BUCKET_VERSION_BITMAP时新建的索引用位图分配，已有的链表格式就地转换
+	public Index(ByteBuffer buffer, int bufferSize, int hashNum,
+			int conflictNum, int dataNum, int dataSize, boolean isInit,
+			int bucketVersion) throws StorageException {
 		if (!(hashNum > 0 && conflictNum > 0 && dataNum > 0 && bufferSize > 0 && dataSize > 12))
 			throw new IllegalArgumentException("argument err. hashNum:"
 					+ hashNum + ", confilctNum:" + conflictNum + ", dataNum:"
@@ -87,9 +110,9 @@ public class Index {
 		this.dataBucketBuffer = tmpBuffer.slice();
 
 		if (isInit)
-			this.initialize();
+			this.initialize(bucketVersion);
 		else
-			this.check();
+			this.check(bucketVersion == Bucket.BUCKET_VERSION_BITMAP);
 
 	}
 
@@ -113,6 +136,19 @@ public class Index {
 		return this.dataBucket.size();
 	}
 
+	public int getHashNum() {
+		return this.hashNum;
+	}
+
+	// 遍历hash区[from, to)槽位及其冲突链上的key，只读索引不读数据区
+	public void forEachKey(int from, int to, LongConsumer consumer) {
+		if (from < 0 || to > this.hashNum)
+			throw new IllegalArgumentException("argument err. from:" + from
+					+ ", to:" + to);
+		forEachKey(this.buffer, this.hashNum, this.conflictNum, from, to,
+				consumer);
+	}
+
 	// 获取key对应的索引位置
 	// 不存在返回－1
 	public int getIndex(long key) {
@@ -169,6 +205,53 @@ public class Index {
 		return -1;
 	}
 
+	// 直接在索引文件上查找，不检查链表，供只读进程在写进程修改期间查找
+	// 读到的可能是修改了一半的链表，结果须由调用方(seqlock)确认；链表损坏时返回-1
+	static int lookup(ByteBuffer buffer, int hashNum, int conflictNum, long key) {
+		int offset = HEADER_SIZE + Math.abs((int) (key % hashNum))
+				* HASH_UNIT_SIZE;
+		int conflictOffset = conflictOffset(hashNum, conflictNum);
+		for (int i = 0; i <= conflictNum; i++) {
+			long _key = buffer.getLong(offset);
+			int _next = buffer.getInt(offset + 12);
+			if (_key == key)
+				return buffer.getInt(offset + 8);
+			if (_key == 0 || _next <= 0 || _next > conflictNum)
+				return -1;
+
+			offset = conflictOffset + _next * HASH_UNIT_SIZE;
+		}
+		return -1;
+	}
+
+	// 直接在索引文件上遍历，同lookup；链表损坏时抛IllegalStateException
+	// hash区顺序读，冲突区只沿链表读使用中的槽位
+	static void forEachKey(ByteBuffer buffer, int hashNum, int conflictNum,
+			int from, int to, LongConsumer consumer) {
+		int conflictOffset = conflictOffset(hashNum, conflictNum);
+		for (int idx = from; idx < to; idx++) {
+			int offset = HEADER_SIZE + idx * HASH_UNIT_SIZE;
+			for (int i = 0; i <= conflictNum; i++) {
+				long key = buffer.getLong(offset);
+				if (key == 0)
+					break;
+				consumer.accept(key);
+				int next = buffer.getInt(offset + 12);
+				if (next == 0)
+					break;
+				if (next < 0 || next > conflictNum)
+					throw new IllegalStateException("index link err. slot="
+							+ idx + ", next=" + next);
+				offset = conflictOffset + next * HASH_UNIT_SIZE;
+			}
+		}
+	}
+
+	// 扩容后旧索引作废，版本清0，只读进程看到后重新打开索引文件
+	void retire() {
+		this.headerBuffer.put(0, 0);
+	}
+
 	// 须先getIndex，当不存在时调用insertData申请一个data空间，然后写数据，然后调用insertIndex写索引
 	// 如果写索引失败，需要回收data空间
 	public int insertData() throws StorageException {
@@ -323,6 +406,22 @@ public class Index {
 				+ " ,conflict=" + this.useConflictNum + "]";
 	}
 
+	public int getBucketVersion() {
+		return this.dataBucket.getVersion();
+	}
+
+	// 数据区分配过的最大位置
+	public int getDataHighWater() {
+		return this.dataBucket.getHighWater();
+	}
+
+	// 按使用位(每个数据块一位)重建数据区空闲链，用于扩容
+	void rebuildDataBucket(long[] used) throws StorageException {
+		Bucket.rebuild(this.dataBucketBuffer, this.dataNum, used);
+		this.dataBucket = new Bucket(this.dataBucketBuffer,
+				Bucket.calSize(this.dataNum), this.dataNum, false);
+	}
+
 	public void setDataLink(int idx, int next) {
 		this.dataBucket.setLink(idx, next);
 	}
@@ -335,7 +434,7 @@ public class Index {
 		this.dataBucket.setUsedAndLink(usedNum, linkBegin, linkEnd);
 	}
 
-	private void initialize() throws StorageException {
+	private void initialize(int bucketVersion) throws StorageException {
 		if (this.headerBuffer.get(0) != 0)
 			throw new StorageException(
 					"Index initialize failed: hashVersion must be 0");
@@ -350,12 +449,13 @@ public class Index {
 		this.headerBuffer.put(5, this.useConflictNum);
 
 		this.conflictBucket = new Bucket(this.conflictBucketBuffer,
-				Bucket.calSize(this.conflictNum), this.conflictNum, true);
+				Bucket.calSize(this.conflictNum), this.conflictNum, true,
+				bucketVersion);
 		this.dataBucket = new Bucket(this.dataBucketBuffer,
-				Bucket.calSize(this.dataNum), this.dataNum, true);
+				Bucket.calSize(this.dataNum), this.dataNum, true, bucketVersion);
 	}
 
-	private void check() throws StorageException {
+	private void check(boolean toBitmap) throws StorageException {
 		this.hashVersion = this.headerBuffer.get(0);
 		int hashNum = this.headerBuffer.get(1);
 		int conflictNum = this.headerBuffer.get(2);
@@ -383,6 +483,11 @@ public class Index {
 			throw new StorageException("Index check failed: dataSize="
 					+ dataSize + "!=" + this.dataSize);
 		}
+		if (toBitmap) {
+			Bucket.convertToBitmap(this.conflictBucketBuffer, conflictNum);
+			if (Bucket.convertToBitmap(this.dataBucketBuffer, dataNum))
+				System.out.println("Index buckets converted to bitmap");
+		}
 		this.conflictBucket = new Bucket(this.conflictBucketBuffer,
 				Bucket.calSize(conflictNum), conflictNum, false);
 		this.dataBucket = new Bucket(this.dataBucketBuffer,
@@ -0,0 +1,99 @@
+package io.cherry.storage;
+
+import java.util.Arrays;
+import java.util.function.LongConsumer;
+
+// 分段遍历索引中key的游标，调用方每次在锁(或seqlock)内把一段hash槽位中的key拷出，再在锁外回调
+// 用法: begin返回true后在锁内遍历[from(), to())并把key交给accept，确认读到的是一致的再commit，最后emit
+// 索引被替换(扩容后hashNum变化)时从头遍历新索引，跳过旧索引中已遍历过的槽位上的key，每个key只回调一次
+// 遍历期间新增/删除的key可能出现也可能不出现
+class KeyCursor implements LongConsumer {
+	static final int CHUNK_SLOTS = 4096;
+
+	private long[] keys = new long[CHUNK_SLOTS * 2];
+	private int num;
+	private int hashNum;
+	private int slot;
+	private int to;
+	// 之前各个索引的hashNum和已遍历到的槽位
+	private int[] doneHashNums = new int[0];
+	private int[] doneSlots = new int[0];
+	// Storage.forEachKey的热数据游标: 槽位已遍历过之后才迁到冷数据层的key，由迁移方在storage锁内记录，冷数据遍历时跳过
+	private long[] movedKeys = new long[0];
+	private int movedNum;
+
+	// 锁内调用，返回false表示已遍历完
+	boolean begin(int hashNum) {
+		if (hashNum != this.hashNum) {
+			if (this.hashNum > 0 && this.slot > 0) {
+				int n = this.doneHashNums.length;
+				this.doneHashNums = Arrays.copyOf(this.doneHashNums, n + 1);
+				this.doneSlots = Arrays.copyOf(this.doneSlots, n + 1);
+				this.doneHashNums[n] = this.hashNum;
+				this.doneSlots[n] = this.slot;
+			}
+			this.hashNum = hashNum;
+			this.slot = 0;
+		}
+		this.num = 0;
+		this.to = Math.min(this.slot + CHUNK_SLOTS, hashNum);
+		return this.slot < hashNum;
+	}
+
+	int from() {
+		return this.slot;
+	}
+
+	int to() {
+		return this.to;
+	}
+
+	void commit() {
+		this.slot = this.to;
+	}
+
+	// 锁外回调本段的key
+	void emit(LongConsumer consumer) {
+		for (int i = 0; i < this.num; i++) {
+			long key = this.keys[i];
+			if (!visited(key))
+				consumer.accept(key);
+		}
+	}
+
+	// 锁内调用，key所在的槽位是否已遍历过(已经或将要回调)，遍历完后总是true
+	boolean passed(long key) {
+		return visited(key)
+				|| (this.hashNum > 0 && Math.abs((int) (key % this.hashNum)) < this.slot);
+	}
+
+	void addMoved(long key) {
+		if (this.movedNum == this.movedKeys.length)
+			this.movedKeys = Arrays.copyOf(this.movedKeys,
+					this.movedNum * 2 + 16);
+		this.movedKeys[this.movedNum++] = key;
+	}
+
+	int getMovedNum() {
+		return this.movedNum;
+	}
+
+	long getMoved(int i) {
+		return this.movedKeys[i];
+	}
+
+	@Override
+	public void accept(long key) {
+		if (this.num == this.keys.length)
+			this.keys = Arrays.copyOf(this.keys, this.num * 2);
+		this.keys[this.num++] = key;
+	}
+
+	private boolean visited(long key) {
+		for (int i = 0; i < this.doneHashNums.length; i++) {
+			if (Math.abs((int) (key % this.doneHashNums[i])) < this.doneSlots[i])
+				return true;
+		}
+		return false;
+	}
+}
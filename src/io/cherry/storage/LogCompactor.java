@@ -0,0 +1,64 @@
+package io.cherry.storage;
+
+// 后台回收LogStorage段空间的线程，每隔intervalMs在storage锁内回收一个有效比例不超过maxLiveRatio的段
+// 有段被回收时不等待，直接继续下一轮
+public class LogCompactor implements Runnable {
+	private final LogStorage storage;
+	private final double maxLiveRatio;
+	private final long intervalMs;
+	private volatile boolean running;
+	private volatile long reclaimedSize;
+	private Thread thread;
+
+	public LogCompactor(LogStorage storage, double maxLiveRatio,
+			long intervalMs) {
+		if (maxLiveRatio < 0 || maxLiveRatio > 1 || intervalMs < 0)
+			throw new IllegalArgumentException("argument err. maxLiveRatio:"
+					+ maxLiveRatio + ", intervalMs:" + intervalMs);
+
+		this.storage = storage;
+		this.maxLiveRatio = maxLiveRatio;
+		this.intervalMs = intervalMs;
+	}
+
+	public void start() {
+		this.running = true;
+		this.thread = new Thread(this, "log-compactor");
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	public void stop() throws InterruptedException {
+		this.running = false;
+		this.thread.interrupt();
+		this.thread.join();
+	}
+
+	public long getReclaimedSize() {
+		return this.reclaimedSize;
+	}
+
+	@Override
+	public void run() {
+		while (this.running) {
+			try {
+				int size;
+				synchronized (this.storage) {
+					size = this.storage.compact(this.maxLiveRatio);
+				}
+				this.reclaimedSize += size;
+				if (size == 0)
+					Thread.sleep(this.intervalMs);
+			} catch (StorageException e) {
+				System.out.println("compact log failed: " + e.getMessage());
+				try {
+					Thread.sleep(Math.max(1000, this.intervalMs));
+				} catch (InterruptedException ie) {
+					return;
+				}
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+}
@@ -0,0 +1,500 @@
+package io.cherry.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+// 日志结构的存储引擎，接口与Storage相同，适合覆盖写多的场景
+// value追加写到固定大小的段文件，覆盖写也只是追加一条新记录，写入全部是顺序写
+// fileName.idx: 索引，key->记录号，复用Index
+// fileName.loc: 记录号->[int 段号+1][int 段内偏移]，0表示不存在
+// fileName.seg: [int version][int segmentSize][int segmentNum][int 当前写入段]，每段[int 写入位置][int 有效字节数]
+// fileName.log{i}: 第i个段，每条记录[long key][int 长度][value]，用到时才创建
+// 覆盖和删除使旧记录失效，compact把有效字节比例最低的段中仍有效的记录搬到当前段，整段回收复用
+// 有效字节数只用于挑选要回收的段，记录是否有效以位置表为准，异常退出导致的统计偏差不影响正确性
+// 非线程安全，多线程访问时须在storage对象上加锁；后台回收见LogCompactor
+public class LogStorage implements AutoCloseable {
+	public static final int SEG_VERSION = 0x3701;
+	public static final int RECORD_HEADER_SIZE = 12;
+	private static final int SEG_HEADER_SIZE = 16;
+	private static final int SEG_UNIT_SIZE = 8;
+	private static final int LOC_UNIT_SIZE = 8;
+
+	private final String fileName;
+	private final int segmentSize;
+	private final int segmentNum;
+	private final MmapFile indexFile;
+	private final Index index;
+	private final MmapFile locFile;
+	private final ByteBuffer locBuffer;
+	private final MmapFile segFile;
+	private final ByteBuffer segBuffer;
+	private final MmapFile[] logFiles;
+	private final ByteBuffer[] logBuffers;
+	private int activeSegment;
+	// 正在回收的段，回收中换段时不再嵌套回收
+	private int compactingSegment = -1;
+	private long compactedNum;
+	private long movedNum;
+	private boolean closed;
+
+	// fileName不要加后缀；dataNum为最大条数，segmentSize为单个段文件大小，segmentNum为段数
+	// 单条value最大segmentSize-12字节
+	public LogStorage(String fileName, int dataNum, int segmentSize,
+			int segmentNum) throws StorageException, IOException {
+		if (dataNum <= 0 || dataNum >= Integer.MAX_VALUE / LOC_UNIT_SIZE
+				|| segmentSize <= RECORD_HEADER_SIZE || segmentNum < 2)
+			throw new IllegalArgumentException("argument err. dataNum:"
+					+ dataNum + ", segmentSize:" + segmentSize
+					+ ", segmentNum:" + segmentNum);
+
+		this.fileName = fileName;
+		this.segmentSize = segmentSize;
+		this.segmentNum = segmentNum;
+
+		int hashNum = Utils.getlargerPrime(dataNum * 2);
+		int conflictNum = Math.abs(dataNum / 2);
+		int indexSize = Index.calSize(hashNum, conflictNum, dataNum);
+		File f = new File(fileName + ".idx");
+		boolean needInit = !f.exists();
+		this.indexFile = new MmapFile(f, indexSize);
+		this.index = new Index(this.indexFile.getBuffer(), indexSize,
+				hashNum, conflictNum, dataNum, segmentSize, needInit);
+
+		this.locFile = new MmapFile(new File(fileName + ".loc"),
+				(dataNum + 1) * LOC_UNIT_SIZE);
+		this.locBuffer = this.locFile.getBuffer();
+
+		f = new File(fileName + ".seg");
+		needInit = !f.exists();
+		this.segFile = new MmapFile(f, SEG_HEADER_SIZE + segmentNum
+				* SEG_UNIT_SIZE);
+		this.segBuffer = this.segFile.getBuffer();
+		if (needInit) {
+			this.segBuffer.putInt(4, segmentSize);
+			this.segBuffer.putInt(8, segmentNum);
+			this.segBuffer.putInt(12, 0);
+			this.segBuffer.putInt(0, SEG_VERSION);
+		} else if (this.segBuffer.getInt(0) != SEG_VERSION
+				|| this.segBuffer.getInt(4) != segmentSize
+				|| this.segBuffer.getInt(8) != segmentNum) {
+			throw new StorageException("LogStorage config err. version:"
+					+ Integer.toHexString(this.segBuffer.getInt(0))
+					+ ", segmentSize:" + this.segBuffer.getInt(4)
+					+ ", segmentNum:" + this.segBuffer.getInt(8));
+		}
+		this.activeSegment = this.segBuffer.getInt(12);
+
+		this.logFiles = new MmapFile[segmentNum];
+		this.logBuffers = new ByteBuffer[segmentNum];
+	}
+
+	public boolean contains(long key) {
+		checkOpen();
+		return this.index.getIndex(key) > 0;
+	}
+
+	public boolean isEmpty() {
+		checkOpen();
+		return this.index.isEmpty();
+	}
+
+	public boolean isFull() {
+		checkOpen();
+		return this.index.isFull();
+	}
+
+	public int getUsedNum() {
+		checkOpen();
+		return this.index.getUsedNum();
+	}
+
+	public int size() {
+		checkOpen();
+		return this.index.size();
+	}
+
+	public int getMaxValueSize() {
+		return this.segmentSize - RECORD_HEADER_SIZE;
+	}
+
+	public long getCompactedNum() {
+		return this.compactedNum;
+	}
+
+	// compact搬移过的记录数
+	public long getMovedNum() {
+		return this.movedNum;
+	}
+
+	// 所有段中已失效的字节数
+	public long getGarbageSize() {
+		checkOpen();
+		long garbage = 0;
+		for (int i = 0; i < this.segmentNum; i++) {
+			garbage += writePos(i) - liveBytes(i);
+		}
+		return garbage;
+	}
+
+	public int getFreeSegmentNum() {
+		checkOpen();
+		int num = 0;
+		for (int i = 0; i < this.segmentNum; i++) {
+			if (i != this.activeSegment && writePos(i) == 0)
+				++num;
+		}
+		return num;
+	}
+
+	public byte[] get(long key) throws StorageException {
+		ByteBuffer bb = getByteBuffer(key);
+		if (bb == null)
+			return null;
+
+		byte[] bytes = new byte[bb.remaining()];
+		bb.get(bytes);
+		return bytes;
+	}
+
+	// 返回的ByteBuffer直接指向段文件，只在下一次修改(put/free/compact)之前有效
+	public ByteBuffer getByteBuffer(long key) throws StorageException {
+		checkOpen();
+		int id = this.index.getIndex(key);
+		if (id <= 0)
+			return null;
+
+		long loc = this.locBuffer.getLong(id * LOC_UNIT_SIZE);
+		if (loc == 0)
+			throw new StorageException("LogStorage location err. key:" + key
+					+ ", id:" + id);
+		return valueBuffer(key, (int) (loc >>> 32) - 1, (int) loc);
+	}
+
+	// 存在则覆盖；不存在则新增
+	public void put(long key, byte[] bytes) throws StorageException {
+		put(key, ByteBuffer.wrap(bytes));
+	}
+
+	public void put(long key, ByteBuffer value) throws StorageException {
+		checkOpen();
+		if (key <= 0)
+			throw new IllegalArgumentException("argument err. key:" + key);
+		if (value.remaining() > getMaxValueSize())
+			throw new StorageException("LogStorage put failed: value too large. key:"
+					+ key + ", len:" + value.remaining());
+
+		int id = this.index.getIndex(key);
+		if (id > 0) {
+			// 先写新记录再改位置，中途退出时旧记录仍有效
+			long loc = append(key, value);
+			long oldLoc = this.locBuffer.getLong(id * LOC_UNIT_SIZE);
+			this.locBuffer.putLong(id * LOC_UNIT_SIZE, loc);
+			release(oldLoc);
+			return;
+		}
+
+		if (this.index.isFull())
+			throw new StorageException("LogStorage put failed: index is full. key:"
+					+ key);
+		long loc = append(key, value);
+		id = this.index.insertData();
+		this.locBuffer.putLong(id * LOC_UNIT_SIZE, loc);
+		try {
+			this.index.insertIndex(key, id);
+		} catch (StorageException e) {
+			this.locBuffer.putLong(id * LOC_UNIT_SIZE, 0);
+			this.index.freeData(id);
+			release(loc);
+			throw e;
+		}
+	}
+
+	public void free(long key) throws StorageException {
+		checkOpen();
+		int id = this.index.getIndex(key);
+		if (id <= 0)
+			return;
+
+		long loc = this.locBuffer.getLong(id * LOC_UNIT_SIZE);
+		this.index.freeIndex(key);
+		this.locBuffer.putLong(id * LOC_UNIT_SIZE, 0);
+		this.index.freeData(id);
+		release(loc);
+	}
+
+	// 按记录号遍历所有数据
+	public void scan(DataVisitor visitor) throws StorageException {
+		checkOpen();
+		int highWater = this.index.getDataHighWater();
+		for (int id = 1; id <= highWater; id++) {
+			long loc = this.locBuffer.getLong(id * LOC_UNIT_SIZE);
+			if (loc == 0)
+				continue;
+
+			int seg = (int) (loc >>> 32) - 1;
+			long key = logBuffer(seg).getLong((int) loc);
+			visitor.visit(key, valueBuffer(key, seg, (int) loc));
+		}
+	}
+
+	// 回收一个有效字节比例不超过maxLiveRatio的段，优先回收比例最低的
+	// 返回回收的字节数，没有可回收的段返回0
+	public int compact(double maxLiveRatio) throws StorageException {
+		checkOpen();
+		if (maxLiveRatio < 0 || maxLiveRatio > 1)
+			throw new IllegalArgumentException("argument err. maxLiveRatio:"
+					+ maxLiveRatio);
+
+		int victim = -1;
+		double minRatio = 2;
+		for (int i = 0; i < this.segmentNum; i++) {
+			int used = writePos(i);
+			if (i == this.activeSegment || used == 0 || liveBytes(i) >= used)
+				continue;
+			double ratio = (double) liveBytes(i) / used;
+			if (ratio <= maxLiveRatio && ratio < minRatio) {
+				victim = i;
+				minRatio = ratio;
+			}
+		}
+		if (victim < 0)
+			return 0;
+
+		// 搬移时当前段写满要换段，须保证有空闲段可用
+		if (this.segmentSize - writePos(this.activeSegment) < liveBytes(victim)
+				&& getFreeSegmentNum() == 0)
+			return 0;
+		return compactSegment(victim);
+	}
+
+	public void flush() {
+		checkOpen();
+		for (int i = 0; i < this.segmentNum; i++) {
+			if (this.logFiles[i] != null)
+				this.logFiles[i].forceWrite();
+		}
+		this.locFile.forceWrite();
+		this.indexFile.forceWrite();
+		this.segFile.forceWrite();
+	}
+
+	// 刷盘后解除所有映射，之后再调用其他方法抛IllegalStateException；重复关闭无影响
+	@Override
+	public void close() {
+		if (this.closed)
+			return;
+
+		flush();
+		this.closed = true;
+		for (int i = 0; i < this.segmentNum; i++) {
+			if (this.logFiles[i] != null)
+				this.logFiles[i].close();
+			this.logFiles[i] = null;
+			this.logBuffers[i] = null;
+		}
+		this.locFile.close();
+		this.indexFile.close();
+		this.segFile.close();
+	}
+
+	@Override
+	public String toString() {
+		if (this.closed)
+			return "LogStorage [" + fileName + "] closed";
+		return "LogStorage [" + fileName + "] used=" + getUsedNum()
+				+ ", size=" + size() + ", segments=" + this.segmentNum
+				+ ", freeSegments=" + getFreeSegmentNum() + ", active="
+				+ this.activeSegment + ", garbage=" + getGarbageSize()
+				+ ", compacted=" + this.compactedNum + ", moved="
+				+ this.movedNum;
+	}
+
+	private int compactSegment(int victim) throws StorageException {
+		ByteBuffer bb = logBuffer(victim);
+		int end = writePos(victim);
+		int reclaimed = end - liveBytes(victim);
+		this.compactingSegment = victim;
+		try {
+			moveLive(victim, bb, end);
+		} finally {
+			this.compactingSegment = -1;
+		}
+
+		setWritePos(victim, 0);
+		setLiveBytes(victim, 0);
+		++this.compactedNum;
+		return reclaimed;
+	}
+
+	private void moveLive(int victim, ByteBuffer bb, int end)
+			throws StorageException {
+		int offset = 0;
+		while (offset + RECORD_HEADER_SIZE <= end) {
+			long key = bb.getLong(offset);
+			int len = bb.getInt(offset + 8);
+			if (len < 0 || offset + RECORD_HEADER_SIZE + len > end)
+				throw new StorageException("LogStorage record err. segment:"
+						+ victim + ", offset:" + offset);
+
+			// 只搬位置表仍指向这里的记录
+			int id = key > 0 ? this.index.getIndex(key) : -1;
+			if (id > 0
+					&& this.locBuffer.getLong(id * LOC_UNIT_SIZE) == location(
+							victim, offset)) {
+				ByteBuffer tmpBuffer = bb.duplicate();
+				tmpBuffer.position(offset + RECORD_HEADER_SIZE);
+				tmpBuffer.limit(offset + RECORD_HEADER_SIZE + len);
+				long loc = append(key, tmpBuffer);
+				this.locBuffer.putLong(id * LOC_UNIT_SIZE, loc);
+				++this.movedNum;
+			}
+			offset += RECORD_HEADER_SIZE + len;
+		}
+	}
+
+	// 追加一条记录到当前段，返回位置
+	private long append(long key, ByteBuffer value) throws StorageException {
+		int len = value.remaining();
+		int size = RECORD_HEADER_SIZE + len;
+		if (writePos(this.activeSegment) + size > this.segmentSize)
+			nextSegment();
+
+		int seg = this.activeSegment;
+		int offset = writePos(seg);
+		ByteBuffer bb = logBuffer(seg);
+		bb.putLong(offset, key);
+		bb.putInt(offset + 8, len);
+		ByteBuffer tmpBuffer = bb.duplicate();
+		tmpBuffer.position(offset + RECORD_HEADER_SIZE);
+		tmpBuffer.put(value.duplicate());
+		setWritePos(seg, offset + size);
+		setLiveBytes(seg, liveBytes(seg) + size);
+		return location(seg, offset);
+	}
+
+	// 换到一个空闲段；空闲段不足时先回收，留一个空闲段给compact搬移用
+	private void nextSegment() throws StorageException {
+		while (this.compactingSegment < 0 && getFreeSegmentNum() < 2
+				&& compact(1.0) > 0) {
+		}
+
+		for (int i = 1; i <= this.segmentNum; i++) {
+			int seg = (this.activeSegment + i) % this.segmentNum;
+			if (seg != this.activeSegment && writePos(seg) == 0) {
+				this.activeSegment = seg;
+				this.segBuffer.putInt(12, seg);
+				return;
+			}
+		}
+		throw new StorageException("LogStorage is full: no free segment. "
+				+ toString());
+	}
+
+	private void release(long loc) {
+		if (loc == 0)
+			return;
+
+		int seg = (int) (loc >>> 32) - 1;
+		int len = logBuffer(seg).getInt((int) loc + 8);
+		setLiveBytes(seg, liveBytes(seg) - RECORD_HEADER_SIZE - len);
+	}
+
+	private ByteBuffer valueBuffer(long key, int seg, int offset)
+			throws StorageException {
+		ByteBuffer bb = logBuffer(seg);
+		int len = bb.getInt(offset + 8);
+		if (bb.getLong(offset) != key || len < 0
+				|| offset + RECORD_HEADER_SIZE + len > this.segmentSize)
+			throw new StorageException("LogStorage record err. key:" + key
+					+ ", segment:" + seg + ", offset:" + offset);
+
+		bb.position(offset + RECORD_HEADER_SIZE);
+		bb.limit(offset + RECORD_HEADER_SIZE + len);
+		return bb.slice();
+	}
+
+	// 段文件用到时才映射
+	private ByteBuffer logBuffer(int seg) {
+		if (this.logBuffers[seg] == null) {
+			try {
+				this.logFiles[seg] = new MmapFile(new File(this.fileName
+						+ ".log" + seg), this.segmentSize);
+			} catch (IOException e) {
+				throw new IllegalStateException("map log segment failed: "
+						+ this.fileName + ".log" + seg, e);
+			}
+			this.logBuffers[seg] = this.logFiles[seg].getBuffer();
+		}
+		return this.logBuffers[seg].duplicate();
+	}
+
+	private void checkOpen() {
+		if (this.closed)
+			throw new IllegalStateException("log storage closed: "
+					+ this.fileName);
+	}
+
+	private static long location(int seg, int offset) {
+		return ((long) (seg + 1) << 32) | (offset & 0xFFFFFFFFL);
+	}
+
+	private int writePos(int seg) {
+		return this.segBuffer.getInt(SEG_HEADER_SIZE + seg * SEG_UNIT_SIZE);
+	}
+
+	private void setWritePos(int seg, int pos) {
+		this.segBuffer.putInt(SEG_HEADER_SIZE + seg * SEG_UNIT_SIZE, pos);
+	}
+
+	private int liveBytes(int seg) {
+		return this.segBuffer.getInt(SEG_HEADER_SIZE + seg * SEG_UNIT_SIZE
+				+ 4);
+	}
+
+	private void setLiveBytes(int seg, int bytes) {
+		this.segBuffer.putInt(SEG_HEADER_SIZE + seg * SEG_UNIT_SIZE + 4,
+				Math.max(0, bytes));
+	}
+
+	// 覆盖写压测，与Storage对比: LogStorage fileName dataNum valueSize ops
+	public static void main(String[] args) throws Exception {
+		if (args.length < 4) {
+			System.out.println("usage: LogStorage fileName dataNum valueSize ops");
+			return;
+		}
+
+		String fileName = args[0];
+		int dataNum = Integer.parseInt(args[1]);
+		int valueSize = Integer.parseInt(args[2]);
+		int ops = Integer.parseInt(args[3]);
+		byte[] value = new byte[valueSize];
+		Random random = new Random();
+
+		// 段总大小取数据量的2倍，留出垃圾空间
+		int segmentSize = 64 * 1024 * 1024;
+		long total = (long) dataNum * (RECORD_HEADER_SIZE + valueSize) * 2;
+		int segmentNum = (int) Math.max(4, total / segmentSize + 2);
+		LogStorage log = new LogStorage(fileName + ".log", dataNum,
+				segmentSize, segmentNum);
+		long startTime = System.currentTimeMillis();
+		for (int i = 0; i < ops; i++) {
+			random.nextBytes(value);
+			log.put(1 + random.nextInt(dataNum), value);
+		}
+		long endTime = System.currentTimeMillis();
+		System.out.println("LogStorage put " + ops + " use "
+				+ (endTime - startTime) + "ms, " + log);
+
+		Storage storage = new Storage(fileName, dataNum, valueSize + 32);
+		startTime = System.currentTimeMillis();
+		for (int i = 0; i < ops; i++) {
+			random.nextBytes(value);
+			storage.put(1 + random.nextInt(dataNum), value);
+		}
+		endTime = System.currentTimeMillis();
+		System.out.println("Storage put " + ops + " use "
+				+ (endTime - startTime) + "ms, " + storage);
+	}
+}
@@ -0,0 +1,476 @@
+package io.cherry.storage;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// 后台维护任务调度: 刷盘、预热、冷数据迁移、日志段回收等在专用线程池上分片执行
+// 每次执行一个时间片(sliceMs)，片与片之间按预算插入等待:
+// 带宽预算: 所有任务合计每秒读写不超过bytesPerSec字节
+// cpu预算: 所有任务合计占用不超过一个核的cpuPercent%
+// 延迟退让: 前台操作(Storage.setMaintenanceScheduler后自动上报)最近一个窗口的p99超过p99LimitUs时，
+// 等待时间成倍增加(最多64倍)，恢复后逐步减半
+public class MaintenanceScheduler {
+	private static final int LATENCY_BUCKETS = 64;
+	private static final long WINDOW_NANOS = 1000000000L;
+	private static final int MAX_BACKOFF = 64;
+	// 刷盘/预热每步处理的字节数，保证每步很快返回，时间片和带宽限制才有效
+	static final int STEP_SIZE = 4 * 1024 * 1024;
+
+	// 任务状态快照
+	public static class TaskStatus {
+		public String name;
+		public String state;
+		public double progress;
+		public long rounds;
+		public long steps;
+		public long bytes;
+		public long cpuNanos;
+		public String lastError;
+
+		@Override
+		public String toString() {
+			return name + " [" + state + "] progress="
+					+ (progress < 0 ? "?" : (int) (progress * 100) + "%")
+					+ ", rounds=" + rounds + ", steps=" + steps + ", bytes="
+					+ bytes + ", cpuMs=" + cpuNanos / 1000000
+					+ (lastError == null ? "" : ", lastError=" + lastError);
+		}
+	}
+
+	private final ScheduledThreadPoolExecutor executor;
+	private final List<Entry> entries = new CopyOnWriteArrayList<Entry>();
+	private final ThreadMXBean threadBean = ManagementFactory
+			.getThreadMXBean();
+	private final long sliceNanos;
+	private volatile long bytesPerSec;
+	private volatile int cpuPercent;
+	private volatile long p99LimitNanos;
+
+	// 两种预算各自的时间线，到该时间之前不能再开始新的时间片
+	private long ioAvailableAt;
+	private long cpuAvailableAt;
+
+	// 前台延迟直方图，按耗时的log2分桶，每个窗口结束时算一次p99
+	private final AtomicLongArray latencies = new AtomicLongArray(
+			LATENCY_BUCKETS);
+	private long windowStart = System.nanoTime();
+	private volatile long lastP99Nanos;
+	private volatile int backoff = 1;
+
+	// threadNum为线程数；bytesPerSec<=0不限带宽；cpuPercent为单核的百分比(1-100)；p99LimitUs<=0不退让
+	public MaintenanceScheduler(int threadNum, int sliceMs, long bytesPerSec,
+			int cpuPercent, long p99LimitUs) {
+		if (threadNum <= 0 || sliceMs <= 0 || cpuPercent <= 0
+				|| cpuPercent > 100)
+			throw new IllegalArgumentException("argument err. threadNum:"
+					+ threadNum + ", sliceMs:" + sliceMs + ", cpuPercent:"
+					+ cpuPercent);
+
+		this.sliceNanos = sliceMs * 1000000L;
+		this.bytesPerSec = bytesPerSec;
+		this.cpuPercent = cpuPercent;
+		this.p99LimitNanos = p99LimitUs * 1000;
+		this.executor = new ScheduledThreadPoolExecutor(threadNum,
+				new ThreadFactory() {
+					private int num;
+
+					@Override
+					public synchronized Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "storage-maintenance-"
+								+ num++);
+						t.setDaemon(true);
+						t.setPriority(Thread.MIN_PRIORITY);
+						return t;
+					}
+				});
+	}
+
+	// intervalMs为每轮完成后到下一轮开始的间隔，<0表示只执行一轮
+	public void schedule(MaintenanceTask task, long intervalMs) {
+		Entry entry = new Entry(task, intervalMs);
+		this.entries.add(entry);
+		this.executor.execute(entry);
+	}
+
+	// 取消后正在执行的时间片会执行完
+	public boolean cancel(String name) {
+		for (Entry entry : this.entries) {
+			if (entry.task.getName().equals(name)) {
+				entry.cancelled = true;
+				this.entries.remove(entry);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public void shutdown() throws InterruptedException {
+		for (Entry entry : this.entries) {
+			entry.cancelled = true;
+		}
+		this.entries.clear();
+		this.executor.shutdownNow();
+		this.executor.awaitTermination(10, TimeUnit.SECONDS);
+	}
+
+	public void setBytesPerSec(long bytesPerSec) {
+		this.bytesPerSec = bytesPerSec;
+	}
+
+	public void setCpuPercent(int cpuPercent) {
+		if (cpuPercent <= 0 || cpuPercent > 100)
+			throw new IllegalArgumentException("argument err. cpuPercent:"
+					+ cpuPercent);
+		this.cpuPercent = cpuPercent;
+	}
+
+	public void setP99LimitUs(long p99LimitUs) {
+		this.p99LimitNanos = p99LimitUs * 1000;
+	}
+
+	// 前台操作耗时，线程安全
+	public void recordLatency(long nanos) {
+		int b = nanos <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(nanos);
+		this.latencies.incrementAndGet(Math.min(b, LATENCY_BUCKETS - 1));
+	}
+
+	// 上一个窗口的前台p99(纳秒，分桶上界)，没有数据为0
+	public long getForegroundP99() {
+		return this.lastP99Nanos;
+	}
+
+	public int getBackoff() {
+		return this.backoff;
+	}
+
+	public List<TaskStatus> getStatus() {
+		List<TaskStatus> list = new ArrayList<TaskStatus>();
+		for (Entry entry : this.entries) {
+			list.add(entry.status());
+		}
+		return list;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("MaintenanceScheduler p99="
+				+ this.lastP99Nanos / 1000 + "us, backoff=" + this.backoff);
+		for (Entry entry : this.entries) {
+			sb.append("\n  ").append(entry.status());
+		}
+		return sb.toString();
+	}
+
+	// 刷盘，每步在storage锁内刷一个数据文件中不超过STEP_SIZE的一段
+	public static MaintenanceTask flushTask(final Storage storage) {
+		return new DataRangeTask(storage, "flush") {
+			@Override
+			protected void process(int idx, int offset, int len) {
+				storage.flushDataFile(idx, offset, len);
+			}
+		};
+	}
+
+	// 预热，每步在storage锁内读入一个数据文件中不超过STEP_SIZE的一段
+	public static MaintenanceTask warmUpTask(final Storage storage) {
+		return new DataRangeTask(storage, "warmUp") {
+			@Override
+			protected void process(int idx, int offset, int len) {
+				storage.warmUpDataFile(idx, offset, len);
+			}
+		};
+	}
+
+	// 冷数据迁移，每步在storage锁内检查batchScan个数据块，扫完一圈为一轮
+	public static MaintenanceTask coldMigrationTask(final Storage storage,
+			final int olderThanSec, final int batchScan) {
+		if (storage.getColdTier() == null)
+			throw new IllegalArgumentException("argument err. cold tier not set");
+		return new MaintenanceTask() {
+			private int scanned;
+
+			@Override
+			public String getName() {
+				return "coldMigration";
+			}
+
+			@Override
+			public long step() throws StorageException {
+				synchronized (storage) {
+					if (this.scanned >= storage.size()) {
+						this.scanned = 0;
+						return -1;
+					}
+					storage.migrateCold(olderThanSec, batchScan);
+				}
+				this.scanned += batchScan;
+				return (long) batchScan * 16;
+			}
+
+			@Override
+			public double getProgress() {
+				return Math.min(1.0, (double) this.scanned / storage.size());
+			}
+		};
+	}
+
+	// 有序索引后台归并: 日志过半时在storage锁内冻结日志，之后每步不持锁归并约STEP_SIZE字节，
+	// 最后在storage锁内切换有序段，一次归并为一轮；避免日志写满时在put/free中同步归并
+	public static MaintenanceTask orderedIndexMergeTask(final Storage storage) {
+		return new MaintenanceTask() {
+			private OrderedIndex merging;
+
+			@Override
+			public String getName() {
+				return "orderedIndexMerge";
+			}
+
+			@Override
+			public long step() {
+				if (this.merging == null) {
+					synchronized (storage) {
+						if (storage.isClosed())
+							throw new IllegalStateException("storage closed");
+						OrderedIndex orderedIndex = storage.getOrderedIndex();
+						if (orderedIndex == null || !orderedIndex.beginMerge())
+							return -1;
+						this.merging = orderedIndex;
+					}
+				}
+
+				long n = this.merging.writeMerge(STEP_SIZE / 24);
+				if (n >= 0)
+					return n;
+				synchronized (storage) {
+					if (!storage.isClosed())
+						this.merging.finishMerge();
+				}
+				this.merging = null;
+				return -1;
+			}
+
+			@Override
+			public double getProgress() {
+				return -1;
+			}
+		};
+	}
+
+	// 日志段回收，每步在storage锁内回收一个段，没有可回收的段时本轮结束
+	public static MaintenanceTask logCompactionTask(final LogStorage storage,
+			final double maxLiveRatio) {
+		return new MaintenanceTask() {
+			@Override
+			public String getName() {
+				return "logCompaction";
+			}
+
+			@Override
+			public long step() throws StorageException {
+				int size;
+				synchronized (storage) {
+					size = storage.compact(maxLiveRatio);
+				}
+				return size == 0 ? -1 : size;
+			}
+
+			@Override
+			public double getProgress() {
+				return -1;
+			}
+		};
+	}
+
+	private long cpuTime() {
+		return this.threadBean.isCurrentThreadCpuTimeSupported() ? this.threadBean
+				.getCurrentThreadCpuTime() : System.nanoTime();
+	}
+
+	// 按本片用量推进两条预算时间线，返回下一片之前须等待的纳秒数
+	private synchronized long throttle(long bytes, long cpuNanos) {
+		long now = System.nanoTime();
+		long wait = 0;
+		long limit = this.bytesPerSec;
+		if (limit > 0) {
+			this.ioAvailableAt = Math.max(now, this.ioAvailableAt) + bytes
+					* 1000000000L / limit;
+			wait = this.ioAvailableAt - now;
+		}
+		// 占用cpuNanos后须空出cpuNanos*(100/cpuPercent-1)，才能保证占比
+		this.cpuAvailableAt = Math.max(now, this.cpuAvailableAt) + cpuNanos
+				* 100 / this.cpuPercent - cpuNanos;
+		wait = Math.max(wait, this.cpuAvailableAt - now);
+
+		updateBackoff(now);
+		if (this.backoff > 1)
+			wait = Math.max(wait, this.sliceNanos) * this.backoff;
+		return wait;
+	}
+
+	// 窗口结束时算p99，超过上限退让加倍，否则减半
+	private void updateBackoff(long now) {
+		if (now - this.windowStart < WINDOW_NANOS)
+			return;
+		this.windowStart = now;
+
+		long total = 0;
+		long[] counts = new long[LATENCY_BUCKETS];
+		for (int i = 0; i < LATENCY_BUCKETS; i++) {
+			counts[i] = this.latencies.getAndSet(i, 0);
+			total += counts[i];
+		}
+		long p99 = 0;
+		long seen = 0;
+		for (int i = 0; i < LATENCY_BUCKETS && total > 0; i++) {
+			seen += counts[i];
+			if (seen * 100 >= total * 99) {
+				p99 = i == 0 ? 0 : 1L << Math.min(62, i);
+				break;
+			}
+		}
+		this.lastP99Nanos = p99;
+
+		if (this.p99LimitNanos > 0 && p99 > this.p99LimitNanos)
+			this.backoff = Math.min(MAX_BACKOFF, this.backoff * 2);
+		else
+			this.backoff = Math.max(1, this.backoff / 2);
+	}
+
+	// 按数据文件分段处理，每步在storage锁内检查是否已关闭并处理一段
+	private static abstract class DataRangeTask implements MaintenanceTask {
+		private final Storage storage;
+		private final String name;
+		private int next;
+		private int offset;
+
+		DataRangeTask(Storage storage, String name) {
+			this.storage = storage;
+			this.name = name;
+		}
+
+		protected abstract void process(int idx, int offset, int len);
+
+		@Override
+		public String getName() {
+			return this.name;
+		}
+
+		@Override
+		public long step() {
+			synchronized (this.storage) {
+				if (this.storage.isClosed())
+					throw new IllegalStateException("storage closed");
+				for (;;) {
+					if (this.next >= this.storage.getDataFileNum()) {
+						this.next = 0;
+						this.offset = 0;
+						return -1;
+					}
+					long size = this.storage.getDataFileSize(this.next);
+					if (this.offset >= size) {
+						this.next++;
+						this.offset = 0;
+						continue;
+					}
+					int len = (int) Math.min(STEP_SIZE, size - this.offset);
+					process(this.next, this.offset, len);
+					this.offset += len;
+					return len;
+				}
+			}
+		}
+
+		@Override
+		public double getProgress() {
+			return (double) this.next / this.storage.getDataFileNum();
+		}
+	}
+
+	private class Entry implements Runnable {
+		private final MaintenanceTask task;
+		private final long intervalMs;
+		private volatile boolean cancelled;
+		private volatile String state = "waiting";
+		private volatile long rounds;
+		private volatile long steps;
+		private volatile long bytes;
+		private volatile long cpuNanos;
+		private volatile String lastError;
+
+		Entry(MaintenanceTask task, long intervalMs) {
+			this.task = task;
+			this.intervalMs = intervalMs;
+		}
+
+		TaskStatus status() {
+			TaskStatus status = new TaskStatus();
+			status.name = this.task.getName();
+			status.state = this.state;
+			status.progress = this.task.getProgress();
+			status.rounds = this.rounds;
+			status.steps = this.steps;
+			status.bytes = this.bytes;
+			status.cpuNanos = this.cpuNanos;
+			status.lastError = this.lastError;
+			return status;
+		}
+
+		// 执行一个时间片，然后按预算重新调度自己
+		@Override
+		public void run() {
+			if (this.cancelled)
+				return;
+
+			this.state = "running";
+			long start = System.nanoTime();
+			long cpuStart = cpuTime();
+			long sliceBytes = 0;
+			boolean roundDone = false;
+			try {
+				while (System.nanoTime() - start < sliceNanos) {
+					long n = this.task.step();
+					++this.steps;
+					if (n < 0) {
+						roundDone = true;
+						break;
+					}
+					sliceBytes += n;
+				}
+			} catch (StorageException e) {
+				this.lastError = e.getMessage();
+				System.out.println("maintenance task " + this.task.getName()
+						+ " failed: " + e.getMessage());
+				roundDone = true;
+			} catch (RuntimeException e) {
+				this.lastError = e.toString();
+				System.out.println("maintenance task " + this.task.getName()
+						+ " failed: " + e);
+				roundDone = true;
+			}
+			long sliceCpu = cpuTime() - cpuStart;
+			this.bytes += sliceBytes;
+			this.cpuNanos += sliceCpu;
+
+			long wait = throttle(sliceBytes, sliceCpu);
+			if (roundDone) {
+				++this.rounds;
+				if (this.intervalMs < 0) {
+					this.state = "done";
+					return;
+				}
+				wait = Math.max(wait, this.intervalMs * 1000000L);
+			}
+			if (this.cancelled || executor.isShutdown())
+				return;
+			this.state = backoff > 1 ? "backoff" : "waiting";
+			executor.schedule(this, wait, TimeUnit.NANOSECONDS);
+		}
+	}
+}
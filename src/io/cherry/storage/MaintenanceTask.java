@@ -0,0 +1,13 @@
+package io.cherry.storage;
+
+// 由MaintenanceScheduler分片执行的后台任务
+// step每次只做一小步并很快返回，需要storage锁的任务在step内自行加锁，锁只持有一步
+public interface MaintenanceTask {
+	String getName();
+
+	// 执行一小步，返回本步读写的字节数(用于带宽限制)；本轮已完成返回-1，下一轮从头开始
+	long step() throws StorageException;
+
+	// 本轮进度，0-1；无法估计时返回-1
+	double getProgress();
+}
@@ -0,0 +1,83 @@
+package io.cherry.storage;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+// 纯内存后端，索引和数据都放在堆外(direct)内存中，不对GC可见，不落盘
+// 数据区按块整块申请，进程退出即丢失，适用于临时缓存和测试
+// 注意堆外内存总量受-XX:MaxDirectMemorySize限制
+public class MemoryBackend implements StorageBackend {
+	private final String name;
+
+	public MemoryBackend(String name) {
+		this.name = name;
+	}
+
+	@Override
+	public String getName() {
+		return this.name;
+	}
+
+	@Override
+	public int getStripeNum() {
+		return 1;
+	}
+
+	@Override
+	public boolean hasIndex() {
+		return false;
+	}
+
+	@Override
+	public ByteBuffer openIndex(int size) {
+		return ByteBuffer.allocateDirect(size);
+	}
+
+	@Override
+	public ByteBuffer openData(int idx, int size) {
+		return ByteBuffer.allocateDirect(size);
+	}
+
+	@Override
+	public ByteBuffer openNewIndex(int size) {
+		return ByteBuffer.allocateDirect(size);
+	}
+
+	@Override
+	public void commitNewIndex() {
+	}
+
+	@Override
+	public void loadIndex() {
+	}
+
+	@Override
+	public void loadData(int idx) {
+	}
+
+	@Override
+	public void forceIndex() {
+	}
+
+	@Override
+	public void forceData(int idx) {
+	}
+
+	@Override
+	public void loadData(int idx, int offset, int len) {
+	}
+
+	@Override
+	public void forceData(int idx, int offset, int len) {
+	}
+
+	@Override
+	public File getDataFile(int idx) {
+		return null;
+	}
+
+	// 堆外内存由GC回收
+	@Override
+	public void close() {
+	}
+}
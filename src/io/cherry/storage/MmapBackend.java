@@ -0,0 +1,166 @@
+package io.cherry.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+// 基于mmap文件的后端，索引为prefixes[0].idx，第i块数据为prefixes[i % n].dat{i}
+// 第一次打开文件时对prefixes[0].lock加排它锁(写租约)，同一时刻只有一个进程能写，进程退出时自动释放
+// 同一进程内重复打开不受限制，由调用方自行同步
+public class MmapBackend implements StorageBackend {
+	private final String[] prefixes;
+	private MmapFile indexFile;
+	private MmapFile newIndexFile;
+	private MmapFile retiredIndexFile; // 扩容替换下来的索引，作废标记写完后才能解除映射
+	private final List<MmapFile> dataFiles = new ArrayList<MmapFile>();
+	private WriterLease lease;
+
+	// fileName不要加后缀
+	public MmapBackend(String fileName) {
+		this(new String[] { fileName });
+	}
+
+	public MmapBackend(String[] dirs, String name) {
+		this(Utils.getStripePrefixes(dirs, name));
+	}
+
+	MmapBackend(String[] prefixes) {
+		this.prefixes = prefixes;
+	}
+
+	@Override
+	public String getName() {
+		return this.prefixes[0];
+	}
+
+	@Override
+	public int getStripeNum() {
+		return this.prefixes.length;
+	}
+
+	@Override
+	public boolean hasIndex() {
+		return new File(this.prefixes[0] + ".idx").exists();
+	}
+
+	@Override
+	public ByteBuffer openIndex(int size) throws IOException {
+		lease();
+		MmapFile file = new MmapFile(new File(this.prefixes[0] + ".idx"),
+				size);
+		// 打开时先只映射头部读配置，重新映射后旧的映射不再使用
+		if (this.indexFile != null)
+			this.indexFile.close();
+		this.indexFile = file;
+		return file.getBuffer();
+	}
+
+	@Override
+	public ByteBuffer openData(int idx, int size) throws IOException {
+		lease();
+		MmapFile file = new MmapFile(new File(Storage.getDataFileName(this.prefixes,
+				idx)), size);
+		while (this.dataFiles.size() <= idx) {
+			this.dataFiles.add(null);
+		}
+		MmapFile old = this.dataFiles.set(idx, file);
+		if (old != null)
+			old.close();
+		return file.getBuffer();
+	}
+
+	// 新索引先写到.idx.tmp，提交时原子改名为.idx
+	@Override
+	public ByteBuffer openNewIndex(int size) throws IOException {
+		File f = new File(this.prefixes[0] + ".idx.tmp");
+		Files.deleteIfExists(f.toPath());
+		this.newIndexFile = new MmapFile(f, size);
+		return this.newIndexFile.getBuffer();
+	}
+
+	@Override
+	public void commitNewIndex() throws IOException {
+		this.newIndexFile.forceWrite();
+		Files.move(new File(this.prefixes[0] + ".idx.tmp").toPath(), new File(
+				this.prefixes[0] + ".idx").toPath(),
+				StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		if (this.retiredIndexFile != null)
+			this.retiredIndexFile.close();
+		this.retiredIndexFile = this.indexFile;
+		this.indexFile = this.newIndexFile;
+		this.newIndexFile = null;
+	}
+
+	// 本进程已持有写租约时共享同一个(见WriterLease)
+	private void lease() throws IOException {
+		if (this.lease == null)
+			this.lease = WriterLease.acquire(getLeaseFileName(this.prefixes[0]));
+	}
+
+	static String getLeaseFileName(String prefix) {
+		return prefix + ".lock";
+	}
+
+	@Override
+	public void loadIndex() {
+		this.indexFile.load();
+	}
+
+	@Override
+	public void loadData(int idx) {
+		this.dataFiles.get(idx).load();
+	}
+
+	@Override
+	public void forceIndex() {
+		this.indexFile.forceWrite();
+	}
+
+	@Override
+	public void forceData(int idx) {
+		this.dataFiles.get(idx).forceWrite();
+	}
+
+	@Override
+	public void loadData(int idx, int offset, int len) {
+		this.dataFiles.get(idx).load(offset, len);
+	}
+
+	@Override
+	public void forceData(int idx, int offset, int len) {
+		this.dataFiles.get(idx).forceWrite(offset, len);
+	}
+
+	@Override
+	public File getDataFile(int idx) {
+		return new File(Storage.getDataFileName(this.prefixes, idx));
+	}
+
+	// 解除所有映射，释放写租约
+	@Override
+	public void close() throws IOException {
+		for (int i = 0; i < this.dataFiles.size(); i++) {
+			if (this.dataFiles.get(i) != null)
+				this.dataFiles.get(i).close();
+		}
+		this.dataFiles.clear();
+		if (this.indexFile != null)
+			this.indexFile.close();
+		if (this.newIndexFile != null)
+			this.newIndexFile.close();
+		if (this.retiredIndexFile != null)
+			this.retiredIndexFile.close();
+		this.indexFile = null;
+		this.newIndexFile = null;
+		this.retiredIndexFile = null;
+		if (this.lease != null) {
+			this.lease.release();
+			this.lease = null;
+		}
+	}
+}
@@ -3,6 +3,8 @@ package io.cherry.storage;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
 import java.nio.IntBuffer;
 import java.nio.MappedByteBuffer;
@@ -10,11 +12,45 @@ import java.nio.channels.FileChannel;
 import java.nio.channels.FileChannel.MapMode;
 
 // 注意:单个文件只支持最大2G
-public class MmapFile {
+// 默认close只丢弃引用，映射在借出的ByteBuffer都被GC回收后才解除，关闭前借出的ByteBuffer(getByteBuffer、scan、
+// 零拷贝发送等)继续可以访问，不会崩溃
+// -Dcherry.storage.unmapOnClose=true时close立即解除映射，不依赖GC，调用方须保证之后不再访问借出的ByteBuffer
+public class MmapFile implements AutoCloseable {
+	private static final boolean UNMAP_ON_CLOSE = Boolean
+			.getBoolean("cherry.storage.unmapOnClose");
+	private static final Object UNSAFE;
+	private static final Method INVOKE_CLEANER;
+
+	static {
+		Object unsafe = null;
+		Method invokeCleaner = null;
+		if (UNMAP_ON_CLOSE) {
+			try {
+				Class<?> clazz = Class.forName("sun.misc.Unsafe");
+				Field f = clazz.getDeclaredField("theUnsafe");
+				f.setAccessible(true);
+				unsafe = f.get(null);
+				invokeCleaner = clazz.getMethod("invokeCleaner",
+						ByteBuffer.class);
+			} catch (Exception e) {
+				System.out.println("unmap not supported, mappings are released by gc: "
+						+ e);
+			}
+		}
+		UNSAFE = unsafe;
+		INVOKE_CLEANER = invokeCleaner;
+	}
+
 	private final int totalSize;
 	private MappedByteBuffer buffer;
 
 	public MmapFile(File mmapfile, int totalSize) throws IOException {
+		this(mmapfile, totalSize, false);
+	}
+
+	// 只读映射不会扩展文件，文件须已存在且不小于totalSize
+	public MmapFile(File mmapfile, int totalSize, boolean readOnly)
+			throws IOException {
 		if (mmapfile == null || totalSize <= 0)
 			throw new IllegalArgumentException("parameter err: [mmapfile: "
 					+ mmapfile + ", totalSize: " + totalSize + "]");
@@ -22,31 +58,46 @@ public class MmapFile {
 		this.totalSize = totalSize;
 
 		// mapping file
-		RandomAccessFile raf = new RandomAccessFile(mmapfile, "rw");
+		RandomAccessFile raf = new RandomAccessFile(mmapfile, readOnly ? "r"
+				: "rw");
 		FileChannel channel = raf.getChannel();
-		this.buffer = mapFile(channel, MapMode.READ_WRITE, 0, totalSize);
-		channel.close();
-		raf.close();
-	}
-
-	private MappedByteBuffer mapFile(FileChannel channel, MapMode mode,
-			int position, int size) throws IOException {
-		MappedByteBuffer buff = null;
 		try {
-			buff = channel.map(mode, position, size);
-		} catch (IOException e) {
-			System.out.println("map file failed, gc and try again.");
-			System.gc(); // free file
-			// try again
-			buff = channel.map(mode, position, size);
+			this.buffer = channel.map(readOnly ? MapMode.READ_ONLY
+					: MapMode.READ_WRITE, 0, totalSize);
+		} finally {
+			channel.close();
+			raf.close();
 		}
-		return buff;
 	}
 
 	public ByteBuffer getBuffer() {
+		if (this.buffer == null)
+			throw new IllegalStateException("mmap file closed");
 		return this.buffer.duplicate();
 	}
 
+	public boolean isClosed() {
+		return this.buffer == null;
+	}
+
+	// 之后getBuffer抛IllegalStateException；开启unmapOnClose时再访问之前getBuffer得到的ByteBuffer会导致进程崩溃
+	// 脏页仍在页缓存中，由操作系统写回，需要落盘的先调用forceWrite
+	@Override
+	public void close() {
+		MappedByteBuffer buff = this.buffer;
+		if (buff == null)
+			return;
+
+		this.buffer = null;
+		if (INVOKE_CLEANER == null)
+			return;
+		try {
+			INVOKE_CLEANER.invoke(UNSAFE, buff);
+		} catch (Exception e) {
+			System.out.println("unmap failed: " + e);
+		}
+	}
+
 	public int getTotalSize() {
 		return this.totalSize;
 	}
@@ -61,6 +112,24 @@ public class MmapFile {
 			this.buffer.force();
 	}
 
+	// 把文件内容读入内存
+	public void load() {
+		if (this.buffer != null)
+			this.buffer.load();
+	}
+
+	// 只刷[offset, offset + len)
+	public void forceWrite(int offset, int len) {
+		if (this.buffer != null)
+			this.buffer.force(offset, len);
+	}
+
+	// 只把[offset, offset + len)读入内存
+	public void load(int offset, int len) {
+		if (this.buffer != null)
+			this.buffer.slice(offset, len).load();
+	}
+
 	public static void main(String[] args) throws IOException {
 		MmapFile mf = new MmapFile(new File(
 				"~/dev/cherry-storage/test.m"),
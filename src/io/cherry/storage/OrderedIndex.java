@@ -0,0 +1,579 @@
+package io.cherry.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+// 有序索引: key->数据块位置，按key有序，用于范围查询，由Storage.setOrderedIndex挂上后在插入/删除时维护
+// 有序段+增量日志结构:
+// fileName.ord: [int version][int 当前有序段(0/1)][int 日志0条数][int 日志容量][int 一致性标记][int 当前日志(0/1)][int 日志1条数][int 保留]
+//   然后是两个增量日志区，每条[long key][int pos]，pos为0表示删除
+// fileName.ord0/ord1: 有序段，[int 条数]，然后按key升序的[long key][int pos]
+// 修改先追加到当前日志(内存中另有一份TreeMap)，归并时冻结当前日志、改写另一个日志，
+// 冻结的日志与当前有序段归并写到另一个有序段，再切换有序段，最后清空冻结的日志
+// 归并中途退出时依次重放两个日志即可，日志中的操作可重复执行
+// 范围查询二分定位有序段起点，与增量归并输出，O(log n + k)；归并O(n)，摊到每次修改为O(n / 日志容量)
+// 归并可由MaintenanceScheduler.orderedIndexMergeTask在后台分步执行(不持有storage锁)；
+// 没有后台任务或后台跟不上、当前日志写满时，在put/remove中同步归并，会阻塞这次写入O(n)的时间
+// 一致性标记由Storage写入(数据区的写序号)，挂上时不一致说明有未同步到有序索引的修改，需要重建
+// 非线程安全，由所属Storage的锁保护；后台归并见beginMerge/writeMerge/finishMerge
+public class OrderedIndex implements AutoCloseable {
+	public static final int ORDERED_VERSION = 0x3801;
+	public static final int DEFAULT_DELTA_NUM = 65536;
+	private static final int HEADER_SIZE = 32;
+	private static final int UNIT_SIZE = 12;
+	private static final int RUN_HEADER_SIZE = 4;
+	private static final int MERGE_NONE = 0;
+	private static final int MERGE_WRITING = 1;
+	private static final int MERGE_WRITTEN = 2;
+	private static final int MERGE_FAILED = 3;
+
+	// 范围遍历回调，返回false停止遍历
+	public interface Visitor {
+		boolean visit(long key, int pos);
+	}
+
+	private final String fileName;
+	private final MmapFile headerFile;
+	private final ByteBuffer header;
+	private final int deltaCap;
+	private final MmapFile[] runFiles = new MmapFile[2];
+	private final ByteBuffer[] runBuffers = new ByteBuffer[2];
+	// 不在当前有序段中的所有修改
+	private TreeMap<Long, Integer> delta = new TreeMap<Long, Integer>();
+	// 后台归并期间冻结之后的修改，归并完成后成为delta
+	private TreeMap<Long, Integer> recent;
+	private int active;
+	private int activeLog;
+	private int runNum;
+	private int size;
+	private long mergeNum;
+	private volatile boolean closed;
+
+	// 后台归并状态和归并进度，mergeLock保护；每步归并在mergeLock内进行
+	private final Object mergeLock = new Object();
+	private int mergeState = MERGE_NONE;
+	private boolean mergePrepared;
+	private int mergeCapacity;
+	private Iterator<Map.Entry<Long, Integer>> mergeIt;
+	private Map.Entry<Long, Integer> mergeEntry;
+	private int mergeTarget;
+	private int mergeRunNum;
+	private int mergeIdx;
+	private int mergeCount;
+
+	// fileName不要加后缀；deltaNum为日志容量，已存在时以文件中的为准
+	public OrderedIndex(String fileName, int deltaNum) throws StorageException,
+			IOException {
+		if (deltaNum <= 0 || deltaNum > (Integer.MAX_VALUE - HEADER_SIZE)
+				/ UNIT_SIZE / 2)
+			throw new IllegalArgumentException("argument err. deltaNum:"
+					+ deltaNum);
+
+		this.fileName = fileName;
+		File f = new File(fileName + ".ord");
+		boolean needInit = !f.exists();
+		if (!needInit) {
+			MmapFile tmp = new MmapFile(f, HEADER_SIZE);
+			deltaNum = tmp.getBuffer().getInt(12);
+			tmp.close();
+		}
+		this.headerFile = new MmapFile(f, HEADER_SIZE + 2 * deltaNum
+				* UNIT_SIZE);
+		this.header = this.headerFile.getBuffer();
+		if (needInit) {
+			this.header.putInt(4, 0);
+			this.header.putInt(8, 0);
+			this.header.putInt(12, deltaNum);
+			this.header.putInt(16, 0);
+			this.header.putInt(20, 0);
+			this.header.putInt(24, 0);
+			this.header.putInt(0, ORDERED_VERSION);
+		} else if (this.header.getInt(0) != ORDERED_VERSION) {
+			throw new StorageException("OrderedIndex check failed: version="
+					+ Integer.toHexString(this.header.getInt(0)));
+		}
+		this.deltaCap = deltaNum;
+		this.active = this.header.getInt(4);
+		this.activeLog = this.header.getInt(20);
+
+		openRun(this.active, 0);
+		this.runNum = this.runBuffers[this.active] == null ? 0
+				: this.runBuffers[this.active].getInt(0);
+		this.size = this.runNum;
+
+		// 先重放冻结的日志再重放当前日志；有冻结的日志说明上次归并没有完成，直接归并
+		int frozen = 1 - this.activeLog;
+		replay(frozen);
+		replay(this.activeLog);
+		if (logNum(frozen) > 0)
+			mergeAll();
+	}
+
+	public OrderedIndex(String fileName) throws StorageException, IOException {
+		this(fileName, DEFAULT_DELTA_NUM);
+	}
+
+	public int size() {
+		return this.size;
+	}
+
+	public boolean isEmpty() {
+		return this.size == 0;
+	}
+
+	public long getMergeNum() {
+		return this.mergeNum;
+	}
+
+	// 一致性标记，见Storage.setOrderedIndex
+	public int getStamp() {
+		return this.header.getInt(16);
+	}
+
+	public void setStamp(int stamp) {
+		this.header.putInt(16, stamp);
+	}
+
+	// 不存在返回-1
+	public int get(long key) {
+		Integer pos = this.delta.get(key);
+		if (pos != null)
+			return pos > 0 ? pos : -1;
+		int idx = search(key);
+		return idx < this.runNum && runKey(idx) == key ? runPos(idx) : -1;
+	}
+
+	public void put(long key, int pos) throws StorageException {
+		if (key <= 0 || pos <= 0)
+			throw new IllegalArgumentException("argument err. key:" + key
+					+ ", pos:" + pos);
+		log(key, pos);
+	}
+
+	public void remove(long key) throws StorageException {
+		if (get(key) > 0)
+			log(key, 0);
+	}
+
+	// 按key升序遍历[fromKey, toKey)
+	public void range(long fromKey, long toKey, Visitor visitor) {
+		if (fromKey >= toKey)
+			return;
+
+		Iterator<Map.Entry<Long, Integer>> it = this.delta.subMap(fromKey,
+				toKey).entrySet().iterator();
+		Map.Entry<Long, Integer> d = it.hasNext() ? it.next() : null;
+		int idx = search(fromKey);
+		for (;;) {
+			long runKey = idx < this.runNum ? runKey(idx) : Long.MAX_VALUE;
+			if (runKey >= toKey)
+				runKey = Long.MAX_VALUE;
+			if (d == null && runKey == Long.MAX_VALUE)
+				return;
+
+			if (d != null && d.getKey() <= runKey) {
+				// 增量覆盖有序段中相同的key
+				if (d.getKey() == runKey)
+					idx++;
+				if (d.getValue() > 0 && !visitor.visit(d.getKey(), d.getValue()))
+					return;
+				d = it.hasNext() ? it.next() : null;
+			} else {
+				if (!visitor.visit(runKey, runPos(idx)))
+					return;
+				idx++;
+			}
+		}
+	}
+
+	// 按数据块重建，keys[pos]为pos处的key，0表示空闲；进行中的后台归并作废
+	public void rebuild(long[] keys) throws StorageException {
+		abortMerge();
+		int num = 0;
+		for (int pos = 1; pos < keys.length; pos++) {
+			if (keys[pos] > 0)
+				num++;
+		}
+		long[] sortedKeys = new long[num];
+		int[] poss = new int[num];
+		num = 0;
+		for (int pos = 1; pos < keys.length; pos++) {
+			if (keys[pos] > 0) {
+				sortedKeys[num] = keys[pos];
+				poss[num++] = pos;
+			}
+		}
+		sort(sortedKeys, poss, 0, num - 1);
+
+		int target = 1 - this.active;
+		ByteBuffer bb = prepareRun(target, num);
+		int n = 0;
+		for (int i = 0; i < num; i++) {
+			// 数据损坏时可能有重复的key，只保留一个
+			if (n > 0 && sortedKeys[i] == bb.getLong(RUN_HEADER_SIZE + (n - 1)
+					* UNIT_SIZE))
+				continue;
+			bb.putLong(RUN_HEADER_SIZE + n * UNIT_SIZE, sortedKeys[i]);
+			bb.putInt(RUN_HEADER_SIZE + n * UNIT_SIZE + 8, poss[i]);
+			n++;
+		}
+		switchRun(target, n);
+		clearLogs();
+		this.size = n;
+	}
+
+	public void flush() {
+		this.headerFile.forceWrite();
+		for (int i = 0; i < 2; i++) {
+			if (this.runFiles[i] != null)
+				this.runFiles[i].forceWrite();
+		}
+	}
+
+	// 未完成的后台归并作废(等正在进行的一步结束后再解除映射)，重新打开时重放日志
+	@Override
+	public void close() {
+		if (this.closed)
+			return;
+
+		abortMerge();
+		this.closed = true;
+		this.headerFile.close();
+		for (int i = 0; i < 2; i++) {
+			if (this.runFiles[i] != null)
+				this.runFiles[i].close();
+			this.runFiles[i] = null;
+			this.runBuffers[i] = null;
+		}
+	}
+
+	@Override
+	public String toString() {
+		if (this.closed)
+			return "OrderedIndex [" + this.fileName + "] closed";
+		return "OrderedIndex [" + this.fileName + "] size=" + this.size
+				+ ", run=" + this.runNum + ", delta=" + this.delta.size()
+				+ ", log=" + logNum(this.activeLog) + "/" + this.deltaCap
+				+ ", frozen=" + logNum(1 - this.activeLog) + ", merge="
+				+ this.mergeNum;
+	}
+
+	// 后台归并第一步，持storage锁调用: 当前日志超过一半时冻结并开始归并，返回true
+	// 上次归并失败留下的冻结日志还不能覆盖，等日志写满时同步归并
+	boolean beginMerge() {
+		synchronized (this.mergeLock) {
+			if (this.mergeState != MERGE_NONE)
+				return false;
+		}
+		if (this.closed || logNum(this.activeLog) < (this.deltaCap + 1) / 2
+				|| logNum(1 - this.activeLog) > 0)
+			return false;
+
+		int next = 1 - this.activeLog;
+		this.header.putInt(logNumOffset(next), 0);
+		this.header.putInt(20, next);
+		this.activeLog = next;
+		this.recent = new TreeMap<Long, Integer>();
+		synchronized (this.mergeLock) {
+			this.mergeIt = new TreeMap<Long, Integer>(this.delta).entrySet()
+					.iterator();
+			this.mergeEntry = this.mergeIt.hasNext() ? this.mergeIt.next()
+					: null;
+			this.mergeTarget = 1 - this.active;
+			this.mergeRunNum = this.runNum;
+			this.mergeCapacity = this.runNum + this.delta.size();
+			this.mergeIdx = 0;
+			this.mergeCount = 0;
+			this.mergePrepared = false;
+			this.mergeState = MERGE_WRITING;
+		}
+		return true;
+	}
+
+	// 后台归并第二步，不需要storage锁: 最多归并maxNum条，返回处理的字节数，写完或已作废返回-1
+	// 只读当前有序段和冻结时的增量拷贝，只写另一个有序段，与持storage锁的读写互不影响
+	long writeMerge(int maxNum) {
+		synchronized (this.mergeLock) {
+			if (this.mergeState != MERGE_WRITING)
+				return -1;
+			try {
+				if (!this.mergePrepared) {
+					prepareRun(this.mergeTarget, this.mergeCapacity);
+					this.mergePrepared = true;
+				}
+				int n = mergeSome(maxNum);
+				if (this.mergeIdx < this.mergeRunNum || this.mergeEntry != null)
+					return (long) n * UNIT_SIZE * 2;
+				this.runBuffers[this.mergeTarget].putInt(0, this.mergeCount);
+				this.mergeState = MERGE_WRITTEN;
+				return -1;
+			} catch (StorageException e) {
+				failMerge(e);
+				return -1;
+			} catch (RuntimeException e) {
+				failMerge(e);
+				throw e;
+			}
+		}
+	}
+
+	// 后台归并第三步，持storage锁调用: 切换到新的有序段并清空冻结的日志，返回是否已切换
+	boolean finishMerge() {
+		if (this.closed)
+			return false;
+		synchronized (this.mergeLock) {
+			if (this.mergeState == MERGE_NONE
+					|| this.mergeState == MERGE_WRITING)
+				return false;
+
+			this.mergeIt = null;
+			this.mergeEntry = null;
+			if (this.mergeState == MERGE_FAILED) {
+				// 冻结的日志仍有效，下次同步全部归并
+				this.recent = null;
+				this.mergeState = MERGE_NONE;
+				return false;
+			}
+
+			switchRun(this.mergeTarget, this.mergeCount);
+			this.header.putInt(logNumOffset(1 - this.activeLog), 0);
+			this.delta = this.recent;
+			this.recent = null;
+			this.mergeNum++;
+			this.mergeState = MERGE_NONE;
+			return true;
+		}
+	}
+
+	// 先写日志再改计数；当前日志已满时先完成归并(后台没做完的在这里接着做)腾出空间
+	private void log(long key, int pos) throws StorageException {
+		if (logNum(this.activeLog) >= this.deltaCap) {
+			writeMerge(Integer.MAX_VALUE);
+			finishMerge();
+			if (logNum(this.activeLog) >= this.deltaCap
+					|| logNum(1 - this.activeLog) > 0)
+				mergeAll();
+		}
+
+		int num = logNum(this.activeLog);
+		int offset = logOffset(this.activeLog, num);
+		this.header.putLong(offset, key);
+		this.header.putInt(offset + 8, pos);
+		this.header.putInt(logNumOffset(this.activeLog), num + 1);
+		apply(key, pos);
+	}
+
+	private void apply(long key, int pos) {
+		boolean existed = get(key) > 0;
+		this.delta.put(key, pos);
+		if (this.recent != null)
+			this.recent.put(key, pos);
+		if (pos > 0 && !existed)
+			this.size++;
+		else if (pos == 0 && existed)
+			this.size--;
+	}
+
+	private void replay(int log) {
+		int num = logNum(log);
+		for (int i = 0; i < num; i++) {
+			int offset = logOffset(log, i);
+			apply(this.header.getLong(offset), this.header.getInt(offset + 8));
+		}
+	}
+
+	// 同步把当前有序段与全部增量归并到另一个有序段，清空两个日志
+	private void mergeAll() throws StorageException {
+		abortMerge();
+		this.mergeIt = this.delta.entrySet().iterator();
+		this.mergeEntry = this.mergeIt.hasNext() ? this.mergeIt.next() : null;
+		this.mergeTarget = 1 - this.active;
+		this.mergeRunNum = this.runNum;
+		this.mergeIdx = 0;
+		this.mergeCount = 0;
+		prepareRun(this.mergeTarget, this.runNum + this.delta.size());
+		mergeSome(Integer.MAX_VALUE);
+		this.mergeIt = null;
+		this.mergeEntry = null;
+		switchRun(this.mergeTarget, this.mergeCount);
+		clearLogs();
+		this.size = this.mergeCount;
+		this.mergeNum++;
+	}
+
+	// 有序段[mergeIdx, mergeRunNum)与mergeIt归并，追加到目标有序段，最多处理maxNum条
+	private int mergeSome(int maxNum) {
+		ByteBuffer bb = this.runBuffers[this.mergeTarget];
+		int processed = 0;
+		for (; processed < maxNum; processed++) {
+			long key;
+			int pos;
+			if (this.mergeIdx < this.mergeRunNum
+					&& (this.mergeEntry == null || runKey(this.mergeIdx) < this.mergeEntry
+							.getKey())) {
+				key = runKey(this.mergeIdx);
+				pos = runPos(this.mergeIdx);
+				this.mergeIdx++;
+			} else if (this.mergeEntry != null) {
+				if (this.mergeIdx < this.mergeRunNum
+						&& runKey(this.mergeIdx) == this.mergeEntry.getKey())
+					this.mergeIdx++;
+				key = this.mergeEntry.getKey();
+				pos = this.mergeEntry.getValue();
+				this.mergeEntry = this.mergeIt.hasNext() ? this.mergeIt.next()
+						: null;
+			} else {
+				break;
+			}
+			if (pos <= 0)
+				continue;
+			bb.putLong(RUN_HEADER_SIZE + this.mergeCount * UNIT_SIZE, key);
+			bb.putInt(RUN_HEADER_SIZE + this.mergeCount * UNIT_SIZE + 8, pos);
+			this.mergeCount++;
+		}
+		return processed;
+	}
+
+	// 作废进行中的后台归并(等正在进行的一步结束)，冻结日志中的修改仍在delta中
+	private void abortMerge() {
+		synchronized (this.mergeLock) {
+			this.mergeIt = null;
+			this.mergeEntry = null;
+			this.recent = null;
+			this.mergeState = MERGE_NONE;
+		}
+	}
+
+	private void failMerge(Exception e) {
+		System.out.println("OrderedIndex merge failed: " + e);
+		this.mergeState = MERGE_FAILED;
+	}
+
+	private void clearLogs() {
+		this.header.putInt(8, 0);
+		this.header.putInt(24, 0);
+		this.delta = new TreeMap<Long, Integer>();
+		this.recent = null;
+	}
+
+	private int logNum(int log) {
+		return this.header.getInt(logNumOffset(log));
+	}
+
+	private static int logNumOffset(int log) {
+		return log == 0 ? 8 : 24;
+	}
+
+	private int logOffset(int log, int idx) {
+		return HEADER_SIZE + (log * this.deltaCap + idx) * UNIT_SIZE;
+	}
+
+	// 切换当前有序段；之后清空日志前退出时重放日志结果不变
+	private void switchRun(int target, int num) {
+		this.runBuffers[target].putInt(0, num);
+		this.header.putInt(4, target);
+		this.active = target;
+		this.runNum = num;
+	}
+
+	// 保证有序段能放下num条，不够时重新映射(多留1/4)
+	private ByteBuffer prepareRun(int idx, int num) throws StorageException {
+		long need = RUN_HEADER_SIZE + (long) num * UNIT_SIZE;
+		if (need > Integer.MAX_VALUE)
+			throw new StorageException("OrderedIndex too large: " + num);
+		if (this.runFiles[idx] == null
+				|| this.runFiles[idx].getTotalSize() < need) {
+			if (this.runFiles[idx] != null)
+				this.runFiles[idx].close();
+			this.runFiles[idx] = null;
+			this.runBuffers[idx] = null;
+			openRun(idx, (int) Math.min(Integer.MAX_VALUE, need + need / 4));
+		}
+		return this.runBuffers[idx];
+	}
+
+	// size为0时按文件大小映射，文件不存在则不映射
+	private void openRun(int idx, int size) throws StorageException {
+		File f = new File(this.fileName + ".ord" + idx);
+		if (size <= 0) {
+			if (!f.exists() || f.length() < RUN_HEADER_SIZE)
+				return;
+			size = (int) Math.min(Integer.MAX_VALUE, f.length());
+		}
+		try {
+			this.runFiles[idx] = new MmapFile(f, size);
+		} catch (IOException e) {
+			throw new StorageException("OrderedIndex open failed: "
+					+ f.getPath(), e);
+		}
+		this.runBuffers[idx] = this.runFiles[idx].getBuffer();
+	}
+
+	// 有序段中第一个不小于key的下标
+	private int search(long key) {
+		int lo = 0;
+		int hi = this.runNum;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (runKey(mid) < key)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	private long runKey(int idx) {
+		return this.runBuffers[this.active].getLong(RUN_HEADER_SIZE + idx
+				* UNIT_SIZE);
+	}
+
+	private int runPos(int idx) {
+		return this.runBuffers[this.active].getInt(RUN_HEADER_SIZE + idx
+				* UNIT_SIZE + 8);
+	}
+
+	// keys与poss同步排序
+	private static void sort(long[] keys, int[] poss, int lo, int hi) {
+		while (hi - lo > 16) {
+			long pivot = keys[(lo + hi) >>> 1];
+			int i = lo;
+			int j = hi;
+			while (i <= j) {
+				while (keys[i] < pivot)
+					i++;
+				while (keys[j] > pivot)
+					j--;
+				if (i <= j) {
+					swap(keys, poss, i++, j--);
+				}
+			}
+			// 先递归小的一半，控制栈深度
+			if (j - lo < hi - i) {
+				sort(keys, poss, lo, j);
+				lo = i;
+			} else {
+				sort(keys, poss, i, hi);
+				hi = j;
+			}
+		}
+		for (int i = lo + 1; i <= hi; i++) {
+			for (int j = i; j > lo && keys[j - 1] > keys[j]; j--) {
+				swap(keys, poss, j - 1, j);
+			}
+		}
+	}
+
+	private static void swap(long[] keys, int[] poss, int i, int j) {
+		long k = keys[i];
+		keys[i] = keys[j];
+		keys[j] = k;
+		int p = poss[i];
+		poss[i] = poss[j];
+		poss[j] = p;
+	}
+}
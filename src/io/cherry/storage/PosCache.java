@@ -0,0 +1,155 @@
+package io.cherry.storage;
+
+import java.util.Arrays;
+
+// key->数据块位置的缓存，放在Index前面，命中时不用查索引，通过Storage.setPosCache开启
+// 开放寻址(线性探测)，key和位置存在基本类型数组里，没有装箱；满了按CLOCK淘汰(命中时置访问位)
+// 缓存的位置可能已过期，使用方须用数据块中的key校验；删除时调用remove
+// 每个Storage单独一个，非线程安全，与所属Storage一起加锁
+public class PosCache {
+	private final long[] keys; // 0为空
+	private final int[] positions;
+	private final long[] refBits;
+	private final int mask;
+	private final int maxSize;
+	private int size;
+	private int hand;
+	private long hitNum;
+	private long missNum;
+
+	// 表的大小为maxSize两倍以上的2的幂，装载率不超过一半
+	public PosCache(int maxSize) {
+		if (maxSize <= 0 || maxSize > (1 << 29))
+			throw new IllegalArgumentException("argument err. maxSize:"
+					+ maxSize);
+
+		int capacity = Math.max(16, Integer.highestOneBit(maxSize * 2 - 1) << 1);
+		this.keys = new long[capacity];
+		this.positions = new int[capacity];
+		this.refBits = new long[(capacity + 63) >>> 6];
+		this.mask = capacity - 1;
+		this.maxSize = maxSize;
+	}
+
+	// 不存在返回-1
+	public int get(long key) {
+		for (int i = home(key);; i = (i + 1) & this.mask) {
+			long k = this.keys[i];
+			if (k == 0) {
+				this.missNum++;
+				return -1;
+			}
+			if (k == key) {
+				this.refBits[i >>> 6] |= 1L << i;
+				this.hitNum++;
+				return this.positions[i];
+			}
+		}
+	}
+
+	public void put(long key, int pos) {
+		if (key == 0)
+			throw new IllegalArgumentException("key must not be 0");
+
+		int i = find(key);
+		if (this.keys[i] == key) {
+			this.positions[i] = pos;
+			return;
+		}
+		if (this.size >= this.maxSize) {
+			evict();
+			i = find(key);
+		}
+		this.keys[i] = key;
+		this.positions[i] = pos;
+		this.size++;
+	}
+
+	public void remove(long key) {
+		int i = find(key);
+		if (this.keys[i] == key)
+			removeAt(i);
+	}
+
+	public void clear() {
+		Arrays.fill(this.keys, 0);
+		Arrays.fill(this.refBits, 0);
+		this.size = 0;
+	}
+
+	public int size() {
+		return this.size;
+	}
+
+	public long getHitNum() {
+		return this.hitNum;
+	}
+
+	public long getMissNum() {
+		return this.missNum;
+	}
+
+	@Override
+	public String toString() {
+		long total = this.hitNum + this.missNum;
+		return "PosCache [size=" + this.size + " , maxSize=" + this.maxSize
+				+ " , hit=" + this.hitNum + " , miss=" + this.missNum
+				+ " , hitRate=" + (total == 0 ? 0 : this.hitNum * 100 / total)
+				+ "%]";
+	}
+
+	private int home(long key) {
+		return (int) Utils.mix64(key) & this.mask;
+	}
+
+	// key所在的位置，不存在时返回探测到的第一个空位
+	private int find(long key) {
+		int i = home(key);
+		while (this.keys[i] != key && this.keys[i] != 0) {
+			i = (i + 1) & this.mask;
+		}
+		return i;
+	}
+
+	// CLOCK: 访问位已置上的清掉跳过，淘汰第一个没有访问位的
+	private void evict() {
+		for (;;) {
+			int i = this.hand;
+			this.hand = (i + 1) & this.mask;
+			if (this.keys[i] == 0)
+				continue;
+
+			long bit = 1L << i;
+			if ((this.refBits[i >>> 6] & bit) != 0) {
+				this.refBits[i >>> 6] &= ~bit;
+				continue;
+			}
+			removeAt(i);
+			return;
+		}
+	}
+
+	// 线性探测的删除: 把后面探测链上能前移的元素移到空位，不留墓碑
+	private void removeAt(int i) {
+		this.size--;
+		for (int j = (i + 1) & this.mask; this.keys[j] != 0; j = (j + 1)
+				& this.mask) {
+			// j处的元素从home探测到j时经过i，才能移到i
+			if (((j - home(this.keys[j])) & this.mask) >= ((j - i) & this.mask)) {
+				this.keys[i] = this.keys[j];
+				this.positions[i] = this.positions[j];
+				setRef(i, (this.refBits[j >>> 6] & (1L << j)) != 0);
+				i = j;
+			}
+		}
+		this.keys[i] = 0;
+		setRef(i, false);
+	}
+
+	private void setRef(int i, boolean ref) {
+		if (ref)
+			this.refBits[i >>> 6] |= 1L << i;
+		else
+			this.refBits[i >>> 6] &= ~(1L << i);
+	}
+}
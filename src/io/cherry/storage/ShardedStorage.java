@@ -0,0 +1,451 @@
+package io.cherry.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongConsumer;
+
+// 按key分片到多个独立的Storage，每个分片有自己的索引、空闲链和统计
+// 分片之间互不影响，每个分片以Storage对象自身作为锁，可被多线程并发访问
+// 批量操作和遍历会按分片拆开并行执行
+public class ShardedStorage implements AutoCloseable {
+	private final String fileName;
+	private final Storage[] shards;
+	private final ExecutorService executor;
+
+	// fileName不要加后缀，第i个分片的文件名为fileName_i
+	// dataNum和dataSize均为单个分片的配置
+	public ShardedStorage(String fileName, int shardNum, int dataNum,
+			int dataSize) throws StorageException, IOException {
+		if (shardNum <= 0)
+			throw new IllegalArgumentException("argument err. shardNum:"
+					+ shardNum);
+
+		this.fileName = fileName;
+		this.shards = new Storage[shardNum];
+		for (int i = 0; i < shardNum; i++) {
+			this.shards[i] = new Storage(fileName + "_" + i, dataNum, dataSize);
+		}
+
+		int threadNum = Math.min(shardNum, Runtime.getRuntime()
+				.availableProcessors());
+		this.executor = Executors.newFixedThreadPool(threadNum,
+				new ThreadFactory() {
+					private final AtomicInteger seq = new AtomicInteger();
+
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "sharded-storage-"
+								+ seq.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					}
+				});
+	}
+
+	public int getShardNum() {
+		return this.shards.length;
+	}
+
+	public Storage getShard(int idx) {
+		return this.shards[idx];
+	}
+
+	// 所有分片共用一个热点key统计；null为关闭
+	public void setHotKeys(HotKeys hotKeys) {
+		for (int i = 0; i < this.shards.length; i++) {
+			this.shards[i].setHotKeys(hotKeys);
+		}
+	}
+
+	// key经过混淆再取模，避免和分片内Index的(key % hashNum)相关
+	public int shardOf(long key) {
+		return (int) ((Utils.mix64(key) >>> 1) % this.shards.length);
+	}
+
+	public boolean contains(long key) {
+		Storage shard = this.shards[shardOf(key)];
+		synchronized (shard) {
+			return shard.contains(key);
+		}
+	}
+
+	public byte[] get(long key) {
+		Storage shard = this.shards[shardOf(key)];
+		synchronized (shard) {
+			return shard.get(key);
+		}
+	}
+
+	public void put(long key, byte[] bytes) throws StorageException {
+		Storage shard = this.shards[shardOf(key)];
+		synchronized (shard) {
+			shard.put(key, bytes);
+		}
+	}
+
+	public void free(long key) throws StorageException {
+		Storage shard = this.shards[shardOf(key)];
+		synchronized (shard) {
+			shard.free(key);
+		}
+	}
+
+	public boolean putIfAbsent(long key, byte[] bytes) throws StorageException {
+		Storage shard = this.shards[shardOf(key)];
+		synchronized (shard) {
+			return shard.putIfAbsent(key, bytes);
+		}
+	}
+
+	public boolean replace(long key, byte[] expected, byte[] bytes)
+			throws StorageException {
+		Storage shard = this.shards[shardOf(key)];
+		synchronized (shard) {
+			return shard.replace(key, expected, bytes);
+		}
+	}
+
+	public long incrementLong(long key, int offset, long delta)
+			throws StorageException {
+		Storage shard = this.shards[shardOf(key)];
+		synchronized (shard) {
+			return shard.incrementLong(key, offset, delta);
+		}
+	}
+
+	public boolean write(long key, int valueOffset, ByteBuffer src)
+			throws StorageException {
+		Storage shard = this.shards[shardOf(key)];
+		synchronized (shard) {
+			return shard.write(key, valueOffset, src);
+		}
+	}
+
+	public boolean append(long key, ByteBuffer src) throws StorageException {
+		Storage shard = this.shards[shardOf(key)];
+		synchronized (shard) {
+			return shard.append(key, src);
+		}
+	}
+
+	public int read(long key, int valueOffset, ByteBuffer dst) {
+		Storage shard = this.shards[shardOf(key)];
+		synchronized (shard) {
+			return shard.read(key, valueOffset, dst);
+		}
+	}
+
+	// mutator在持有分片锁时调用，不要在其中访问其他key
+	public void compute(long key, DataMutator mutator) throws StorageException {
+		Storage shard = this.shards[shardOf(key)];
+		synchronized (shard) {
+			shard.compute(key, mutator);
+		}
+	}
+
+	// 返回值与keys一一对应，不存在的为null
+	public byte[][] multiGet(final long[] keys) throws StorageException {
+		final byte[][] values = new byte[keys.length][];
+		final int[][] groups = groupByShard(keys);
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (int i = 0; i < groups.length; i++) {
+			if (groups[i] == null)
+				continue;
+
+			final Storage shard = this.shards[i];
+			final int[] group = groups[i];
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					synchronized (shard) {
+						for (int j = 0; j < group.length; j++) {
+							values[group[j]] = shard.get(keys[group[j]]);
+						}
+					}
+					return null;
+				}
+			});
+		}
+		Utils.invokeAll(this.executor, tasks);
+		return values;
+	}
+
+	// 某个分片写入失败时，该分片后续的key不再写入，其他分片不受影响，最后抛出第一个异常
+	public void multiPut(final long[] keys, final byte[][] values)
+			throws StorageException {
+		if (keys.length != values.length)
+			throw new IllegalArgumentException("argument err. keys:"
+					+ keys.length + ", values:" + values.length);
+
+		final int[][] groups = groupByShard(keys);
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (int i = 0; i < groups.length; i++) {
+			if (groups[i] == null)
+				continue;
+
+			final Storage shard = this.shards[i];
+			final int[] group = groups[i];
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() throws StorageException {
+					synchronized (shard) {
+						for (int j = 0; j < group.length; j++) {
+							shard.put(keys[group[j]], values[group[j]]);
+						}
+					}
+					return null;
+				}
+			});
+		}
+		Utils.invokeAll(this.executor, tasks);
+	}
+
+	public void multiFree(final long[] keys) throws StorageException {
+		final int[][] groups = groupByShard(keys);
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (int i = 0; i < groups.length; i++) {
+			if (groups[i] == null)
+				continue;
+
+			final Storage shard = this.shards[i];
+			final int[] group = groups[i];
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() throws StorageException {
+					synchronized (shard) {
+						for (int j = 0; j < group.length; j++) {
+							shard.free(keys[group[j]]);
+						}
+					}
+					return null;
+				}
+			});
+		}
+		Utils.invokeAll(this.executor, tasks);
+	}
+
+	// 各分片并行遍历，visitor会被多个线程同时调用，需自行保证线程安全
+	// 遍历期间持有对应分片的锁
+	public void scan(final DataVisitor visitor) throws StorageException {
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (int i = 0; i < this.shards.length; i++) {
+			final Storage shard = this.shards[i];
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					synchronized (shard) {
+						shard.scan(visitor);
+					}
+					return null;
+				}
+			});
+		}
+		Utils.invokeAll(this.executor, tasks);
+	}
+
+	// 各分片并行遍历key(见Storage.forEachKey)，consumer会被多个线程同时调用，需自行保证线程安全
+	// 只在拷出每段key时短暂持有分片的锁
+	public void forEachKey(final LongConsumer consumer) throws StorageException {
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (int i = 0; i < this.shards.length; i++) {
+			final Storage shard = this.shards[i];
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					shard.forEachKey(consumer);
+					return null;
+				}
+			});
+		}
+		Utils.invokeAll(this.executor, tasks);
+	}
+
+	// 所有分片key的拷贝，各分片并行
+	public long[] keys() throws StorageException {
+		final long[][] keys = new long[this.shards.length][];
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (int i = 0; i < this.shards.length; i++) {
+			final int idx = i;
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					keys[idx] = shards[idx].keys();
+					return null;
+				}
+			});
+		}
+		Utils.invokeAll(this.executor, tasks);
+
+		int num = 0;
+		for (int i = 0; i < keys.length; i++) {
+			num += keys[i].length;
+		}
+		long[] all = new long[num];
+		num = 0;
+		for (int i = 0; i < keys.length; i++) {
+			System.arraycopy(keys[i], 0, all, num, keys[i].length);
+			num += keys[i].length;
+		}
+		return all;
+	}
+
+	public boolean isEmpty() {
+		for (int i = 0; i < this.shards.length; i++) {
+			synchronized (this.shards[i]) {
+				if (!this.shards[i].isEmpty())
+					return false;
+			}
+		}
+		return true;
+	}
+
+	// 任意一个分片满了即认为满
+	public boolean isFull() {
+		for (int i = 0; i < this.shards.length; i++) {
+			synchronized (this.shards[i]) {
+				if (this.shards[i].isFull())
+					return true;
+			}
+		}
+		return false;
+	}
+
+	public long getUsedNum() {
+		long num = 0;
+		for (int i = 0; i < this.shards.length; i++) {
+			synchronized (this.shards[i]) {
+				num += this.shards[i].getUsedNum();
+			}
+		}
+		return num;
+	}
+
+	public long getIdleNum() {
+		long num = 0;
+		for (int i = 0; i < this.shards.length; i++) {
+			synchronized (this.shards[i]) {
+				num += this.shards[i].getIdleNum();
+			}
+		}
+		return num;
+	}
+
+	public long size() {
+		long num = 0;
+		for (int i = 0; i < this.shards.length; i++) {
+			num += this.shards[i].size();
+		}
+		return num;
+	}
+
+	// 依次关闭所有分片(见Storage.close)并停止并行线程池，返回第一个失败的异常
+	@Override
+	public void close() throws StorageException {
+		this.executor.shutdown();
+		StorageException err = null;
+		for (int i = 0; i < this.shards.length; i++) {
+			synchronized (this.shards[i]) {
+				try {
+					this.shards[i].close();
+				} catch (StorageException e) {
+					if (err == null)
+						err = e;
+				}
+			}
+		}
+		if (err != null)
+			throw err;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder strBu = new StringBuilder();
+		strBu.append("ShardedStorage [").append(this.fileName)
+				.append(" , shardNum=").append(this.shards.length)
+				.append(" , size=").append(size()).append(" , used=")
+				.append(getUsedNum()).append("]");
+		return strBu.toString();
+	}
+
+	// 返回每个分片对应的keys下标，没有key的分片为null
+	private int[][] groupByShard(long[] keys) {
+		int[] shardIdx = new int[keys.length];
+		int[] counts = new int[this.shards.length];
+		for (int i = 0; i < keys.length; i++) {
+			shardIdx[i] = shardOf(keys[i]);
+			counts[shardIdx[i]]++;
+		}
+
+		int[][] groups = new int[this.shards.length][];
+		for (int i = 0; i < counts.length; i++) {
+			if (counts[i] > 0)
+				groups[i] = new int[counts[i]];
+			counts[i] = 0;
+		}
+		for (int i = 0; i < keys.length; i++) {
+			groups[shardIdx[i]][counts[shardIdx[i]]++] = i;
+		}
+		return groups;
+	}
+
+	public static void main(String[] args) throws StorageException,
+			IOException {
+		ShardedStorage storage = new ShardedStorage(
+				"~/dev/cherry-storage/shard", 4, 1000000, 128);
+		System.out.println(storage);
+
+		final int threadNum = 4;
+		final int testNum = 1000000;
+		final ShardedStorage _storage = storage;
+		Thread[] threads = new Thread[threadNum];
+		long startTime = System.currentTimeMillis();
+		for (int t = 0; t < threadNum; t++) {
+			final long base = 1L + t * 100000000L;
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					byte[] bytes = new byte[64];
+					try {
+						for (int i = 0; i < testNum; i++) {
+							long key = base + (i % 500000);
+							if (i % 5 == 0) {
+								_storage.put(key, bytes);
+							} else {
+								_storage.get(key);
+							}
+						}
+					} catch (StorageException e) {
+						e.printStackTrace();
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (int t = 0; t < threadNum; t++) {
+			try {
+				threads[t].join();
+			} catch (InterruptedException e) {
+			}
+		}
+		long endTime = System.currentTimeMillis();
+		System.out.println("test " + (threadNum * testNum) + ", use "
+				+ (endTime - startTime) + "ms");
+		System.out.println(storage);
+
+		final AtomicInteger count = new AtomicInteger();
+		storage.scan(new DataVisitor() {
+			@Override
+			public void visit(long key, ByteBuffer data) {
+				count.incrementAndGet();
+			}
+		});
+		System.out.println("scan count:" + count.get());
+	}
+}
@@ -1,102 +1,447 @@
 package io.cherry.storage;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
+import java.lang.invoke.VarHandle;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.function.LongConsumer;
+import java.util.zip.CRC32C;
 
-public class Storage {
+public class Storage implements AutoCloseable {
 	private static final long MAX_FILE_SIZE = 0x7FFFFFFF; // 单个数据文件最大支持2G
+	// 数据块0不存数据，用来存数据区头部: [int version][int options]
+	static final int DATA_VERSION = 0x3501;
 
-	private MmapFile indexFile;
+	// 每条数据带CRC32C校验和(key+长度+data)，存在时间戳前面的4个字节，put时写入，读取时校验
+	// 开启后单条数据最大长度减少4个字节
+	public static final int OPTION_CHECKSUM = 1;
+
+	// 可增长: 数据文件按段(64M)在分配到时才创建，索引空闲链按高水位延迟初始化，创建几乎不耗时
+	// dataNum只是初始容量，满了(或冲突区满了)自动扩容为两倍，也可以调用grow
+	// 打开已有数据时容量以索引头部为准；单个数据文件不再是2G
+	public static final int OPTION_GROWABLE = 2;
+	private static final int SEGMENT_SIZE = 64 * 1024 * 1024;
+
+	// 索引的数据区和冲突区用位图分配(Bucket.BUCKET_VERSION_BITMAP)，总是取最小的空闲位置，数据集中在文件前部
+	// 可以对已有数据开启，打开时把链表格式就地转换为位图
+	public static final int OPTION_BITMAP_BUCKET = 4;
+
+	// 数据区头部offset 8处为seqlock序号，修改期间为奇数，供其他进程的StorageReader无锁读取
+	static final int SEQ_OFFSET = 8;
+
+	// 增量导出格式: [int DELTA_VERSION][int sinceTime]，然后是若干条[long key][int 时间戳][int 长度][data]，最后以[long 0]结束
+	public static final int DELTA_VERSION = 0x3601;
+	private static final int DELTA_BUFFER_SIZE = 1024 * 1024;
+	// 数据块按1024个一段记录段内最大写入时间，增量导出时跳过没有写入的段
+	private static final int BLOCK_SHIFT = 10;
+
+	private StorageBackend backend;
+	private int stripeNum;
 	private Index index;
-	private MmapFile[] dataFiles;
 	private ByteBuffer[] dataBuffers;
 	private int dataNumOfOneFile;
 	private int dataFileNum;
 	private int dataSize;
+	private int maxValueSize;
+	private int options;
+	private CRC32C crc;
+	// 各段最大写入时间(秒)，Integer.MAX_VALUE表示未知(打开后还没有扫描过)
+	private int[] blockTimes;
+	private ChangeLog changeLog;
+	private ColdTier coldTier;
+	private HotKeys hotKeys;
+	private PosCache posCache;
+	private OrderedIndex orderedIndex;
+	private MaintenanceScheduler maintenance;
+	private long[] accessBits; // 每个数据块一位，读写时置上，迁移冷数据时清掉
+	private int migratePos = 1;
+	// 进行中的forEachKey的热数据游标，迁移冷数据时在游标上记下已经遍历过的key
+	private final List<KeyCursor> keyCursors = new ArrayList<KeyCursor>();
+	private int writeDepth; // 嵌套的修改层数，最外层进出时修改序号
+	private boolean flushOnClose = true;
+	private volatile boolean closed; // 不持锁的路径(如后台任务、AsyncStorage)也会读
 
 	private String statFile;
 	private long statLastRecordTime;
 	private long statGetCount;
 	private long statPutCount;
 	private long statUseMsec;
+	private long statStartNanos;
 	private int statMaxDatasize;
 
 	// fileName不要加后缀，会自动增加idx和dat后缀
 	public Storage(String fileName, int dataNum, int dataSize)
 			throws StorageException, IOException {
-		this.statFile = fileName;
+		this(new MmapBackend(fileName), dataNum, dataSize);
+	}
+
+	// 多目录(多块盘)模式，name不要加后缀
+	// idx文件放在第一个目录，dat文件按序号轮流放到各个目录，重新打开时目录顺序不能变
+	public Storage(String[] dirs, String name, int dataNum, int dataSize)
+			throws StorageException, IOException {
+		this(new MmapBackend(dirs, name), dataNum, dataSize);
+	}
+
+	// options见OPTION_XXX，只在新建时生效，之后以数据区头部保存的为准
+	public Storage(String fileName, int dataNum, int dataSize, int options)
+			throws StorageException, IOException {
+		this(new MmapBackend(fileName), dataNum, dataSize, options);
+	}
+
+	// 指定存储后端，如new MemoryBackend(name)为纯内存模式
+	public Storage(StorageBackend backend, int dataNum, int dataSize)
+			throws StorageException, IOException {
+		this(backend, dataNum, dataSize, 0);
+	}
+
+	public Storage(StorageBackend backend, int dataNum, int dataSize,
+			int options) throws StorageException, IOException {
+		this.backend = backend;
+		this.stripeNum = Math.max(1, backend.getStripeNum());
+		this.statFile = backend.getName();
+		this.dataSize = dataSize + 12;
+
+		// 已有数据时先读数据区头部，以前的版本没有数据区头部，视为options为0
+		boolean needInit = !backend.hasIndex();
+		if (needInit) {
+			this.options = options;
+		} else {
+			this.options = readOptions(backend.openData(0, 8));
+			if ((options & ~this.options & ~OPTION_BITMAP_BUCKET) != 0)
+				throw new StorageException("options err. options=" + options
+						+ ", but data created with options=" + this.options);
+			this.options |= options & OPTION_BITMAP_BUCKET;
+			if (isGrowable())
+				dataNum = backend.openIndex(Index.HEADER_SIZE).getInt(12);
+		}
 		int hashNum = Utils.getlargerPrime(dataNum * 2);
 		int conflictNum = Math.abs(dataNum / 2);
-		this.dataSize = dataSize + 12;
 
-		// indexFile
+		// index
 		int indexSize = Index.calSize(hashNum, conflictNum, dataNum);
-		File indexFile = new File(fileName + ".idx");
-		boolean needInit = !indexFile.exists();
-		this.indexFile = new MmapFile(indexFile, indexSize);
-		ByteBuffer bb = this.indexFile.getBuffer();
+		ByteBuffer bb = backend.openIndex(indexSize);
 		this.index = new Index(bb, indexSize, hashNum, conflictNum, dataNum,
-				this.dataSize, needInit);
-
-		// dataFile
-		long totalSize = 1L * (dataNum + 1) * this.dataSize;
-		long size = 0;
-		long lastFileSize = 0;
-		this.dataNumOfOneFile = (int) (MAX_FILE_SIZE / this.dataSize);
-		this.dataFileNum = 0;
-		for (;;) {
-			if (totalSize <= size) {
-				break;
-			}
-			long left = totalSize - size;
-			if (left > (this.dataNumOfOneFile * this.dataSize)) {
-				left = this.dataNumOfOneFile * this.dataSize;
-			} else {
-				lastFileSize = left;
-			}
+				this.dataSize, needInit, bucketVersion());
 
-			size += left;
-			this.dataFileNum++;
+		// data，可增长模式只打开高水位以下的段
+		this.dataNumOfOneFile = isGrowable() ? calSegmentDataNum(this.dataSize)
+				: calDataNumOfOneFile(dataNum, this.dataSize, this.stripeNum);
+		this.dataBuffers = new ByteBuffer[calDataFileNum(dataNum,
+				this.dataNumOfOneFile)];
+		ensureDataFile(isGrowable() ? this.index.getDataHighWater()
+				: dataNum);
+
+		ByteBuffer header = this.dataBuffers[0];
+		if (needInit || readOptions(header) != this.options) {
+			header.putInt(0, DATA_VERSION);
+			header.putInt(4, this.options);
+		}
+		if ((header.getInt(SEQ_OFFSET) & 1) != 0) {
+			// 上次修改到一半进程退出了
+			header.putInt(SEQ_OFFSET, header.getInt(SEQ_OFFSET) + 1);
 		}
+		if ((this.options & OPTION_CHECKSUM) != 0) {
+			this.crc = new CRC32C();
+			if (this.dataSize < 20)
+				throw new IllegalArgumentException(
+						"argument err. dataSize too small for checksum");
+		}
+		this.maxValueSize = calMaxValueSize(this.dataSize, this.options);
+		this.blockTimes = new int[(dataNum >>> BLOCK_SHIFT) + 1];
+		Arrays.fill(this.blockTimes, Integer.MAX_VALUE);
+	}
 
-		this.dataFiles = new MmapFile[this.dataFileNum];
-		this.dataBuffers = new ByteBuffer[this.dataFileNum];
-		for (int i = 0; i < this.dataFileNum; i++) {
-			if (i == this.dataFileNum - 1) {
-				this.dataFiles[i] = new MmapFile(
-						new File(fileName + ".dat" + i), (int) lastFileSize);
-			} else {
-				this.dataFiles[i] = new MmapFile(
-						new File(fileName + ".dat" + i), this.dataNumOfOneFile
-								* this.dataSize);
+	private int bucketVersion() {
+		return (this.options & OPTION_BITMAP_BUCKET) != 0 ? Bucket.BUCKET_VERSION_BITMAP
+				: Bucket.BUCKET_VERSION_LAZY;
+	}
+
+	public boolean isGrowable() {
+		return (this.options & OPTION_GROWABLE) != 0;
+	}
+
+	// 扩容到newDataNum，按新容量重建索引后原子替换，数据块位置不变，数据文件不动
+	// 插入时满了会自动扩容；调用方需持有storage锁
+	public void grow(int newDataNum) throws StorageException {
+		checkOpen();
+		if (!isGrowable())
+			throw new IllegalStateException("storage not growable");
+		int dataNum = this.index.size();
+		if (newDataNum <= dataNum)
+			return;
+		if (calIndexSize(newDataNum) > MAX_FILE_SIZE)
+			throw new IllegalArgumentException(
+					"argument err. newDataNum too large: " + newDataNum);
+
+		long startTime = System.currentTimeMillis();
+		int hashNum = Utils.getlargerPrime(newDataNum * 2);
+		int conflictNum = newDataNum / 2;
+		int indexSize = Index.calSize(hashNum, conflictNum, newDataNum);
+		beginWrite();
+		try {
+			ByteBuffer bb = this.backend.openNewIndex(indexSize);
+			Index newIndex = new Index(bb, indexSize, hashNum, conflictNum,
+					newDataNum, this.dataSize, true, bucketVersion());
+			long[] used = new long[(newDataNum >>> 6) + 1];
+			int limit = scanLimit();
+			for (int pos = 1; pos < limit; pos++) {
+				long key = readKey(pos);
+				if (key == 0)
+					continue;
+
+				newIndex.insertIndex(key, pos);
+				used[pos >>> 6] |= 1L << pos;
 			}
-			this.dataBuffers[i] = this.dataFiles[i].getBuffer();
+			newIndex.rebuildDataBucket(used);
+			this.backend.commitNewIndex();
+			this.index.retire();
+			this.index = newIndex;
+		} catch (IOException e) {
+			throw new StorageException("grow failed: " + e.getMessage(), e);
+		} finally {
+			endWrite();
 		}
+
+		this.dataBuffers = Arrays.copyOf(this.dataBuffers, calDataFileNum(
+				newDataNum, this.dataNumOfOneFile));
+		int blockNum = this.blockTimes.length;
+		this.blockTimes = Arrays.copyOf(this.blockTimes,
+				(newDataNum >>> BLOCK_SHIFT) + 1);
+		Arrays.fill(this.blockTimes, blockNum, this.blockTimes.length,
+				Integer.MAX_VALUE);
+		if (this.accessBits != null)
+			this.accessBits = Arrays.copyOf(this.accessBits,
+					(newDataNum >>> 6) + 1);
+		System.out.println("Storage " + this.statFile + " grow " + dataNum
+				+ " -> " + newDataNum + ", use "
+				+ (System.currentTimeMillis() - startTime) + "ms");
+	}
+
+	// 自动扩容的新容量: 两倍，索引超过2G时减半
+	private int nextDataNum() throws StorageException {
+		int dataNum = this.index.size();
+		long num = Math.min(dataNum * 2L, Integer.MAX_VALUE / 2);
+		while (num > dataNum && calIndexSize(num) > MAX_FILE_SIZE) {
+			num = dataNum + (num - dataNum) / 2;
+		}
+		if (num <= dataNum)
+			throw new StorageException("Storage full: can't grow any more");
+		return (int) num;
+	}
+
+	private static long calIndexSize(long dataNum) {
+		long conflictNum = dataNum / 2;
+		return Index.HEADER_SIZE + Utils.getlargerPrime((int) (dataNum * 2))
+				* 16L + (conflictNum + 1) * 20L + (dataNum + 1) * 4L + 40;
+	}
+
+	static int readOptions(ByteBuffer header) {
+		return header.getInt(0) == DATA_VERSION ? header.getInt(4) : 0;
+	}
+
+	// key-长度-data-[校验和]-时间戳
+	static int calMaxValueSize(int dataSize, int options) {
+		return dataSize - 16 - ((options & OPTION_CHECKSUM) != 0 ? 4 : 0);
+	}
+
+	// 数据块offset处[key][长度][data]部分的CRC32C
+	static int calChecksum(CRC32C crc, ByteBuffer buffer, int offset, int len) {
+		ByteBuffer tmpBuffer = buffer.duplicate();
+		tmpBuffer.position(offset);
+		tmpBuffer.limit(offset + 12 + len);
+		crc.reset();
+		crc.update(tmpBuffer);
+		return (int) crc.getValue();
+	}
+
+	// 单个数据文件的数据块数量(数据块0保留不用，也占位置)
+	// 多目录时把文件拆小，使文件数为目录数的整数倍，每块盘分到的数据量相同
+	static int calDataNumOfOneFile(int dataNum, int dataSize, int stripeNum) {
+		int maxNum = (int) (MAX_FILE_SIZE / dataSize);
+		if (stripeNum <= 1)
+			return maxNum;
+
+		long totalNum = dataNum + 1L;
+		long fileNum = (totalNum + maxNum - 1) / maxNum;
+		fileNum = (fileNum + stripeNum - 1) / stripeNum * stripeNum;
+		return (int) ((totalNum + fileNum - 1) / fileNum);
+	}
+
+	// 可增长模式每段的数据块数量
+	static int calSegmentDataNum(int dataSize) {
+		return Math.max(1, SEGMENT_SIZE / dataSize);
+	}
+
+	static int calDataFileNum(int dataNum, int dataNumOfOneFile) {
+		return (int) ((dataNum + 1L + dataNumOfOneFile - 1) / dataNumOfOneFile);
+	}
+
+	static String getDataFileName(String[] prefixes, int idx) {
+		return prefixes[idx % prefixes.length] + ".dat" + idx;
+	}
+
+	// 设置后put/free会按顺序写入变更日志，供从库追赶；null为关闭
+	// 日志在数据修改之后写入，所以环形区须放得下最大的value，否则拒绝设置，避免改了数据却没有记录
+	public void setChangeLog(ChangeLog changeLog) {
+		if (changeLog != null && !changeLog.canHold(this.maxValueSize))
+			throw new IllegalArgumentException("argument err. changeLog capacity:"
+					+ changeLog.getCapacity() + " too small for maxValueSize:"
+					+ this.maxValueSize);
+		this.changeLog = changeLog;
+	}
+
+	public ChangeLog getChangeLog() {
+		return this.changeLog;
+	}
+
+	public int getOptions() {
+		return this.options;
+	}
+
+	// 单条数据最大长度
+	public int getMaxValueSize() {
+		return this.maxValueSize;
+	}
+
+	// 设置后可通过migrateCold把冷数据迁出，读写冷数据时会自动提升回数据区；null为关闭
+	// scan/size/getUsedNum等只针对数据区(热数据)
+	public void setColdTier(ColdTier coldTier) {
+		this.coldTier = coldTier;
+		this.accessBits = coldTier == null ? null
+				: new long[(this.index.size() >>> 6) + 1];
+	}
+
+	public ColdTier getColdTier() {
+		return this.coldTier;
+	}
+
+	// 设置后get/put等操作采样统计热点key；null为关闭
+	public void setHotKeys(HotKeys hotKeys) {
+		this.hotKeys = hotKeys;
+	}
+
+	public HotKeys getHotKeys() {
+		return this.hotKeys;
+	}
+
+	// 设置后先查位置缓存再查索引，适合热点集中且索引远大于cpu缓存的情况；null为关闭
+	public void setPosCache(PosCache posCache) {
+		this.posCache = posCache;
+	}
+
+	public PosCache getPosCache() {
+		return this.posCache;
+	}
+
+	// 设置后插入/删除时同步维护有序索引，支持range；迁移到冷数据层的key会从有序索引中删除；null为关闭
+	// 每次修改后把数据区的写序号记到有序索引中，挂上时序号或数量不一致(崩溃、未挂有序索引时的修改、
+	// StorageKit离线修改、恢复了旧的有序索引文件等)说明有序索引已过期，按数据区重建
+	public void setOrderedIndex(OrderedIndex orderedIndex)
+			throws StorageException {
+		checkOpen();
+		int seq = this.dataBuffers[0].getInt(SEQ_OFFSET);
+		if (orderedIndex != null
+				&& (orderedIndex.getStamp() != seq
+						|| orderedIndex.size() != getUsedNum())) {
+			System.out.println("rebuild ordered index, stamp="
+					+ orderedIndex.getStamp() + ", seq=" + seq + ", size="
+					+ orderedIndex.size() + ", used=" + getUsedNum());
+			int limit = scanLimit();
+			long[] keys = new long[limit];
+			for (int pos = 1; pos < limit; pos++)
+				keys[pos] = readKey(pos);
+			orderedIndex.rebuild(keys);
+			orderedIndex.setStamp(seq);
+		}
+		this.orderedIndex = orderedIndex;
+	}
+
+	public OrderedIndex getOrderedIndex() {
+		return this.orderedIndex;
+	}
+
+	// 设置后每次操作的耗时报给调度器，前台延迟升高时后台任务退让；null为关闭
+	public void setMaintenanceScheduler(MaintenanceScheduler maintenance) {
+		this.maintenance = maintenance;
+	}
+
+	public MaintenanceScheduler getMaintenanceScheduler() {
+		return this.maintenance;
 	}
 
 	public boolean isEmpty() {
+		checkOpen();
 		return this.index.isEmpty();
 	}
 
 	public boolean isFull() {
+		checkOpen();
 		return this.index.isFull();
 	}
 
 	public int getUsedNum() {
+		checkOpen();
 		return this.index.getUsedNum();
 	}
 
 	public int getIdleNum() {
+		checkOpen();
 		return this.index.getIdleNum();
 	}
 
 	public int size() {
+		checkOpen();
 		return this.index.size();
 	}
 
 	public boolean contains(long key) {
-		return this.index.getIndex(key) > 0;
+		return getIndex(key) > 0
+				|| (this.coldTier != null && this.coldTier.contains(key));
+	}
+
+	// 粗略判断读key时是否不会缺页: 数据块所在的页在内存中(mincore)时返回true
+	// 热数据区没有而有冷数据层时返回false；不是映射文件时总是true
+	public boolean isResident(long key) {
+		int pos = getIndex(key);
+		if (pos <= 0)
+			return this.coldTier == null;
+
+		ByteBuffer buffer = fileBuffer(pos);
+		if (!(buffer instanceof MappedByteBuffer))
+			return true;
+		ByteBuffer slot = buffer.duplicate();
+		slot.position(slotOffset(pos));
+		slot.limit(slotOffset(pos) + this.dataSize);
+		return ((MappedByteBuffer) slot.slice()).isLoaded();
+	}
+
+	// key的数据块在数据文件中的位置，供调用方在锁外用FileChannel预读，避免持锁时缺页读盘(见AsyncStorage)
+	// 返回(数据文件序号 << 32 | 文件内偏移)，数据块长度为getSlotSize()；热数据区没有或不是映射文件时返回-1
+	public long getSlotPosition(long key) {
+		int pos = getIndex(key);
+		if (pos <= 0 || !(fileBuffer(pos) instanceof MappedByteBuffer))
+			return -1;
+		return ((long) (pos / this.dataNumOfOneFile) << 32) | slotOffset(pos);
+	}
+
+	public int getSlotSize() {
+		return this.dataSize;
+	}
+
+	// 第idx个数据文件，数据不在文件中时返回null
+	public File getDataFile(int idx) {
+		checkOpen();
+		return this.backend.getDataFile(idx);
 	}
 
 	public byte[] get(long key) {
@@ -112,31 +457,22 @@ public class Storage {
 	public ByteBuffer getByteBuffer(long key) {
 		++statGetCount;
 		long startTime = System.currentTimeMillis();
-		doStat(startTime);
-		int pos = index.getIndex(key);
-		if (pos <= 0) {
-			long endTime = System.currentTimeMillis();
-			statUseMsec += (endTime - startTime);
-			return null;
+		doStat(key, startTime);
+		int pos = getIndex(key);
+		ByteBuffer bb = null;
+		if (pos > 0) {
+			assert (readKey(pos) == key);
+			int len = readLen(pos);
+			assert (len + 12 <= this.dataSize);
+			checkData(key, pos);
+			touch(pos);
+			bb = valueBuffer(pos, len);
+		} else if (this.coldTier != null) {
+			bb = promoteForRead(key);
 		}
 
-		ByteBuffer tmpBuffer = dataBuffers[pos / this.dataNumOfOneFile]
-				.duplicate();
-		tmpBuffer.position((pos % this.dataNumOfOneFile) * this.dataSize);
-		tmpBuffer.limit((pos % this.dataNumOfOneFile) * this.dataSize + 12);
-		long _key = tmpBuffer.slice().asLongBuffer().get(0);
-		assert (_key == key);
-		int len = tmpBuffer.slice().asIntBuffer().get(2);
-		assert (len + 12 <= this.dataSize);
-
-		tmpBuffer = this.dataBuffers[pos / this.dataNumOfOneFile].duplicate();
-		tmpBuffer.position((pos % this.dataNumOfOneFile) * this.dataSize + 12);
-		tmpBuffer.limit((pos % this.dataNumOfOneFile) * this.dataSize + 12
-				+ len);
-
-		long endTime = System.currentTimeMillis();
-		statUseMsec += (endTime - startTime);
-		return tmpBuffer.slice();
+		endStat(startTime);
+		return bb;
 	}
 
 	// 存在则覆盖；不存在则新增
@@ -145,112 +481,1078 @@ public class Storage {
 		if (bytes.length > this.statMaxDatasize)
 			this.statMaxDatasize = bytes.length;
 		long startTime = System.currentTimeMillis();
-		doStat(startTime);
+		doStat(key, startTime);
+		checkSize(bytes.length);
 
-		if (bytes.length + 16 > this.dataSize) {
-			throw new StorageException("Storage put failed: data too big");
+		beginWrite();
+		try {
+			int pos = getIndex(key);
+			if (pos > 0) {
+				assert (readKey(pos) == key);
+				writeData(pos, bytes, bytes.length, startTime);
+				if (this.changeLog != null)
+					this.changeLog.logPut(key, bytes, bytes.length);
+			} else {
+				// 同原来的put，冲突区满时放弃这次新增(数据块已回收)；数据区满等其他失败照常抛出
+				boolean inserted = insertData(key, bytes, bytes.length,
+						startTime, true) > 0;
+				if (inserted && this.coldTier != null)
+					this.coldTier.free(key);
+				if (inserted && this.changeLog != null)
+					this.changeLog.logPut(key, bytes, bytes.length);
+			}
+		} finally {
+			endWrite();
 		}
 
-		int pos = index.getIndex(key);
-		if (pos > 0) {
-			ByteBuffer tmpBuffer = this.dataBuffers[(pos / this.dataNumOfOneFile)]
-					.duplicate();
-			tmpBuffer.position((pos % this.dataNumOfOneFile) * dataSize);
-			tmpBuffer.limit((pos % this.dataNumOfOneFile) * dataSize + 12);
-			long _key = tmpBuffer.slice().asLongBuffer().get(0);
-			assert (_key == key);
-
-			// write len
-			// key-长度-data-时间戳，(key-长度-时间戳)部分共占16个字节
-			int writeSize = ((this.dataSize - 16) > bytes.length ? bytes.length
-					: (this.dataSize - 16));
-			tmpBuffer.asIntBuffer().put(2, writeSize);
-
-			// write data
-			tmpBuffer = dataBuffers[(pos / this.dataNumOfOneFile)].duplicate();
-			tmpBuffer.position((pos % this.dataNumOfOneFile) * this.dataSize
-					+ 12);
-			tmpBuffer
-					.limit(((pos % this.dataNumOfOneFile) + 1) * this.dataSize);
-			tmpBuffer.slice().put(bytes, 0, writeSize);
-
-			// 时间戳
-			tmpBuffer.position(((pos % this.dataNumOfOneFile) + 1) * dataSize
-					- 4);
-			tmpBuffer.slice().asIntBuffer().put(0, (int) (startTime / 1000));
-		} else {
-			int _pos = this.index.insertData();
-			ByteBuffer tmpBuffer = this.dataBuffers[_pos
-					/ this.dataNumOfOneFile].duplicate();
-			tmpBuffer.position((_pos % this.dataNumOfOneFile) * dataSize);
-			tmpBuffer.limit((_pos % this.dataNumOfOneFile) * dataSize + 12);
-			tmpBuffer.slice().asLongBuffer().put(0, key);
-
-			int writeSize = ((this.dataSize - 16) > bytes.length ? bytes.length
-					: (this.dataSize - 16));
-
-			// write len
-			tmpBuffer.slice().asIntBuffer().put(2, writeSize);
-
-			// write data
-			tmpBuffer = this.dataBuffers[_pos / this.dataNumOfOneFile]
-					.duplicate();
-			tmpBuffer.position((_pos % this.dataNumOfOneFile) * dataSize + 12);
-			tmpBuffer.limit(((_pos % this.dataNumOfOneFile) + 1) * dataSize);
-			tmpBuffer.slice().put(bytes, 0, writeSize);
-
-			tmpBuffer.limit(((_pos % this.dataNumOfOneFile) + 1)
-					* this.dataSize - 4);
-			tmpBuffer.slice().asIntBuffer().put(0, (int) startTime / 1000);
+		endStat(startTime);
+	}
+
+	// 不存在时新增，存在时不做修改；返回是否新增
+	public boolean putIfAbsent(long key, byte[] bytes) throws StorageException {
+		++statPutCount;
+		if (bytes.length > this.statMaxDatasize)
+			this.statMaxDatasize = bytes.length;
+		long startTime = System.currentTimeMillis();
+		doStat(key, startTime);
+		checkSize(bytes.length);
+
+		boolean inserted = false;
+		beginWrite();
+		try {
+			if (getIndex(key) <= 0
+					&& (this.coldTier == null || !this.coldTier.contains(key))) {
+				insertData(key, bytes, bytes.length, startTime);
+				inserted = true;
+				if (this.changeLog != null)
+					this.changeLog.logPut(key, bytes, bytes.length);
+			}
+		} finally {
+			endWrite();
+		}
+
+		endStat(startTime);
+		return inserted;
+	}
 
+	// 当前值与expected相同时替换为bytes；返回是否替换
+	public boolean replace(long key, byte[] expected, byte[] bytes)
+			throws StorageException {
+		++statPutCount;
+		if (bytes.length > this.statMaxDatasize)
+			this.statMaxDatasize = bytes.length;
+		long startTime = System.currentTimeMillis();
+		doStat(key, startTime);
+		checkSize(bytes.length);
+
+		boolean replaced = false;
+		beginWrite();
+		try {
+			int pos = locate(key);
+			if (pos > 0
+					&& valueBuffer(pos, readLen(pos)).equals(
+							ByteBuffer.wrap(expected))) {
+				writeData(pos, bytes, bytes.length, startTime);
+				replaced = true;
+				if (this.changeLog != null)
+					this.changeLog.logPut(key, bytes, bytes.length);
+			}
+		} finally {
+			endWrite();
+		}
+
+		endStat(startTime);
+		return replaced;
+	}
+
+	// 把value中offset处的8个字节当作long(大端)加上delta，返回相加后的值
+	// key不存在或value长度不足offset+8时，先用0补齐
+	public long incrementLong(long key, int offset, long delta)
+			throws StorageException {
+		if (offset < 0)
+			throw new IllegalArgumentException("argument err. offset:"
+					+ offset);
+
+		++statPutCount;
+		long startTime = System.currentTimeMillis();
+		doStat(key, startTime);
+		checkSize(offset + 8);
+
+		long result;
+		beginWrite();
+		try {
+			int pos = locate(key);
+			if (pos <= 0)
+				pos = insertData(key, null, 0, startTime);
+
+			int len = readLen(pos);
+			ByteBuffer value = valueBuffer(pos, this.maxValueSize);
+			if (len < offset + 8) {
+				for (int i = len; i < offset + 8; i++) {
+					value.put(i, (byte) 0);
+				}
+				len = offset + 8;
+				if (len > this.statMaxDatasize)
+					this.statMaxDatasize = len;
+			}
+			result = value.getLong(offset) + delta;
+			value.putLong(offset, result);
+			writeLenAndTime(pos, len, startTime);
+			if (this.changeLog != null) {
+				value.limit(len);
+				this.changeLog.logPut(key, value);
+			}
+		} finally {
+			endWrite();
+		}
+
+		endStat(startTime);
+		return result;
+	}
+
+	// 在数据区原地修改value，见DataMutator；key不存在时会先分配一个空的value
+	public void compute(long key, DataMutator mutator) throws StorageException {
+		++statPutCount;
+		long startTime = System.currentTimeMillis();
+		doStat(key, startTime);
+
+		beginWrite();
+		try {
+			int pos = locate(key);
+			boolean exists = pos > 0;
+			if (!exists)
+				pos = insertData(key, null, 0, startTime);
+
+			ByteBuffer value = valueBuffer(pos, this.maxValueSize);
+			value.limit(exists ? readLen(pos) : 0);
+			int len;
 			try {
-				this.index.insertIndex(key, _pos);
-			} catch (StorageException e) {
-				// for reuse
-				this.index.freeData(_pos);
-				tmpBuffer = this.dataBuffers[_pos / this.dataNumOfOneFile]
-						.duplicate();
-				tmpBuffer.position((_pos % this.dataNumOfOneFile)
-						* this.dataSize);
-				tmpBuffer.limit((_pos % this.dataNumOfOneFile) * this.dataSize
-						+ 12);
-				tmpBuffer.slice().asLongBuffer().put(0, 0); // just for resume
-				tmpBuffer.slice().asIntBuffer().put(2, 0); // just for resume
+				len = mutator.mutate(key, value, exists);
+			} catch (RuntimeException e) {
+				if (!exists)
+					freeData(key, pos);
+				throw e;
+			}
+
+			if (len < 0) {
+				freeData(key, pos);
+				if (exists && this.changeLog != null)
+					this.changeLog.logFree(key);
+			} else {
+				if (len > value.capacity()) {
+					if (!exists)
+						freeData(key, pos);
+					throw new StorageException("Storage compute failed: len "
+							+ len + " > " + value.capacity());
+				}
+				if (len > this.statMaxDatasize)
+					this.statMaxDatasize = len;
+				writeLenAndTime(pos, len, startTime);
+				if (this.changeLog != null) {
+					value.position(0);
+					value.limit(len);
+					this.changeLog.logPut(key, value);
+				}
 			}
+		} finally {
+			endWrite();
 		}
 
-		long endTime = System.currentTimeMillis();
-		statUseMsec += (endTime - startTime);
+		endStat(startTime);
+	}
+
+	// 把src写到value的valueOffset处，只修改涉及的字节，超过原长度时延长(中间空出的部分补0)
+	// key不存在返回false
+	public boolean write(long key, int valueOffset, ByteBuffer src)
+			throws StorageException {
+		if (valueOffset < 0)
+			throw new IllegalArgumentException("argument err. valueOffset:"
+					+ valueOffset);
+
+		++statPutCount;
+		long startTime = System.currentTimeMillis();
+		doStat(key, startTime);
+		checkSize(valueOffset + src.remaining());
+
+		int pos;
+		beginWrite();
+		try {
+			pos = locate(key);
+			if (pos > 0)
+				writePart(key, pos, valueOffset, src, startTime);
+		} finally {
+			endWrite();
+		}
+
+		endStat(startTime);
+		return pos > 0;
+	}
+
+	// 追加到value末尾，不能超过数据块容量；key不存在返回false
+	public boolean append(long key, ByteBuffer src) throws StorageException {
+		++statPutCount;
+		long startTime = System.currentTimeMillis();
+		doStat(key, startTime);
+
+		int pos;
+		beginWrite();
+		try {
+			pos = locate(key);
+			if (pos > 0) {
+				int len = readLen(pos);
+				checkSize(len + src.remaining());
+				writePart(key, pos, len, src, startTime);
+			}
+		} finally {
+			endWrite();
+		}
+
+		endStat(startTime);
+		return pos > 0;
+	}
+
+	// 从value的valueOffset处读到dst，返回读取的字节数；key不存在返回-1
+	public int read(long key, int valueOffset, ByteBuffer dst) {
+		if (valueOffset < 0)
+			throw new IllegalArgumentException("argument err. valueOffset:"
+					+ valueOffset);
+
+		++statGetCount;
+		long startTime = System.currentTimeMillis();
+		doStat(key, startTime);
+
+		int num = -1;
+		ByteBuffer value = null;
+		int pos = getIndex(key);
+		if (pos > 0) {
+			checkData(key, pos);
+			touch(pos);
+			value = valueBuffer(pos, readLen(pos));
+		} else if (this.coldTier != null) {
+			value = promoteForRead(key);
+		}
+		if (value != null) {
+			num = Math.max(0,
+					Math.min(dst.remaining(), value.remaining() - valueOffset));
+			if (num > 0) {
+				value.position(valueOffset);
+				value.limit(valueOffset + num);
+				dst.put(value);
+			}
+		}
+
+		endStat(startTime);
+		return num;
 	}
 
 	public void free(long key) throws StorageException {
 		++statPutCount;
 		long startTime = System.currentTimeMillis();
-		doStat(startTime);
+		doStat(key, startTime);
+
+		beginWrite();
+		try {
+			boolean exists = false;
+			int pos = getIndex(key);
+			if (pos > 0) {
+				freeData(key, pos);
+				exists = true;
+			}
+			if (this.coldTier != null && this.coldTier.free(key))
+				exists = true;
+			if (exists && this.changeLog != null)
+				this.changeLog.logFree(key);
+		} finally {
+			endWrite();
+		}
+
+		endStat(startTime);
+	}
+
+	// 把最近没有访问的热数据迁到冷数据层，返回迁移条数
+	// 时钟算法: 从上次停下的位置继续，最多检查maxScan个数据块
+	// 访问位已置上的清掉访问位跳过(再给一次机会)，否则最后写入早于olderThanSec秒前的迁出
+	// 迁移不写变更日志，数据在两层之间移动对外是透明的
+	public int migrateCold(int olderThanSec, int maxScan)
+			throws StorageException {
+		checkOpen();
+		if (this.coldTier == null)
+			throw new IllegalStateException("cold tier not set");
+
+		int dataNum = scanLimit() - 1;
+		int expireTime = (int) (System.currentTimeMillis() / 1000)
+				- olderThanSec;
+		int num = 0;
+		for (int i = 0; i < maxScan && i < dataNum; i++) {
+			int pos = this.migratePos;
+			this.migratePos = pos >= dataNum ? 1 : pos + 1;
+			long key = readKey(pos);
+			if (key == 0)
+				continue;
 
-		int pos = this.index.getIndex(key);
+			long bit = 1L << pos;
+			if ((this.accessBits[pos >>> 6] & bit) != 0) {
+				this.accessBits[pos >>> 6] &= ~bit;
+				continue;
+			}
+			if (readTime(pos) > expireTime)
+				continue;
+			if (this.coldTier.isFull())
+				break;
+
+			this.coldTier.put(key, valueBuffer(pos, readLen(pos)),
+					readTime(pos));
+			beginWrite();
+			try {
+				freeData(key, pos);
+			} finally {
+				endWrite();
+			}
+			for (int j = 0; j < this.keyCursors.size(); j++) {
+				KeyCursor cursor = this.keyCursors.get(j);
+				if (cursor.passed(key))
+					cursor.addMoved(key);
+			}
+			num++;
+		}
+		return num;
+	}
+
+	// 把时间戳不早于sinceTime(秒)的数据按增量格式写到dst，返回条数
+	// 按数据文件分段并行读，各线程攒满大缓冲区后再整块写出，dst上的写入顺序不确定
+	// 被删除的数据没有记录，无法导出(需要删除请用ChangeLog)；冷数据层中的数据不导出
+	// 除了第一次，没有写入的段会被跳过，耗时只与变化量有关；调用方需持有storage锁
+	public long exportSince(long sinceTime, final WritableByteChannel dst)
+			throws StorageException, IOException {
+		checkOpen();
+		final int since = (int) Math.min(Integer.MAX_VALUE,
+				Math.max(0, sinceTime));
+		final int dataNum = this.index.size();
+		ByteBuffer header = ByteBuffer.allocate(8);
+		header.putInt(DELTA_VERSION).putInt(since).flip();
+		writeFully(dst, header);
+
+		// 每个数据文件再按cpu数切成若干段，段边界与时间段对齐
+		int splitNum = Math.max(1, (Runtime.getRuntime()
+				.availableProcessors() + this.dataFileNum - 1)
+				/ this.dataFileNum);
+		final long[] exportNum = new long[1];
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (int i = 0; i < this.dataFileNum; i++) {
+			int fileFrom = Math.max(1, i * this.dataNumOfOneFile);
+			int fileTo = Math.min(dataNum + 1, (i + 1) * this.dataNumOfOneFile);
+			int step = (fileTo - fileFrom) / splitNum + (1 << BLOCK_SHIFT);
+			for (int from = fileFrom, to; from < fileTo; from = to) {
+				to = Math.min(fileTo, (from + step) >>> BLOCK_SHIFT << BLOCK_SHIFT);
+				final int _from = from;
+				final int _to = to;
+				tasks.add(new Callable<Void>() {
+					@Override
+					public Void call() throws IOException {
+						long num = exportRange(_from, _to, since, dst);
+						synchronized (exportNum) {
+							exportNum[0] += num;
+						}
+						return null;
+					}
+				});
+			}
+		}
+		Utils.invokeAll(null, tasks);
+
+		ByteBuffer end = ByteBuffer.allocate(8);
+		end.putLong(0).flip();
+		writeFully(dst, end);
+		return exportNum[0];
+	}
+
+	// 读exportSince导出的增量并写入，每batchNum条持一次storage锁；返回条数
+	public long importDelta(ReadableByteChannel src, int batchNum)
+			throws StorageException, IOException {
+		checkOpen();
+		if (batchNum <= 0)
+			throw new IllegalArgumentException("argument err. batchNum:"
+					+ batchNum);
+
+		ByteBuffer in = ByteBuffer.allocateDirect(DELTA_BUFFER_SIZE);
+		in.flip();
+		in = fill(src, in, 8);
+		if (in.getInt() != DELTA_VERSION)
+			throw new StorageException("importDelta failed: bad version");
+		in.getInt();
+
+		long num = 0;
+		long[] keys = new long[batchNum];
+		byte[][] values = new byte[batchNum][];
+		for (boolean end = false; !end;) {
+			int n = 0;
+			while (n < batchNum) {
+				in = fill(src, in, 8);
+				long key = in.getLong();
+				if (key == 0) {
+					end = true;
+					break;
+				}
+				in = fill(src, in, 8);
+				in.getInt(); // 时间戳
+				int len = in.getInt();
+				if (len < 0 || len > this.maxValueSize)
+					throw new StorageException("importDelta failed: key:"
+							+ key + ", len:" + len);
+				in = fill(src, in, len);
+				keys[n] = key;
+				values[n] = new byte[len];
+				in.get(values[n]);
+				n++;
+			}
+
+			synchronized (this) {
+				for (int i = 0; i < n; i++) {
+					put(keys[i], values[i]);
+				}
+			}
+			num += n;
+		}
+		return num;
+	}
+
+	// 导出[from, to)中的增量，顺便更新各段的最大写入时间
+	private long exportRange(int from, int to, int since,
+			WritableByteChannel dst) throws IOException {
+		ByteBuffer out = ByteBuffer.allocateDirect(DELTA_BUFFER_SIZE);
+		long num = 0;
+		for (int blockFrom = from; blockFrom < to;) {
+			int block = blockFrom >>> BLOCK_SHIFT;
+			int blockTo = Math.min(to, (block + 1) << BLOCK_SHIFT);
+			if (this.blockTimes[block] < since) {
+				blockFrom = blockTo;
+				continue;
+			}
+
+			// 段可能跨两个导出范围，只有完整扫描的段才更新最大时间
+			boolean whole = blockFrom == block << BLOCK_SHIFT
+					|| (block == 0 && blockFrom == 1);
+			whole = whole && blockTo == Math.min(this.index.size() + 1,
+					(block + 1) << BLOCK_SHIFT);
+			int maxTime = 0;
+			for (int pos = blockFrom; pos < blockTo; pos++) {
+				long key = readKey(pos);
+				if (key == 0)
+					continue;
+
+				int time = readTime(pos);
+				if (time > maxTime)
+					maxTime = time;
+				if (time < since)
+					continue;
+
+				int len = readLen(pos);
+				if (out.remaining() < 16 + len) {
+					out.flip();
+					synchronized (dst) {
+						writeFully(dst, out);
+					}
+					out.clear();
+				}
+				out.putLong(key).putInt(time).putInt(len);
+				out.put(valueBuffer(pos, len));
+				num++;
+			}
+			if (whole)
+				this.blockTimes[block] = maxTime;
+			blockFrom = blockTo;
+		}
+		out.flip();
+		if (out.hasRemaining()) {
+			synchronized (dst) {
+				writeFully(dst, out);
+			}
+		}
+		return num;
+	}
+
+	private static void writeFully(WritableByteChannel dst, ByteBuffer bb)
+			throws IOException {
+		while (bb.hasRemaining()) {
+			dst.write(bb);
+		}
+	}
+
+	// 保证in(读模式)中至少有size字节可读，不够大时换一个更大的
+	private static ByteBuffer fill(ReadableByteChannel src, ByteBuffer in,
+			int size) throws IOException {
+		if (in.remaining() >= size)
+			return in;
+
+		if (in.capacity() < size) {
+			ByteBuffer bigger = ByteBuffer.allocateDirect(size);
+			bigger.put(in);
+			in = bigger;
+		} else {
+			in.compact();
+		}
+		while (in.position() < size) {
+			if (src.read(in) < 0)
+				throw new EOFException("delta truncated");
+		}
+		in.flip();
+		return in;
+	}
+
+	// 顺序遍历所有数据，跳过空闲位置
+	public void scan(DataVisitor visitor) {
+		checkOpen();
+		scanRange(1, scanLimit(), visitor);
+	}
+
+	// 遍历所有key(含冷数据层)，只读索引不读数据区，耗时和内存占用与索引大小相关
+	// 每次以storage自身为锁拷出一段索引中的key，锁外回调，调用方不必持有锁，consumer中可以访问storage
+	// 先遍历热数据区再遍历冷数据层；热数据中已遍历过再迁到冷数据层的key在冷数据中跳过，
+	// 还没遍历到就迁走的key在冷数据中回调，所以migrateCold不会造成重复或遗漏
+	// 每个key最多回调一次；新增/删除的key、读冷数据时提升回热数据区的key可能出现也可能不出现
+	public void forEachKey(LongConsumer consumer) {
+		KeyCursor hot = new KeyCursor();
+		synchronized (this) {
+			checkOpen();
+			this.keyCursors.add(hot);
+		}
+		try {
+			forEachKey(hot, null, consumer);
+			forEachKey(new KeyCursor(), hot, consumer);
+		} finally {
+			synchronized (this) {
+				this.keyCursors.remove(hot);
+			}
+		}
+	}
+
+	// 所有key的拷贝，一致性同forEachKey
+	public long[] keys() {
+		final long[][] keys = new long[1][];
+		final int[] num = new int[1];
+		synchronized (this) {
+			checkOpen();
+			keys[0] = new long[getUsedNum()
+					+ (this.coldTier == null ? 0 : this.coldTier.getUsedNum())];
+		}
+		forEachKey(new LongConsumer() {
+			@Override
+			public void accept(long key) {
+				if (num[0] == keys[0].length)
+					keys[0] = Arrays.copyOf(keys[0], num[0] * 2 + 16);
+				keys[0][num[0]++] = key;
+			}
+		});
+		return num[0] == keys[0].length ? keys[0] : Arrays.copyOf(keys[0],
+				num[0]);
+	}
+
+	// 按key升序遍历[fromKey, toKey)，需要先setOrderedIndex
+	public void range(long fromKey, long toKey, final DataVisitor visitor) {
+		checkOpen();
+		if (this.orderedIndex == null)
+			throw new IllegalStateException("ordered index not set");
+		this.orderedIndex.range(fromKey, toKey, new OrderedIndex.Visitor() {
+			@Override
+			public boolean visit(long key, int pos) {
+				// 有序索引与数据区不一致时跳过
+				if (pos < scanLimit() && readKey(pos) == key)
+					visitor.visit(key, valueBuffer(pos, readLen(pos)));
+				return true;
+			}
+		});
+	}
+
+	// 每个目录(stripe)一个线程并行遍历，visitor需自行保证线程安全
+	public void parallelScan(final DataVisitor visitor) throws StorageException {
+		checkOpen();
+		final int dataNum = this.index.size();
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (int d = 0; d < this.stripeNum && d < this.dataFileNum; d++) {
+			final int first = d;
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					for (int i = first; i < dataFileNum; i += stripeNum) {
+						int from = Math.max(1, i * dataNumOfOneFile);
+						int to = Math.min(dataNum + 1, (i + 1)
+								* dataNumOfOneFile);
+						scanRange(from, to, visitor);
+					}
+					return null;
+				}
+			});
+		}
+		Utils.invokeAll(null, tasks);
+	}
+
+	// 把数据文件读入内存(预热)，各目录并行
+	public void warmUp() throws StorageException {
+		checkOpen();
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (int d = 0; d < this.stripeNum && d < this.dataFileNum; d++) {
+			final int first = d;
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					if (first == 0)
+						backend.loadIndex();
+					for (int i = first; i < dataFileNum; i += stripeNum) {
+						backend.loadData(i);
+					}
+					return null;
+				}
+			});
+		}
+		Utils.invokeAll(null, tasks);
+	}
+
+	// 关闭时是否刷盘，默认刷；不刷时脏页由操作系统写回，进程退出不丢，机器掉电可能丢
+	public void setFlushOnClose(boolean flushOnClose) {
+		this.flushOnClose = flushOnClose;
+	}
+
+	public boolean isClosed() {
+		return this.closed;
+	}
+
+	// 按flushOnClose刷盘后释放所有映射(见MmapFile)和写租约，之后再调用其他方法抛IllegalStateException
+	// 之前getByteBuffer返回的ByteBuffer默认仍可读，但可能读到关闭后其他进程写入的内容；冷数据层、变更日志等由调用方自行关闭
+	// 调用方需持有storage锁，重复关闭无影响
+	@Override
+	public void close() throws StorageException {
+		if (this.closed)
+			return;
+
+		try {
+			if (this.flushOnClose)
+				flush();
+		} finally {
+			this.closed = true;
+			this.dataBuffers = null;
+			try {
+				this.backend.close();
+			} catch (IOException e) {
+				throw new StorageException("close failed: " + this.statFile, e);
+			}
+		}
+	}
+
+	public int getDataFileNum() {
+		return this.dataFileNum;
+	}
+
+	// 第idx个数据文件中[offset, offset + len)刷盘/预热，供后台任务分段执行
+	// 须持有storage锁，避免与close的解除映射、扩容时打开新数据文件并发
+	public void flushDataFile(int idx, int offset, int len) {
+		checkOpen();
+		checkDataRange(idx, offset, len);
+		this.backend.forceData(idx, offset, len);
+	}
+
+	public void warmUpDataFile(int idx, int offset, int len) {
+		checkOpen();
+		checkDataRange(idx, offset, len);
+		this.backend.loadData(idx, offset, len);
+	}
+
+	// 第idx个数据文件中数据块占用的字节数
+	public long getDataFileSize(int idx) {
+		checkOpen();
+		int num = Math.min(this.dataNumOfOneFile, this.index.size() + 1 - idx
+				* this.dataNumOfOneFile);
+		return (long) Math.max(0, num) * this.dataSize;
+	}
+
+	// 刷盘，各目录并行
+	public void flush() throws StorageException {
+		checkOpen();
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (int d = 0; d < this.stripeNum && d < this.dataFileNum; d++) {
+			final int first = d;
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					for (int i = first; i < dataFileNum; i += stripeNum) {
+						backend.forceData(i);
+					}
+					if (first == 0)
+						backend.forceIndex();
+					return null;
+				}
+			});
+		}
+		Utils.invokeAll(null, tasks);
+		if (this.coldTier != null)
+			this.coldTier.flush();
+	}
+
+	// key-长度-data-[校验和]-时间戳，(key-长度-时间戳)部分共占16个字节
+	private void beginWrite() {
+		if (this.writeDepth++ == 0) {
+			ByteBuffer header = this.dataBuffers[0];
+			header.putInt(SEQ_OFFSET, header.getInt(SEQ_OFFSET) + 1);
+			VarHandle.storeStoreFence();
+		}
+	}
+
+	private void endWrite() {
+		if (--this.writeDepth == 0) {
+			VarHandle.releaseFence();
+			ByteBuffer header = this.dataBuffers[0];
+			header.putInt(SEQ_OFFSET, header.getInt(SEQ_OFFSET) + 1);
+			if (this.orderedIndex != null)
+				this.orderedIndex.setStamp(header.getInt(SEQ_OFFSET));
+		}
+	}
+
+	private void checkOpen() {
+		if (this.closed)
+			throw new IllegalStateException("storage closed: " + this.statFile);
+	}
+
+	private void checkSize(int len) throws StorageException {
+		if (len > this.maxValueSize) {
+			throw new StorageException("Storage put failed: data too big");
+		}
+	}
+
+	// 查找数据块，数据区没有时从冷数据层提升回来(恢复迁出前的写入时间)；都不存在返回-1
+	private int locate(long key) throws StorageException {
+		int pos = getIndex(key);
 		if (pos > 0) {
-			ByteBuffer tmpBuffer = this.dataBuffers[pos / this.dataNumOfOneFile]
-					.duplicate();
-			tmpBuffer.position((pos % this.dataNumOfOneFile) * dataSize);
-			tmpBuffer.limit((pos % this.dataNumOfOneFile) * dataSize + 12);
-			tmpBuffer.slice().asLongBuffer().put(0, 0); // just for resume
-			tmpBuffer.slice().asIntBuffer().put(2, 0); // just for resume
-			this.index.freeIndex(key);
+			if (!verifyData(key, pos))
+				throw new StorageException("Storage checksum err. key:" + key
+						+ ", pos:" + pos);
+			touch(pos);
+			return pos;
+		}
+		if (this.coldTier == null)
+			return -1;
+
+		int[] writeTime = new int[1];
+		byte[] bytes = readCold(key, writeTime);
+		if (bytes == null)
+			return -1;
+		pos = insertData(key, bytes, bytes.length, writeTime[0] * 1000L);
+		this.coldTier.free(key);
+		touch(pos);
+		return pos;
+	}
+
+	// 读冷数据并提升回数据区，数据区满时不提升，返回堆上的拷贝；不存在返回null
+	// 提升时恢复迁出前的写入时间，读不算写入，不影响exportSince；置上访问位，下一轮迁移不会马上迁走
+	private ByteBuffer promoteForRead(long key) {
+		int[] writeTime = new int[1];
+		byte[] bytes = readCold(key, writeTime);
+		if (bytes == null)
+			return null;
+
+		beginWrite();
+		try {
+			int pos = insertData(key, bytes, bytes.length,
+					writeTime[0] * 1000L);
+			this.coldTier.free(key);
+			touch(pos);
+			return valueBuffer(pos, bytes.length);
+		} catch (StorageException e) {
+			return ByteBuffer.wrap(bytes);
+		} finally {
+			endWrite();
+		}
+	}
+
+	private byte[] readCold(long key, int[] time) {
+		try {
+			return this.coldTier.get(key, time);
+		} catch (StorageException e) {
+			throw new IllegalStateException(e.getMessage(), e);
+		}
+	}
+
+	// 开启校验和时校验，不一致时抛出IllegalStateException
+	private void checkData(long key, int pos) {
+		if (!verifyData(key, pos))
+			throw new IllegalStateException("Storage checksum err. key:" + key
+					+ ", pos:" + pos);
+	}
+
+	private boolean verifyData(long key, int pos) {
+		if (this.crc == null)
+			return true;
+
+		ByteBuffer buffer = fileBuffer(pos);
+		int offset = slotOffset(pos);
+		int len = buffer.getInt(offset + 8);
+		return buffer.getLong(offset) == key && len >= 0
+				&& len <= this.maxValueSize
+				&& calChecksum(this.crc, buffer, offset, len) == buffer
+						.getInt(offset + this.dataSize - 8);
+	}
+
+	private void writeChecksum(int pos, int len) {
+		if (this.crc == null)
+			return;
+
+		ByteBuffer buffer = fileBuffer(pos);
+		int offset = slotOffset(pos);
+		buffer.putInt(offset + this.dataSize - 8,
+				calChecksum(this.crc, buffer, offset, len));
+	}
+
+	private void touch(int pos) {
+		if (this.accessBits != null)
+			this.accessBits[pos >>> 6] |= 1L << pos;
+	}
+
+	private ByteBuffer fileBuffer(int pos) {
+		return this.dataBuffers[pos / this.dataNumOfOneFile];
+	}
+
+	private int slotOffset(int pos) {
+		return (pos % this.dataNumOfOneFile) * this.dataSize;
+	}
+
+	private long readKey(int pos) {
+		return fileBuffer(pos).getLong(slotOffset(pos));
+	}
+
+	private int readLen(int pos) {
+		return fileBuffer(pos).getInt(slotOffset(pos) + 8);
+	}
+
+	private int readTime(int pos) {
+		return fileBuffer(pos).getInt(slotOffset(pos) + this.dataSize - 4);
+	}
+
+	// 数据块中的value部分，直接指向数据区
+	private ByteBuffer valueBuffer(int pos, int len) {
+		ByteBuffer tmpBuffer = fileBuffer(pos).duplicate();
+		int offset = slotOffset(pos);
+		tmpBuffer.position(offset + 12);
+		tmpBuffer.limit(offset + 12 + len);
+		return tmpBuffer.slice();
+	}
+
+	private void writeData(int pos, byte[] bytes, int len, long time) {
+		if (len > 0) {
+			ByteBuffer tmpBuffer = fileBuffer(pos).duplicate();
+			tmpBuffer.position(slotOffset(pos) + 12);
+			tmpBuffer.put(bytes, 0, len);
+		}
+		writeLenAndTime(pos, len, time);
+	}
+
+	// 只写涉及的字节；长度变化时才写长度，时间戳不同时才写时间戳，尽量少弄脏页
+	private void writePart(long key, int pos, int valueOffset,
+			ByteBuffer src, long time) throws StorageException {
+		int len = readLen(pos);
+		int end = valueOffset + src.remaining();
+		ByteBuffer value = valueBuffer(pos, Math.max(len, end));
+		for (int i = len; i < valueOffset; i++) {
+			value.put(i, (byte) 0);
+		}
+		value.position(valueOffset);
+		value.put(src.duplicate());
+
+		ByteBuffer buffer = fileBuffer(pos);
+		int offset = slotOffset(pos);
+		if (end > len) {
+			buffer.putInt(offset + 8, end);
+			if (end > this.statMaxDatasize)
+				this.statMaxDatasize = end;
+		}
+		int now = (int) (time / 1000);
+		if (buffer.getInt(offset + this.dataSize - 4) != now)
+			buffer.putInt(offset + this.dataSize - 4, now);
+		markBlock(pos, now);
+		writeChecksum(pos, Math.max(len, end));
+
+		if (this.changeLog != null) {
+			value.position(0);
+			this.changeLog.logPut(key, value);
+		}
+	}
+
+	private void writeLenAndTime(int pos, int len, long time) {
+		ByteBuffer buffer = fileBuffer(pos);
+		int offset = slotOffset(pos);
+		buffer.putInt(offset + 8, len);
+		buffer.putInt(offset + this.dataSize - 4, (int) (time / 1000));
+		writeChecksum(pos, len);
+		markBlock(pos, (int) (time / 1000));
+	}
+
+	private void markBlock(int pos, int now) {
+		if (this.blockTimes[pos >>> BLOCK_SHIFT] < now)
+			this.blockTimes[pos >>> BLOCK_SHIFT] = now;
+	}
+
+	// 申请数据块，写数据，再写索引；写索引失败时回收数据块并抛出异常
+	private int insertData(long key, byte[] bytes, int len, long time)
+			throws StorageException {
+		return insertData(key, bytes, len, time, false);
+	}
+
+	// skipConflictFull为true时，不可增长模式下冲突区满返回0而不抛异常
+	private int insertData(long key, byte[] bytes, int len, long time,
+			boolean skipConflictFull) throws StorageException {
+		if (isGrowable() && this.index.isFull())
+			grow(nextDataNum());
+		int pos = this.index.insertData();
+		try {
+			ensureDataFile(pos);
+		} catch (StorageException e) {
+			this.index.freeData(pos);
+			throw e;
+		}
+		fileBuffer(pos).putLong(slotOffset(pos), key);
+		writeData(pos, bytes, len, time);
+		try {
+			this.index.insertIndex(key, pos);
+		} catch (StorageException e) {
+			// for reuse
 			this.index.freeData(pos);
+			clearSlot(pos);
+			if (!isGrowable()) {
+				if (skipConflictFull)
+					return 0;
+				throw e;
+			}
+			// 冲突区满了，扩容后重试
+			grow(nextDataNum());
+			return insertData(key, bytes, len, time, skipConflictFull);
 		}
+		if (this.orderedIndex != null)
+			this.orderedIndex.put(key, pos);
+		return pos;
+	}
 
-		long endTime = System.currentTimeMillis();
-		statUseMsec += (endTime - startTime);
+	// 打开到pos所在的数据文件为止，可增长模式下每段都是整段大小
+	private void ensureDataFile(int pos) throws StorageException {
+		int idx = pos / this.dataNumOfOneFile;
+		while (this.dataFileNum <= idx) {
+			int num = isGrowable() ? this.dataNumOfOneFile : Math.min(
+					this.dataNumOfOneFile, this.index.size() + 1
+							- this.dataFileNum * this.dataNumOfOneFile);
+			try {
+				this.dataBuffers[this.dataFileNum] = this.backend.openData(
+						this.dataFileNum, num * this.dataSize);
+			} catch (IOException e) {
+				throw new StorageException("open data file failed: "
+						+ this.dataFileNum, e);
+			}
+			this.dataFileNum++;
+		}
+	}
+
+	// 已打开的数据块范围[1, scanLimit)
+	private int scanLimit() {
+		return (int) Math.min(this.index.size() + 1L, (long) this.dataFileNum
+				* this.dataNumOfOneFile);
+	}
+
+	// 先查位置缓存，数据块中的key一致时直接用，否则查索引并放入缓存
+	private int getIndex(long key) {
+		checkOpen();
+		if (this.posCache == null)
+			return this.index.getIndex(key);
+
+		int pos = this.posCache.get(key);
+		if (pos > 0 && readKey(pos) == key)
+			return pos;
+		pos = this.index.getIndex(key);
+		if (pos > 0)
+			this.posCache.put(key, pos);
+		return pos;
+	}
+
+	private void freeData(long key, int pos) throws StorageException {
+		if (this.posCache != null)
+			this.posCache.remove(key);
+		if (this.orderedIndex != null)
+			this.orderedIndex.remove(key);
+		clearSlot(pos);
+		this.index.freeIndex(key);
+		this.index.freeData(pos);
+	}
+
+	private void clearSlot(int pos) {
+		ByteBuffer buffer = fileBuffer(pos);
+		int offset = slotOffset(pos);
+		buffer.putLong(offset, 0); // just for resume
+		buffer.putInt(offset + 8, 0); // just for resume
+	}
+
+	// hot为null时遍历热数据区；否则遍历冷数据层，拷出每段key的同时取得hot上新记下的迁移key，锁外回调时跳过
+	private void forEachKey(KeyCursor cursor, KeyCursor hot,
+			final LongConsumer consumer) {
+		boolean cold = hot != null;
+		final Set<Long> moved = new HashSet<Long>();
+		int movedTo = 0;
+		LongConsumer target = !cold ? consumer : new LongConsumer() {
+			@Override
+			public void accept(long key) {
+				if (!moved.contains(key))
+					consumer.accept(key);
+			}
+		};
+		for (;;) {
+			synchronized (this) {
+				checkOpen();
+				Index idx = cold ? (this.coldTier == null ? null
+						: this.coldTier.getIndex()) : this.index;
+				if (idx == null || !cursor.begin(idx.getHashNum()))
+					return;
+				idx.forEachKey(cursor.from(), cursor.to(), cursor);
+				cursor.commit();
+				for (; cold && movedTo < hot.getMovedNum(); movedTo++) {
+					moved.add(hot.getMoved(movedTo));
+				}
+			}
+			cursor.emit(target);
+		}
+	}
+
+	// 遍历[from, to)范围内的数据块
+	private void scanRange(int from, int to, DataVisitor visitor) {
+		for (int pos = from; pos < to; pos++) {
+			long key = readKey(pos);
+			if (key == 0)
+				continue;
+
+			visitor.visit(key, valueBuffer(pos, readLen(pos)));
+		}
 	}
 
 	@Override
 	public String toString() {
+		if (this.closed)
+			return "Storage [" + this.statFile + "] closed";
 		return index.toString();
 	}
 
+	private void checkDataRange(int idx, int offset, int len) {
+		if (idx < 0 || idx >= this.dataFileNum || offset < 0 || len <= 0
+				|| offset + (long) len > getDataFileSize(idx))
+			throw new IllegalArgumentException("argument err. idx:" + idx
+					+ ", offset:" + offset + ", len:" + len);
+	}
+
+	private void endStat(long startTime) {
+		statUseMsec += (System.currentTimeMillis() - startTime);
+		if (this.maintenance != null)
+			this.maintenance.recordLatency(System.nanoTime()
+					- this.statStartNanos);
+	}
+
 	// TODO: System.out.println change to logger
-	private void doStat(long time) {
+	private void doStat(long key, long time) {
+		checkOpen();
+		if (this.maintenance != null)
+			this.statStartNanos = System.nanoTime();
+		if (this.hotKeys != null)
+			this.hotKeys.record(key);
 		if (time - statLastRecordTime > 1000 * 60 * 60) {
 			statLastRecordTime = time;
 			long avg = statUseMsec == 0 ? 0
@@ -272,6 +1574,8 @@ public class Storage {
 				System.out.println("[" + statFile + "] warning: dataSizeRate="
 						+ dataSizeRate);
 			}
+			if (this.hotKeys != null)
+				System.out.println("[" + statFile + "] " + this.hotKeys);
 		}
 	}
 
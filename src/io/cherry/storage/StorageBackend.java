@@ -0,0 +1,46 @@
+package io.cherry.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// 存储后端，为Storage提供索引区和数据区的ByteBuffer
+// 数据区按Storage计算好的大小分成多块(单块不超过2G)，第idx块由openData(idx, size)提供
+public interface StorageBackend {
+	// 用于日志和统计输出
+	String getName();
+
+	// 数据块分布的设备数，多于1时Storage会把数据区拆成该数的整数倍块，并按设备并行做io
+	int getStripeNum();
+
+	// 索引是否已存在，已存在时校验，否则初始化
+	boolean hasIndex();
+
+	ByteBuffer openIndex(int size) throws IOException;
+
+	ByteBuffer openData(int idx, int size) throws IOException;
+
+	// 扩容用: 另建一个索引区，不影响当前索引，构建好后调用commitNewIndex替换当前索引
+	ByteBuffer openNewIndex(int size) throws IOException;
+
+	void commitNewIndex() throws IOException;
+
+	void loadIndex();
+
+	void loadData(int idx);
+
+	void forceIndex();
+
+	void forceData(int idx);
+
+	// 数据文件中[offset, offset + len)读入内存/刷盘，供后台任务分段执行
+	void loadData(int idx, int offset, int len);
+
+	void forceData(int idx, int offset, int len);
+
+	// 第idx块数据对应的文件，供调用方在锁外用FileChannel预读；数据不在文件中时返回null
+	File getDataFile(int idx);
+
+	// 释放所有映射和文件，之后不能再使用之前返回的ByteBuffer
+	void close() throws IOException;
+}
@@ -0,0 +1,537 @@
+package io.cherry.storage;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+// YCSB风格的压测工具: 装载 -> 预热 -> 正式运行
+// 可配置操作比例、key分布(zipfian/latest/uniform)、value长度分布、线程数、分片数
+// 输出吞吐、各操作延迟分位数、缺页数(/proc/self/stat)，结果同时以一行json输出，便于比较不同配置
+// 记录号i对应的key为mix64(i+1)，热点记录分散在整个key空间，不会集中在索引的相邻位置
+// 用法: StorageBench key=value ...，参数见DEFAULTS
+public class StorageBench {
+	private static final String[][] DEFAULTS = {
+			{ "file", "/tmp/storage-bench" }, // 文件名前缀，已存在的文件会被删除
+			{ "shards", "0" }, // 0为单个Storage(加锁访问)，>0为ShardedStorage分片数
+			{ "dataNum", "1000000" }, // 单个Storage/分片的容量
+			{ "dataSize", "256" }, // 数据块大小
+			{ "fill", "0.8" }, // 装载的记录数占总容量的比例
+			{ "records", "-1" }, // 装载的记录数，>=0时忽略fill
+			{ "threads", "4" },
+			{ "warmupSec", "5" },
+			{ "runSec", "30" },
+			{ "read", "80" }, // 各操作比例(百分比，合计100)
+			{ "update", "15" },
+			{ "insert", "0" },
+			{ "delete", "5" },
+			{ "dist", "zipfian" }, // zipfian/latest/uniform
+			{ "theta", "0.99" }, // zipfian参数
+			{ "valueMin", "100" }, // value长度在[valueMin, valueMax]内均匀分布
+			{ "valueMax", "100" },
+			{ "out", "" } // json结果追加到该文件，为空只打印
+	};
+
+	private static final int PHASE_WARMUP = 0;
+	private static final int PHASE_RUN = 1;
+	private static final int PHASE_STOP = 2;
+
+	private static final int OP_READ = 0;
+	private static final int OP_UPDATE = 1;
+	private static final int OP_INSERT = 2;
+	private static final int OP_DELETE = 3;
+	private static final String[] OP_NAMES = { "read", "update", "insert",
+			"delete" };
+
+	// 被测对象，单个Storage时在storage锁内访问
+	private interface Target {
+		byte[] get(long key);
+
+		void put(long key, byte[] bytes) throws StorageException;
+
+		void free(long key) throws StorageException;
+
+		int getMaxValueSize();
+
+		String describe();
+	}
+
+	private final Map<String, String> conf = new HashMap<String, String>();
+	private Target target;
+	private final AtomicLong recordNum = new AtomicLong();
+	private volatile int phase;
+	private String dist;
+	private ZipfianGenerator zipfian;
+
+	public StorageBench(String[] args) {
+		for (int i = 0; i < DEFAULTS.length; i++) {
+			this.conf.put(DEFAULTS[i][0], DEFAULTS[i][1]);
+		}
+		for (int i = 0; i < args.length; i++) {
+			int idx = args[i].indexOf('=');
+			if (idx <= 0 || !this.conf.containsKey(args[i].substring(0, idx)))
+				throw new IllegalArgumentException("argument err. " + args[i]);
+			this.conf.put(args[i].substring(0, idx), args[i].substring(idx + 1));
+		}
+		if (getInt("read") + getInt("update") + getInt("insert")
+				+ getInt("delete") != 100)
+			throw new IllegalArgumentException(
+					"argument err. read+update+insert+delete must be 100");
+		if (getInt("valueMin") < 0 || getInt("valueMax") < getInt("valueMin"))
+			throw new IllegalArgumentException("argument err. valueMin:"
+					+ getInt("valueMin") + ", valueMax:" + getInt("valueMax"));
+	}
+
+	// 用已打开的Storage压测，调用方负责关闭
+	public StorageBench(Storage storage, String[] args) {
+		this(args);
+		this.conf.put("shards", "0");
+		this.conf.put("dataNum", String.valueOf(storage.size()));
+		this.target = storageTarget(storage);
+	}
+
+	public String run() throws StorageException, IOException,
+			InterruptedException {
+		if (this.target == null)
+			this.target = openTarget();
+		int valueMax = getInt("valueMax");
+		if (valueMax > this.target.getMaxValueSize())
+			throw new IllegalArgumentException("argument err. valueMax:"
+					+ valueMax + " > maxValueSize:"
+					+ this.target.getMaxValueSize());
+
+		int shardNum = Math.max(1, getInt("shards"));
+		long records = Long.parseLong(this.conf.get("records"));
+		if (records < 0)
+			records = (long) (getInt("dataNum") * (double) shardNum * Double
+					.parseDouble(this.conf.get("fill")));
+		load(records);
+		this.dist = this.conf.get("dist");
+		if (!"zipfian".equals(this.dist) && !"latest".equals(this.dist)
+				&& !"uniform".equals(this.dist))
+			throw new IllegalArgumentException("argument err. dist:"
+					+ this.dist);
+		this.zipfian = new ZipfianGenerator(Math.max(1, records),
+				Double.parseDouble(this.conf.get("theta")));
+
+		int threadNum = getInt("threads");
+		Worker[] workers = new Worker[threadNum];
+		for (int i = 0; i < threadNum; i++) {
+			workers[i] = new Worker(i);
+		}
+
+		this.phase = PHASE_WARMUP;
+		for (int i = 0; i < threadNum; i++) {
+			workers[i].thread.start();
+		}
+		System.out.println("warm up " + getInt("warmupSec") + "s");
+		Thread.sleep(getInt("warmupSec") * 1000L);
+
+		long[] faultsBefore = readPageFaults();
+		long startTime = System.nanoTime();
+		this.phase = PHASE_RUN;
+		System.out.println("run " + getInt("runSec") + "s");
+		Thread.sleep(getInt("runSec") * 1000L);
+		this.phase = PHASE_STOP;
+		long useNanos = System.nanoTime() - startTime;
+		for (int i = 0; i < threadNum; i++) {
+			workers[i].thread.join();
+		}
+		long[] faultsAfter = readPageFaults();
+
+		Histogram[] total = new Histogram[OP_NAMES.length];
+		long errors = 0;
+		for (int op = 0; op < OP_NAMES.length; op++) {
+			total[op] = new Histogram();
+			for (int i = 0; i < threadNum; i++) {
+				total[op].merge(workers[i].histograms[op]);
+			}
+		}
+		for (int i = 0; i < threadNum; i++) {
+			errors += workers[i].errors;
+		}
+
+		String json = toJson(total, errors, useNanos, faultsBefore,
+				faultsAfter);
+		String out = this.conf.get("out");
+		if (out.length() > 0) {
+			FileOutputStream fos = new FileOutputStream(out, true);
+			try {
+				fos.write((json + "\n").getBytes(StandardCharsets.UTF_8));
+			} finally {
+				fos.close();
+			}
+		}
+		return json;
+	}
+
+	private Target openTarget() throws StorageException, IOException {
+		String file = this.conf.get("file");
+		File dir = new File(file).getAbsoluteFile().getParentFile();
+		final String name = new File(file).getName();
+		File[] old = dir.listFiles();
+		if (old != null) {
+			for (int i = 0; i < old.length; i++) {
+				if (old[i].getName().startsWith(name + "."))
+					Files.delete(old[i].toPath());
+				else if (old[i].getName().startsWith(name + "_"))
+					Files.delete(old[i].toPath());
+			}
+		}
+
+		int shards = getInt("shards");
+		if (shards <= 0)
+			return storageTarget(new Storage(file, getInt("dataNum"),
+					getInt("dataSize")));
+
+		final ShardedStorage storage = new ShardedStorage(file, shards,
+				getInt("dataNum"), getInt("dataSize"));
+		return new Target() {
+			@Override
+			public byte[] get(long key) {
+				return storage.get(key);
+			}
+
+			@Override
+			public void put(long key, byte[] bytes) throws StorageException {
+				storage.put(key, bytes);
+			}
+
+			@Override
+			public void free(long key) throws StorageException {
+				storage.free(key);
+			}
+
+			@Override
+			public int getMaxValueSize() {
+				return storage.getShard(0).getMaxValueSize();
+			}
+
+			@Override
+			public String describe() {
+				return storage.toString();
+			}
+		};
+	}
+
+	private static Target storageTarget(final Storage storage) {
+		return new Target() {
+			@Override
+			public byte[] get(long key) {
+				synchronized (storage) {
+					return storage.get(key);
+				}
+			}
+
+			@Override
+			public void put(long key, byte[] bytes) throws StorageException {
+				synchronized (storage) {
+					storage.put(key, bytes);
+				}
+			}
+
+			@Override
+			public void free(long key) throws StorageException {
+				synchronized (storage) {
+					storage.free(key);
+				}
+			}
+
+			@Override
+			public int getMaxValueSize() {
+				return storage.getMaxValueSize();
+			}
+
+			@Override
+			public String describe() {
+				return storage.toString();
+			}
+		};
+	}
+
+	// 装载records条记录，各线程分段写入
+	private void load(final long records) throws InterruptedException {
+		int threadNum = getInt("threads");
+		final long per = (records + threadNum - 1) / threadNum;
+		final AtomicLong errors = new AtomicLong();
+		Thread[] threads = new Thread[threadNum];
+		long startTime = System.currentTimeMillis();
+		for (int t = 0; t < threadNum; t++) {
+			final long from = t * per;
+			threads[t] = new Thread("bench-load-" + t) {
+				@Override
+				public void run() {
+					Random random = new Random(from);
+					for (long i = from; i < from + per && i < records; i++) {
+						try {
+							target.put(keyOf(i), newValue(random));
+						} catch (StorageException e) {
+							errors.incrementAndGet();
+						}
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (int t = 0; t < threadNum; t++) {
+			threads[t].join();
+		}
+		this.recordNum.set(records);
+		System.out.println("load " + records + " records, use "
+				+ (System.currentTimeMillis() - startTime) + "ms, errors:"
+				+ errors.get());
+	}
+
+	private byte[] newValue(Random random) {
+		int min = getInt("valueMin");
+		int max = getInt("valueMax");
+		byte[] value = new byte[min == max ? min : min
+				+ random.nextInt(max - min + 1)];
+		random.nextBytes(value);
+		return value;
+	}
+
+	// 记录号转key，保证为正数
+	private static long keyOf(long record) {
+		long key = Utils.mix64(record + 1) & Long.MAX_VALUE;
+		return key == 0 ? 1 : key;
+	}
+
+	private long nextRecord(Random random) {
+		long num = this.recordNum.get();
+		if (num <= 0)
+			return 0;
+		if ("uniform".equals(this.dist))
+			return (long) (random.nextDouble() * num);
+		long z = this.zipfian.next(random);
+		if ("latest".equals(this.dist))
+			return Math.max(0, num - 1 - z);
+		return z % num;
+	}
+
+	private int getInt(String name) {
+		return Integer.parseInt(this.conf.get(name));
+	}
+
+	// linux下/proc/self/stat的minflt/majflt，其他系统返回-1
+	static long[] readPageFaults() {
+		try {
+			String stat = new String(Files.readAllBytes(new File(
+					"/proc/self/stat").toPath()), StandardCharsets.UTF_8);
+			// 进程名可能含空格，从右括号之后开始数: state为第3个字段，minflt为第10个，majflt为第12个
+			String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(
+					" ");
+			return new long[] { Long.parseLong(fields[7]),
+					Long.parseLong(fields[9]) };
+		} catch (IOException e) {
+			return new long[] { -1, -1 };
+		} catch (RuntimeException e) {
+			return new long[] { -1, -1 };
+		}
+	}
+
+	private String toJson(Histogram[] total, long errors, long useNanos,
+			long[] faultsBefore, long[] faultsAfter) {
+		long ops = 0;
+		for (int op = 0; op < OP_NAMES.length; op++) {
+			ops += total[op].count;
+		}
+
+		StringBuilder sb = new StringBuilder("{\"config\":{");
+		boolean first = true;
+		for (int i = 0; i < DEFAULTS.length; i++) {
+			if (!first)
+				sb.append(',');
+			first = false;
+			sb.append('"').append(DEFAULTS[i][0]).append("\":\"")
+					.append(this.conf.get(DEFAULTS[i][0]).replace("\\", "\\\\")
+							.replace("\"", "\\\"")).append('"');
+		}
+		sb.append("},\"ops\":").append(ops);
+		sb.append(",\"errors\":").append(errors);
+		sb.append(",\"seconds\":").append(useNanos / 1e9);
+		sb.append(",\"throughput\":").append(
+				(long) (ops * 1e9 / Math.max(1, useNanos)));
+		sb.append(",\"minorFaults\":").append(
+				faultsBefore[0] < 0 ? -1 : faultsAfter[0] - faultsBefore[0]);
+		sb.append(",\"majorFaults\":").append(
+				faultsBefore[1] < 0 ? -1 : faultsAfter[1] - faultsBefore[1]);
+		for (int op = 0; op < OP_NAMES.length; op++) {
+			Histogram h = total[op];
+			if (h.count == 0)
+				continue;
+			sb.append(",\"").append(OP_NAMES[op]).append("\":{\"count\":")
+					.append(h.count).append(",\"avgUs\":")
+					.append(h.sum / h.count / 1000.0).append(",\"p50Us\":")
+					.append(h.percentile(50) / 1000.0).append(",\"p90Us\":")
+					.append(h.percentile(90) / 1000.0).append(",\"p99Us\":")
+					.append(h.percentile(99) / 1000.0).append(",\"p999Us\":")
+					.append(h.percentile(99.9) / 1000.0)
+					.append(",\"maxUs\":").append(h.max / 1000.0).append('}');
+		}
+		sb.append('}');
+		return sb.toString();
+	}
+
+	private class Worker implements Runnable {
+		private final Thread thread;
+		private final Random random;
+		private final Histogram[] histograms = new Histogram[OP_NAMES.length];
+		private long errors;
+
+		Worker(int idx) {
+			this.thread = new Thread(this, "bench-worker-" + idx);
+			this.random = new Random(idx * 0x9E3779B97F4A7C15L);
+			for (int op = 0; op < OP_NAMES.length; op++) {
+				this.histograms[op] = new Histogram();
+			}
+		}
+
+		@Override
+		public void run() {
+			int readRate = getInt("read");
+			int updateRate = readRate + getInt("update");
+			int insertRate = updateRate + getInt("insert");
+			for (;;) {
+				int p = phase;
+				if (p == PHASE_STOP)
+					return;
+
+				int r = this.random.nextInt(100);
+				int op = r < readRate ? OP_READ : r < updateRate ? OP_UPDATE
+						: r < insertRate ? OP_INSERT : OP_DELETE;
+				long key = op == OP_INSERT ? keyOf(recordNum
+						.getAndIncrement()) : keyOf(nextRecord(this.random));
+				byte[] value = op == OP_UPDATE || op == OP_INSERT ? newValue(this.random)
+						: null;
+
+				long start = System.nanoTime();
+				try {
+					if (op == OP_READ)
+						target.get(key);
+					else if (op == OP_DELETE)
+						target.free(key);
+					else
+						target.put(key, value);
+				} catch (StorageException e) {
+					++this.errors;
+				}
+				if (p == PHASE_RUN)
+					this.histograms[op].record(System.nanoTime() - start);
+			}
+		}
+	}
+
+	// YCSB的zipfian生成器(Gray等, Quickly Generating Billion-Record Synthetic Databases)
+	// 返回[0, n)，0最热
+	static class ZipfianGenerator {
+		private final long n;
+		private final double theta;
+		private final double alpha;
+		private final double zetan;
+		private final double eta;
+
+		ZipfianGenerator(long n, double theta) {
+			this.n = n;
+			this.theta = theta;
+			this.alpha = 1.0 / (1.0 - theta);
+			this.zetan = zeta(n, theta);
+			double zeta2 = zeta(2, theta);
+			this.eta = (1 - Math.pow(2.0 / n, 1 - theta))
+					/ (1 - zeta2 / this.zetan);
+		}
+
+		long next(Random random) {
+			double u = random.nextDouble();
+			double uz = u * this.zetan;
+			if (uz < 1.0)
+				return 0;
+			if (uz < 1.0 + Math.pow(0.5, this.theta))
+				return Math.min(1, this.n - 1);
+			return Math.min(this.n - 1, (long) (this.n * Math.pow(this.eta
+					* u - this.eta + 1, this.alpha)));
+		}
+
+		private static double zeta(long n, double theta) {
+			double sum = 0;
+			for (long i = 1; i <= n; i++) {
+				sum += 1 / Math.pow(i, theta);
+			}
+			return sum;
+		}
+	}
+
+	// 对数分桶的延迟直方图(纳秒)，每个2的幂区间分16个桶，误差约6%
+	static class Histogram {
+		private final long[] counts = new long[64 * 16];
+		private long count;
+		private long sum;
+		private long max;
+
+		void record(long nanos) {
+			if (nanos < 0)
+				nanos = 0;
+			++this.counts[index(nanos)];
+			++this.count;
+			this.sum += nanos;
+			if (nanos > this.max)
+				this.max = nanos;
+		}
+
+		void merge(Histogram other) {
+			for (int i = 0; i < this.counts.length; i++) {
+				this.counts[i] += other.counts[i];
+			}
+			this.count += other.count;
+			this.sum += other.sum;
+			this.max = Math.max(this.max, other.max);
+		}
+
+		// 返回所在桶的下界
+		long percentile(double p) {
+			long target = (long) Math.ceil(this.count * p / 100);
+			long seen = 0;
+			for (int i = 0; i < this.counts.length; i++) {
+				seen += this.counts[i];
+				if (seen >= target && seen > 0)
+					return Math.min(this.max, value(i));
+			}
+			return this.max;
+		}
+
+		private static int index(long nanos) {
+			if (nanos < 16)
+				return (int) nanos;
+			int e = 63 - Long.numberOfLeadingZeros(nanos);
+			return (e - 3) * 16 + (int) ((nanos >>> (e - 4)) & 15);
+		}
+
+		private static long value(int idx) {
+			if (idx < 16)
+				return idx;
+			int e = idx / 16 + 3;
+			return (16L + idx % 16) << (e - 4);
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length > 0 && ("-h".equals(args[0]) || "help".equals(args[0]))) {
+			System.out.println("usage: StorageBench [key=value ...]");
+			for (int i = 0; i < DEFAULTS.length; i++) {
+				System.out.println("  " + DEFAULTS[i][0] + "="
+						+ DEFAULTS[i][1]);
+			}
+			return;
+		}
+
+		StorageBench bench = new StorageBench(args);
+		String json = bench.run();
+		System.out.println(bench.target.describe());
+		System.out.println(json);
+	}
+}
@@ -0,0 +1,338 @@
+package io.cherry.storage;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// 索引一致性检查和修复，由StorageKit.fsck调用，以数据块中的key为准
+// 1. hash区每条冲突链: 无环，长度不超过conflictNum，元素key落在本hash位置，pos合法且数据块中key一致，
+//    链内key不重复，冲突区元素只被一条链引用一次
+// 2. 冲突区空闲链与被引用的冲突元素一致，useConflictNum正确
+// 3. 数据区空闲链的使用位、usedNum、空闲链与数据块的key一致
+// 4. 数据块中有key但没有索引指向的(孤儿)
+// 修复只改出问题的部分: 空闲链按使用位重写，出问题的冲突链清空，孤儿重新插入索引
+// 冲突链按hash区分段多线程检查
+class StorageFsck {
+	private static final int MAX_PRINT = 20;
+
+	private final ByteBuffer indexBuffer;
+	private final ByteBuffer[] dataBuffers;
+	private final int dataNumOfOneFile;
+	private final long[] keys;
+	private final int hashNum;
+	private final int conflictNum;
+	private final int dataNum;
+	private final int dataSize;
+
+	private final ByteBuffer hashBuffer;
+	private final ByteBuffer conflictBucketBuffer;
+	private final ByteBuffer conflictBuffer;
+	private final ByteBuffer dataBucketBuffer;
+
+	// 冲突区元素被哪条链引用(hash位置+1)，0为未引用
+	private AtomicIntegerArray conflictOwner;
+	// 被合法索引元素指向的数据块
+	private AtomicLongArray posRef;
+	private BitSet damaged;
+	private final AtomicInteger printNum = new AtomicInteger();
+
+	// keys为各数据块的key，下标为数据块位置
+	StorageFsck(ByteBuffer indexBuffer, ByteBuffer[] dataBuffers,
+			int dataNumOfOneFile, long[] keys, int hashNum, int conflictNum,
+			int dataNum, int dataSize) {
+		this.indexBuffer = indexBuffer;
+		this.dataBuffers = dataBuffers;
+		this.dataNumOfOneFile = dataNumOfOneFile;
+		this.keys = keys;
+		this.hashNum = hashNum;
+		this.conflictNum = conflictNum;
+		this.dataNum = dataNum;
+		this.dataSize = dataSize;
+
+		this.hashBuffer = slice(Index.HEADER_SIZE, hashNum
+				* Index.HASH_UNIT_SIZE);
+		this.conflictBucketBuffer = slice(Index.conflictBucketOffset(hashNum),
+				Bucket.calSize(conflictNum));
+		this.conflictBuffer = slice(
+				Index.conflictOffset(hashNum, conflictNum),
+				(conflictNum + 1) * Index.HASH_UNIT_SIZE);
+		this.dataBucketBuffer = slice(
+				Index.dataBucketOffset(hashNum, conflictNum),
+				Bucket.calSize(dataNum));
+	}
+
+	// 返回发现的问题数量，repair为true时修复
+	int run(boolean repair) throws StorageException {
+		long startTime = System.currentTimeMillis();
+		int problemNum = 0;
+
+		// index header
+		IntBuffer header = this.indexBuffer.asIntBuffer();
+		boolean headerBad = header.get(0) != Index.HASH_VERSION
+				|| header.get(1) != this.hashNum
+				|| header.get(2) != this.conflictNum
+				|| header.get(3) != this.dataNum
+				|| header.get(4) != this.dataSize;
+		if (headerBad) {
+			System.out.println("index header err. version=" + header.get(0)
+					+ ", hashNum=" + header.get(1) + ", conflictNum="
+					+ header.get(2) + ", dataNum=" + header.get(3)
+					+ ", dataSize=" + header.get(4));
+			problemNum++;
+		}
+
+		// 冲突链
+		checkChains();
+		int damagedNum = this.damaged.cardinality();
+		if (damagedNum > 0) {
+			System.out.println(damagedNum + " damaged conflict chains");
+			problemNum += damagedNum;
+		}
+
+		// 冲突区空闲链，只算完好的链引用的元素
+		long[] conflictUsed = new long[(this.conflictNum >>> 6) + 1];
+		int useConflictNum = 0;
+		for (int i = 1; i <= this.conflictNum; i++) {
+			int owner = this.conflictOwner.get(i);
+			if (owner > 0 && !this.damaged.get(owner - 1)) {
+				conflictUsed[i >>> 6] |= 1L << i;
+				useConflictNum++;
+			}
+		}
+		int conflictBucketProblem = Bucket.fsck(this.conflictBucketBuffer,
+				this.conflictNum, conflictUsed, "conflict bucket");
+		problemNum += conflictBucketProblem;
+		if (header.get(5) != useConflictNum) {
+			System.out.println("useConflictNum=" + header.get(5)
+					+ ", expected " + useConflictNum);
+			problemNum++;
+		}
+
+		// 数据区空闲链和孤儿
+		long[] dataUsed = new long[(this.dataNum >>> 6) + 1];
+		List<Integer> orphans = new ArrayList<Integer>();
+		int invalidNum = 0;
+		for (int pos = 1; pos <= this.dataNum; pos++) {
+			long key = this.keys[pos];
+			if (key < 0) {
+				print("data invalid at " + pos + ", key:" + key);
+				invalidNum++;
+				continue;
+			}
+			if (key == 0)
+				continue;
+
+			dataUsed[pos >>> 6] |= 1L << pos;
+			if (!isSet(this.posRef, pos) || this.damaged.get(hashIdx(key)))
+				orphans.add(pos);
+		}
+		problemNum += invalidNum;
+		int dataBucketProblem = Bucket.fsck(this.dataBucketBuffer,
+				this.dataNum, dataUsed, "data bucket");
+		problemNum += dataBucketProblem;
+		int orphanNum = 0;
+		for (int pos : orphans) {
+			if (!this.damaged.get(hashIdx(this.keys[pos]))) {
+				print("orphan data at " + pos + ", key:" + this.keys[pos]);
+				orphanNum++;
+			}
+		}
+		problemNum += orphanNum;
+
+		System.out.println("fsck check done. use "
+				+ (System.currentTimeMillis() - startTime) + " ms, problems="
+				+ problemNum + ", damagedChains=" + damagedNum
+				+ ", orphans=" + orphanNum + ", invalid=" + invalidNum);
+		if (!repair || problemNum == 0)
+			return problemNum;
+
+		// 修复
+		if (headerBad) {
+			header.put(0, Index.HASH_VERSION);
+			header.put(1, this.hashNum);
+			header.put(2, this.conflictNum);
+			header.put(3, this.dataNum);
+			header.put(4, this.dataSize);
+		}
+		for (int i = this.damaged.nextSetBit(0); i >= 0; i = this.damaged
+				.nextSetBit(i + 1)) {
+			this.hashBuffer.putLong(i * Index.HASH_UNIT_SIZE, 0);
+			this.hashBuffer.putInt(i * Index.HASH_UNIT_SIZE + 8, 0);
+			this.hashBuffer.putInt(i * Index.HASH_UNIT_SIZE + 12, 0);
+		}
+		if (conflictBucketProblem > 0 || damagedNum > 0)
+			Bucket.rebuild(this.conflictBucketBuffer, this.conflictNum,
+					conflictUsed);
+		header.put(5, useConflictNum);
+		for (int pos = 1; pos <= this.dataNum; pos++) {
+			if (this.keys[pos] < 0)
+				clearSlot(pos);
+		}
+		if (dataBucketProblem > 0 || invalidNum > 0)
+			Bucket.rebuild(this.dataBucketBuffer, this.dataNum, dataUsed);
+
+		// 此时结构已一致，重新插入孤儿；同一key有多个数据块时只保留先插入的
+		Index index = new Index(this.indexBuffer, this.indexBuffer.capacity(),
+				this.hashNum, this.conflictNum, this.dataNum, this.dataSize,
+				false);
+		int insertNum = 0, dropNum = 0;
+		for (int pos : orphans) {
+			long key = this.keys[pos];
+			if (index.getIndex(key) > 0) {
+				print("drop duplicate data at " + pos + ", key:" + key);
+				clearSlot(pos);
+				index.freeData(pos);
+				dropNum++;
+				continue;
+			}
+			try {
+				index.insertIndex(key, pos);
+				insertNum++;
+			} catch (StorageException e) {
+				print("insert index failed at " + pos + ", key:" + key + ", "
+						+ e.getMessage());
+			}
+		}
+		System.out.println("fsck repair done. use "
+				+ (System.currentTimeMillis() - startTime) + " ms, insert="
+				+ insertNum + ", drop=" + dropNum + ", " + index.toString());
+		return problemNum;
+	}
+
+	// hash区分段并行检查，结果写入damaged/conflictOwner/posRef
+	private void checkChains() throws StorageException {
+		this.conflictOwner = new AtomicIntegerArray(this.conflictNum + 1);
+		this.posRef = new AtomicLongArray((this.dataNum >>> 6) + 1);
+		final List<Integer> damagedList = new ArrayList<Integer>();
+		int threadNum = Runtime.getRuntime().availableProcessors();
+		int step = (this.hashNum + threadNum - 1) / threadNum;
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (int t = 0; t < threadNum; t++) {
+			final int from = t * step;
+			final int to = Math.min(this.hashNum, from + step);
+			if (from >= to)
+				break;
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					List<Integer> bad = new ArrayList<Integer>();
+					for (int i = from; i < to; i++) {
+						int other = checkChain(i);
+						if (other != 0) {
+							bad.add(i);
+							if (other > 0)
+								bad.add(other - 1);
+						}
+					}
+					synchronized (damagedList) {
+						damagedList.addAll(bad);
+					}
+					return null;
+				}
+			});
+		}
+		Utils.invokeAll(null, tasks);
+
+		this.damaged = new BitSet(this.hashNum);
+		for (int i : damagedList) {
+			this.damaged.set(i);
+		}
+	}
+
+	// 完好返回0；损坏返回-1，与其他链交叉时返回另一条链的(hash位置+1)
+	private int checkChain(int hashIdx) {
+		int offset = hashIdx * Index.HASH_UNIT_SIZE;
+		long key = this.hashBuffer.getLong(offset);
+		int pos = this.hashBuffer.getInt(offset + 8);
+		int next = this.hashBuffer.getInt(offset + 12);
+		if (key == 0) {
+			if (pos == 0 && next == 0)
+				return 0;
+			print("chain " + hashIdx + ": empty head with pos:" + pos
+					+ ", next:" + next);
+			return -1;
+		}
+
+		List<Long> chainKeys = new ArrayList<Long>();
+		for (int len = 0;; len++) {
+			if (key <= 0 || hashIdx(key) != hashIdx || pos <= 0
+					|| pos > this.dataNum || this.keys[pos] != key
+					|| chainKeys.contains(key)) {
+				print("chain " + hashIdx + ": bad entry key:" + key + ", pos:"
+						+ pos);
+				return -1;
+			}
+			if (!setBit(this.posRef, pos)) {
+				print("chain " + hashIdx + ": pos " + pos + " referenced twice");
+				return -1;
+			}
+			chainKeys.add(key);
+			if (next == 0)
+				return 0;
+
+			if (next < 0 || next > this.conflictNum || len >= this.conflictNum) {
+				print("chain " + hashIdx + ": bad next:" + next + ", len:"
+						+ len);
+				return -1;
+			}
+			// 抢占冲突元素，已被占说明有环或与其他链交叉
+			if (!this.conflictOwner.compareAndSet(next, 0, hashIdx + 1)) {
+				int owner = this.conflictOwner.get(next);
+				print("chain " + hashIdx + ": conflict " + next
+						+ " already referenced by chain " + (owner - 1));
+				return owner - 1 == hashIdx ? -1 : owner;
+			}
+
+			offset = next * Index.HASH_UNIT_SIZE;
+			key = this.conflictBuffer.getLong(offset);
+			pos = this.conflictBuffer.getInt(offset + 8);
+			next = this.conflictBuffer.getInt(offset + 12);
+		}
+	}
+
+	private int hashIdx(long key) {
+		return Math.abs((int) (key % this.hashNum));
+	}
+
+	private void clearSlot(int pos) {
+		ByteBuffer buffer = this.dataBuffers[pos / this.dataNumOfOneFile];
+		int offset = (pos % this.dataNumOfOneFile) * this.dataSize;
+		buffer.putLong(offset, 0);
+		buffer.putInt(offset + 8, 0);
+		this.keys[pos] = 0;
+	}
+
+	private ByteBuffer slice(int offset, int size) {
+		ByteBuffer tmpBuffer = this.indexBuffer.duplicate();
+		tmpBuffer.position(offset);
+		tmpBuffer.limit(offset + size);
+		return tmpBuffer.slice();
+	}
+
+	private void print(String msg) {
+		if (this.printNum.incrementAndGet() <= MAX_PRINT)
+			System.out.println(msg);
+	}
+
+	private static boolean isSet(AtomicLongArray bits, int i) {
+		return (bits.get(i >>> 6) & (1L << i)) != 0;
+	}
+
+	// 置位，已置位返回false
+	private static boolean setBit(AtomicLongArray bits, int i) {
+		long mask = 1L << i;
+		for (;;) {
+			long old = bits.get(i >>> 6);
+			if ((old & mask) != 0)
+				return false;
+			if (bits.compareAndSet(i >>> 6, old, old | mask))
+				return true;
+		}
+	}
+}
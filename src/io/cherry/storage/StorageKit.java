@@ -3,14 +3,25 @@ package io.cherry.storage;
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.zip.CRC32C;
 
 // Tool class
 // 1. 遍历数据(遍历模式取到的ByteBuffer前8个字节为key)
 // 2. 建立索引
 // 3. 修改数据块数量或大小
-public class StorageKit {
+// 4. 校验数据
+// 5. 检查和修复索引(fsck)
+// 6. 离线批量导入(bulkLoad)
+public class StorageKit implements AutoCloseable {
 	private static final long MAX_FILE_SIZE = 0x7FFFFFFF; // 单个数据文件最大支持2G
 
+	private String[] prefixes;
 	private String fileName;
 	private int dataNum;
 	private int dataSize;
@@ -23,48 +34,52 @@ public class StorageKit {
 	// fileName不要加后缀
 	public StorageKit(String fileName, int dataNum, int dataSize)
 			throws StorageException, IOException {
+		this(new String[] { fileName }, dataNum, dataSize);
+	}
+
+	// 多目录模式，目录顺序须和创建Storage时一致
+	public StorageKit(String[] dirs, String name, int dataNum, int dataSize)
+			throws StorageException, IOException {
+		this(Utils.getStripePrefixes(dirs, name), dataNum, dataSize);
+	}
+
+	private StorageKit(String[] prefixes, int dataNum, int dataSize)
+			throws StorageException, IOException {
 		if (dataNum <= 0 || dataSize <= 0)
 			throw new IllegalArgumentException("argument err. dataNum:"
 					+ dataNum + ", dataSize:" + dataSize);
 
-		this.fileName = fileName;
+		this.prefixes = prefixes;
+		this.fileName = prefixes[0];
 		this.dataNum = dataNum;
 		this.dataSize = dataSize + 12;
-		this.dataNumOfOneFile = (int) (MAX_FILE_SIZE / this.dataSize);
-		this.dataNum = 0;
-
-		long totalSize = 1L * (dataNum + 1) * this.dataSize;
-		long size = 0;
-		long lastFileSize = 0;
-		for (;;) {
-			if (totalSize <= size) {
-				break;
-			}
-			long left = totalSize - size;
-			if (left > (this.dataNumOfOneFile * this.dataSize)) {
-				left = this.dataNumOfOneFile * this.dataSize;
-			} else {
-				lastFileSize = left;
-			}
-			size += left;
-			this.dataNum++;
-		}
+		this.dataNumOfOneFile = Storage.calDataNumOfOneFile(dataNum,
+				this.dataSize, prefixes.length);
+		this.dataFileNum = Storage.calDataFileNum(dataNum,
+				this.dataNumOfOneFile);
 		System.out.println("dataFileNum:" + this.dataFileNum
 				+ ", dataNumOfOneFile:" + this.dataNumOfOneFile);
 
+		// 可增长模式的数据文件按固定大小分段，与这里的布局不同，不支持
+		File header = new File(Storage.getDataFileName(prefixes, 0));
+		if (header.exists()) {
+			MmapFile headerFile = new MmapFile(header, 8);
+			int options = Storage.readOptions(headerFile.getBuffer());
+			headerFile.close();
+			if ((options & Storage.OPTION_GROWABLE) != 0)
+				throw new StorageException("growable storage not supported: "
+						+ this.fileName);
+		}
+
 		this.dataFiles = new MmapFile[this.dataFileNum];
 		this.dataBuffers = new ByteBuffer[this.dataFileNum];
 		for (int i = 0; i < this.dataFileNum; i++) {
-			File f = new File(fileName + ".dat" + i);
+			File f = new File(Storage.getDataFileName(prefixes, i));
 			if (!f.exists())
-				throw new StorageException(fileName + ".dat" + i
-						+ " not exists.");
-			if (i == dataFileNum - 1) {
-				this.dataFiles[i] = new MmapFile(f, (int) lastFileSize);
-			} else {
-				this.dataFiles[i] = new MmapFile(f, this.dataSize
-						* this.dataNumOfOneFile);
-			}
+				throw new StorageException(f.getPath() + " not exists.");
+			int num = Math.min(this.dataNumOfOneFile, dataNum + 1 - i
+					* this.dataNumOfOneFile);
+			this.dataFiles[i] = new MmapFile(f, num * this.dataSize);
 			this.dataBuffers[i] = this.dataFiles[i].getBuffer();
 		}
 	}
@@ -85,6 +100,7 @@ public class StorageKit {
 	 * @return ByteBuffer 前8个字节为key，接着是4个字节的长度，再接着是data内容，整个dataSize的最后4个字节是时间戳
 	 */
 	public ByteBuffer getDataBuffer(int idx) {
+		checkOpen();
 		if (idx > this.dataNum) {
 			throw new IllegalArgumentException("idx[" + idx + "] > dataNum["
 					+ this.dataNum + "]");
@@ -105,6 +121,7 @@ public class StorageKit {
 	}
 
 	public byte[] getNotExpiredData(int pos, int expireTime) {
+		checkOpen();
 		ByteBuffer tmpBuffer = this.dataBuffers[pos / this.dataNumOfOneFile]
 				.duplicate();
 		tmpBuffer.position((pos % this.dataNumOfOneFile) * this.dataSize);
@@ -150,32 +167,55 @@ public class StorageKit {
 			throw new StorageException(
 					"StorageKit rebuild index failed: index file[" + fileName
 							+ ".idx] exists.");
+		checkOpen();
 		MmapFile indexFile = new MmapFile(f, indexSize);
-		ByteBuffer buffer = indexFile.getBuffer();
+		try {
+			rebuildIndex(indexFile.getBuffer(), indexSize, hashNum,
+					conflictNum);
+		} finally {
+			indexFile.close();
+		}
+	}
+
+	// 按数据区重建有序索引(fileName.ord*)，已有的会被覆盖
+	public void rebuildOrderedIndex() throws StorageException, IOException {
+		checkOpen();
+		long startTime = System.currentTimeMillis();
+		OrderedIndex orderedIndex = new OrderedIndex(this.fileName);
+		try {
+			orderedIndex.rebuild(readKeys());
+			// 与Storage打开后的写序号一致(打开时奇数序号会加1)，挂上时不再重建
+			int seq = this.dataBuffers[0].getInt(Storage.SEQ_OFFSET);
+			orderedIndex.setStamp((seq & 1) != 0 ? seq + 1 : seq);
+			orderedIndex.flush();
+			System.out.println("rebuild ordered index ok, num="
+					+ orderedIndex.size() + ", use="
+					+ (System.currentTimeMillis() - startTime) + "ms");
+		} finally {
+			orderedIndex.close();
+		}
+	}
+
+	private void rebuildIndex(ByteBuffer buffer, int indexSize, int hashNum,
+			int conflictNum) throws StorageException {
 		Index index = new Index(buffer, indexSize, hashNum, conflictNum,
 				this.dataNum, this.dataSize, true);
 
 		long startTime = System.currentTimeMillis();
 		System.out.println("rebuild index start at: " + startTime);
+		long[] keys = readKeys();
 		int buildNum = 0;
 		int nextLink = 0;
 		int beginLink = 0, endLink = 0;
 		for (int i = this.dataNum; i > 0; i--) {
-			ByteBuffer data = this.getDataBuffer(i - 1);
-			if (data != null) {
-				long key = data.asLongBuffer().get(0);
-				if (key > 0) {
-					++buildNum;
-					index.insertIndex(key, i);
-					index.setDataLinkUsed(i);
-				} else {
-					System.out.println("warning: data invalid at " + i);
-					if (nextLink == 0)
-						endLink = i;
-					index.setDataLink(i, nextLink);
-					nextLink = i;
-				}
+			long key = keys[i];
+			if (key > 0) {
+				++buildNum;
+				index.insertIndex(key, i);
+				index.setDataLinkUsed(i);
 			} else {
+				if (key < 0)
+					System.out.println("warning: data invalid at " + i);
 				if (nextLink == 0)
 					endLink = i;
 				index.setDataLink(i, nextLink);
@@ -196,6 +236,446 @@ public class StorageKit {
 		System.out.println(index.toString());
 	}
 
+	// 校验所有数据块: key须在索引中指向该数据块，长度须合法，开启校验和时校验和须一致
+	// 数据块按位置分成每个cpu一段(可跨数据文件)并行顺序读，单个数据文件也由多个线程分担，返回有问题的key，须在没有写入时执行
+	public List<Long> verify() throws StorageException, IOException {
+		int hashNum = Utils.getlargerPrime(this.dataNum * 2);
+		int conflictNum = Math.abs(this.dataNum / 2);
+		int indexSize = Index.calSize(hashNum, conflictNum, this.dataNum);
+		File f = new File(this.fileName + ".idx");
+		if (!f.exists())
+			throw new StorageException("StorageKit verify failed: index file["
+					+ fileName + ".idx] not exists.");
+		checkOpen();
+		MmapFile indexFile = new MmapFile(f, indexSize);
+		try {
+			return verify(new Index(indexFile.getBuffer(), indexSize, hashNum,
+					conflictNum, this.dataNum, this.dataSize, false));
+		} finally {
+			indexFile.close();
+		}
+	}
+
+	private List<Long> verify(final Index index) throws StorageException {
+		final int options = Storage.readOptions(this.dataBuffers[0]);
+		final int maxValueSize = Storage.calMaxValueSize(this.dataSize,
+				options);
+
+		long startTime = System.currentTimeMillis();
+		System.out.println("verify start at: " + startTime + ", options="
+				+ options);
+		final List<Long> badKeys = new ArrayList<Long>();
+		final int[] checkNum = new int[1];
+		int threadNum = Math.max(Runtime.getRuntime().availableProcessors(),
+				this.prefixes.length);
+		int step = (this.dataNum + threadNum - 1) / threadNum;
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (int t = 0; t < threadNum; t++) {
+			final int from = 1 + t * step;
+			final int to = Math.min(this.dataNum + 1, from + step);
+			if (from >= to)
+				break;
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					CRC32C crc = (options & Storage.OPTION_CHECKSUM) != 0 ? new CRC32C()
+							: null;
+					List<Long> bad = new ArrayList<Long>();
+					int num = 0;
+					for (int pos = from; pos < to; pos++) {
+						ByteBuffer buffer = dataBuffers[pos / dataNumOfOneFile];
+						int offset = (pos % dataNumOfOneFile) * dataSize;
+						long key = buffer.getLong(offset);
+						if (key == 0)
+							continue;
+
+						++num;
+						int len = buffer.getInt(offset + 8);
+						if (key < 0
+								|| index.getIndex(key) != pos
+								|| len < 0
+								|| len > maxValueSize
+								|| (crc != null && Storage.calChecksum(crc,
+										buffer, offset, len) != buffer
+										.getInt(offset + dataSize - 8))) {
+							System.out.println("verify failed at " + pos
+									+ ", key:" + key + ", len:" + len);
+							bad.add(key);
+						}
+					}
+					synchronized (badKeys) {
+						badKeys.addAll(bad);
+						checkNum[0] += num;
+					}
+					return null;
+				}
+			});
+		}
+		Utils.invokeAll(null, tasks);
+
+		long endTime = System.currentTimeMillis();
+		System.out.println("verify done. use " + (endTime - startTime)
+				+ " ms, checkNum = " + checkNum[0] + ", badNum = "
+				+ badKeys.size() + ", indexUsedNum = " + index.getUsedNum());
+		return badKeys;
+	}
+
+	// 检查索引和空闲链与数据块是否一致，见StorageFsck；repair为true时只修复出问题的部分
+	// 返回发现的问题数量，须在Storage关闭时执行
+	public int fsck(boolean repair) throws StorageException, IOException {
+		int hashNum = Utils.getlargerPrime(this.dataNum * 2);
+		int conflictNum = Math.abs(this.dataNum / 2);
+		int indexSize = Index.calSize(hashNum, conflictNum, this.dataNum);
+		File f = new File(this.fileName + ".idx");
+		if (!f.exists() || f.length() != indexSize)
+			throw new StorageException("StorageKit fsck failed: index file["
+					+ fileName + ".idx] not exists or size err, rebuild it.");
+		checkOpen();
+		MmapFile indexFile = new MmapFile(f, indexSize);
+		try {
+			long startTime = System.currentTimeMillis();
+			System.out.println("fsck start at: " + startTime + ", repair="
+					+ repair);
+			StorageFsck fsck = new StorageFsck(indexFile.getBuffer(),
+					this.dataBuffers, this.dataNumOfOneFile, readKeys(),
+					hashNum, conflictNum, this.dataNum, this.dataSize);
+			int problemNum = fsck.run(repair);
+			if (repair && problemNum > 0) {
+				for (int i = 0; i < this.dataFileNum; i++) {
+					this.dataFiles[i].forceWrite();
+				}
+				indexFile.forceWrite();
+			}
+			return problemNum;
+		} finally {
+			indexFile.close();
+		}
+	}
+
+	// 解除所有数据文件的映射，之后再调用其他方法抛IllegalStateException；重复关闭无影响
+	@Override
+	public void close() {
+		if (this.dataFiles == null)
+			return;
+
+		for (int i = 0; i < this.dataFileNum; i++) {
+			this.dataFiles[i].close();
+		}
+		this.dataFiles = null;
+		this.dataBuffers = null;
+	}
+
+	private void checkOpen() {
+		if (this.dataFiles == null)
+			throw new IllegalStateException("storage kit closed: "
+					+ this.fileName);
+	}
+
+	// 离线批量导入到新文件，生成的文件可直接用new Storage(fileName, dataNum, dataSize, options)打开
+	// 数据块从1开始顺序写，不经过索引和空闲链；写完后按hash分段多线程一次性构建hash区、冲突区和空闲链
+	// key重复时后写入的生效；返回导入的key数量
+	// options只支持OPTION_CHECKSUM和OPTION_BITMAP_BUCKET，可增长模式的分段布局不同，不支持
+	public static int bulkLoad(String fileName, int dataNum, int dataSize,
+			int options, Iterator<Map.Entry<Long, byte[]>> source)
+			throws StorageException, IOException {
+		return bulkLoad(new String[] { fileName }, dataNum, dataSize, options,
+				source);
+	}
+
+	// 多目录模式
+	public static int bulkLoad(String[] dirs, String name, int dataNum,
+			int dataSize, int options, Iterator<Map.Entry<Long, byte[]>> source)
+			throws StorageException, IOException {
+		return bulkLoad(Utils.getStripePrefixes(dirs, name), dataNum, dataSize,
+				options, source);
+	}
+
+	private static int bulkLoad(String[] prefixes, int dataNum, int dataSize,
+			int options, Iterator<Map.Entry<Long, byte[]>> source)
+			throws StorageException, IOException {
+		if (dataNum <= 0 || dataSize <= 0)
+			throw new IllegalArgumentException("argument err. dataNum:"
+					+ dataNum + ", dataSize:" + dataSize);
+		if ((options & ~(Storage.OPTION_CHECKSUM | Storage.OPTION_BITMAP_BUCKET)) != 0)
+			throw new IllegalArgumentException("argument err. options:"
+					+ options);
+
+		final int slotSize = dataSize + 12;
+		final int dataNumOfOneFile = Storage.calDataNumOfOneFile(dataNum,
+				slotSize, prefixes.length);
+		int dataFileNum = Storage.calDataFileNum(dataNum, dataNumOfOneFile);
+		if (new File(prefixes[0] + ".idx").exists())
+			throw new StorageException("StorageKit bulkLoad failed: "
+					+ prefixes[0] + ".idx exists.");
+		for (int i = 0; i < dataFileNum; i++) {
+			if (new File(Storage.getDataFileName(prefixes, i)).exists())
+				throw new StorageException("StorageKit bulkLoad failed: "
+						+ Storage.getDataFileName(prefixes, i) + " exists.");
+		}
+
+		long startTime = System.currentTimeMillis();
+		System.out.println("bulk load start at: " + startTime);
+		MmapBackend backend = new MmapBackend(prefixes);
+		try {
+			final ByteBuffer[] dataBuffers = new ByteBuffer[dataFileNum];
+			for (int i = 0; i < dataFileNum; i++) {
+				int num = Math.min(dataNumOfOneFile, dataNum + 1 - i
+						* dataNumOfOneFile);
+				dataBuffers[i] = backend.openData(i, num * slotSize);
+			}
+			dataBuffers[0].putInt(0, Storage.DATA_VERSION);
+			dataBuffers[0].putInt(4, options);
+
+			// 顺序写数据块
+			CRC32C crc = (options & Storage.OPTION_CHECKSUM) != 0 ? new CRC32C()
+					: null;
+			int maxValueSize = Storage.calMaxValueSize(slotSize, options);
+			int now = (int) (System.currentTimeMillis() / 1000);
+			final long[] keys = new long[dataNum + 1];
+			int loadNum = 0;
+			while (source.hasNext()) {
+				Map.Entry<Long, byte[]> entry = source.next();
+				long key = entry.getKey();
+				byte[] value = entry.getValue();
+				if (key <= 0)
+					throw new IllegalArgumentException("key must > 0. key: " + key);
+				if (value.length > maxValueSize)
+					throw new StorageException("StorageKit bulkLoad failed: data too big, key:"
+							+ key);
+				if (loadNum == dataNum)
+					throw new StorageException("StorageKit bulkLoad failed: more than "
+							+ dataNum + " records");
+
+				int pos = ++loadNum;
+				ByteBuffer buffer = dataBuffers[pos / dataNumOfOneFile];
+				int offset = (pos % dataNumOfOneFile) * slotSize;
+				buffer.putLong(offset, key);
+				buffer.putInt(offset + 8, value.length);
+				ByteBuffer tmpBuffer = buffer.duplicate();
+				tmpBuffer.position(offset + 12);
+				tmpBuffer.put(value);
+				if (crc != null)
+					buffer.putInt(offset + slotSize - 8,
+							Storage.calChecksum(crc, buffer, offset, value.length));
+				buffer.putInt(offset + slotSize - 4, now);
+				keys[pos] = key;
+			}
+			System.out.println("write data done. use "
+					+ (System.currentTimeMillis() - startTime) + " ms, num="
+					+ loadNum);
+
+			// 构建索引
+			int hashNum = Utils.getlargerPrime(dataNum * 2);
+			int conflictNum = Math.abs(dataNum / 2);
+			int indexSize = Index.calSize(hashNum, conflictNum, dataNum);
+			ByteBuffer indexBuffer = backend.openIndex(indexSize);
+			new Index(indexBuffer, indexSize, hashNum, conflictNum, dataNum,
+					slotSize, true);
+			int keyNum = buildIndex(indexBuffer, keys, loadNum, hashNum,
+					conflictNum, dataNum);
+
+			// 重复key中被覆盖的数据块，清掉key
+			for (int pos = 1; pos <= loadNum; pos++) {
+				if (keys[pos] == 0) {
+					ByteBuffer buffer = dataBuffers[pos / dataNumOfOneFile];
+					int offset = (pos % dataNumOfOneFile) * slotSize;
+					buffer.putLong(offset, 0);
+					buffer.putInt(offset + 8, 0);
+				}
+			}
+
+			for (int i = 0; i < dataFileNum; i++) {
+				backend.forceData(i);
+			}
+			backend.forceIndex();
+			System.out.println("bulk load succ. use "
+					+ (System.currentTimeMillis() - startTime) + " ms, keyNum="
+					+ keyNum + ", dropNum=" + (loadNum - keyNum));
+			return keyNum;
+		} finally {
+			backend.close();
+		}
+	}
+
+	// 数据块1~loadNum已写好，keys为各数据块的key；重复的key只保留位置最大的，其余在keys中置0
+	// 按hash位置分成若干段，每段先计数冲突数，再按前缀和分配冲突区下标，然后并行写入
+	private static int buildIndex(ByteBuffer indexBuffer, final long[] keys,
+			int loadNum, final int hashNum, int conflictNum, int dataNum)
+			throws StorageException {
+		int partNum = Runtime.getRuntime().availableProcessors();
+		final int range = (hashNum + partNum - 1) / partNum;
+
+		// 按段分桶，段内元素为(hash位置 << 32 | 数据块位置)，排序后同一hash位置的相邻
+		int[] counts = new int[partNum];
+		for (int pos = 1; pos <= loadNum; pos++) {
+			counts[hashIdx(keys[pos], hashNum) / range]++;
+		}
+		final long[][] parts = new long[partNum][];
+		for (int p = 0; p < partNum; p++) {
+			parts[p] = new long[counts[p]];
+			counts[p] = 0;
+		}
+		for (int pos = 1; pos <= loadNum; pos++) {
+			int idx = hashIdx(keys[pos], hashNum);
+			int p = idx / range;
+			parts[p][counts[p]++] = ((long) idx << 32) | pos;
+		}
+
+		// 排序、去重并统计各段冲突数
+		final int[] conflictCounts = new int[partNum];
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (int p = 0; p < partNum; p++) {
+			final int _p = p;
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					long[] part = parts[_p];
+					Arrays.sort(part);
+					int num = 0;
+					for (int i = 0; i < part.length;) {
+						int j = i;
+						int live = 0;
+						while (j < part.length
+								&& (part[j] >>> 32) == (part[i] >>> 32)) {
+							// 后面有相同key时丢弃
+							int pos = (int) part[j];
+							for (int k = j + 1; k < part.length
+									&& (part[k] >>> 32) == (part[i] >>> 32); k++) {
+								if (keys[(int) part[k]] == keys[pos]) {
+									keys[pos] = 0;
+									break;
+								}
+							}
+							if (keys[pos] != 0)
+								live++;
+							j++;
+						}
+						num += live - 1;
+						i = j;
+					}
+					conflictCounts[_p] = num;
+					return null;
+				}
+			});
+		}
+		Utils.invokeAll(null, tasks);
+
+		int useConflictNum = 0;
+		final int[] conflictBases = new int[partNum];
+		for (int p = 0; p < partNum; p++) {
+			conflictBases[p] = useConflictNum + 1;
+			useConflictNum += conflictCounts[p];
+		}
+		if (useConflictNum > conflictNum)
+			throw new StorageException("StorageKit bulkLoad failed: conflict "
+					+ useConflictNum + " > " + conflictNum);
+
+		// 写hash区和冲突区，链头在hash区，其余依次在冲突区
+		final ByteBuffer hashBuffer = slice(indexBuffer, Index.HEADER_SIZE,
+				hashNum * Index.HASH_UNIT_SIZE);
+		final ByteBuffer conflictBuffer = slice(indexBuffer,
+				Index.conflictOffset(hashNum, conflictNum), (conflictNum + 1)
+						* Index.HASH_UNIT_SIZE);
+		tasks.clear();
+		for (int p = 0; p < partNum; p++) {
+			final int _p = p;
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					long[] part = parts[_p];
+					int next = conflictBases[_p];
+					ByteBuffer bb = null;
+					int offset = 0;
+					long lastIdx = -1;
+					for (int i = 0; i < part.length; i++) {
+						int pos = (int) part[i];
+						long key = keys[pos];
+						if (key == 0)
+							continue;
+
+						if ((part[i] >>> 32) != lastIdx) {
+							lastIdx = part[i] >>> 32;
+							bb = hashBuffer;
+							offset = (int) lastIdx * Index.HASH_UNIT_SIZE;
+						} else {
+							bb.putInt(offset + 12, next);
+							bb = conflictBuffer;
+							offset = next * Index.HASH_UNIT_SIZE;
+							next++;
+						}
+						bb.putLong(offset, key);
+						bb.putInt(offset + 8, pos);
+						bb.putInt(offset + 12, 0);
+					}
+					return null;
+				}
+			});
+		}
+		Utils.invokeAll(null, tasks);
+
+		// 空闲链
+		long[] conflictUsed = new long[(conflictNum >>> 6) + 1];
+		for (int i = 1; i <= useConflictNum; i++) {
+			conflictUsed[i >>> 6] |= 1L << i;
+		}
+		Bucket.rebuild(
+				slice(indexBuffer, Index.conflictBucketOffset(hashNum),
+						Bucket.calSize(conflictNum)), conflictNum,
+				conflictUsed);
+		indexBuffer.putInt(20, useConflictNum);
+
+		long[] dataUsed = new long[(dataNum >>> 6) + 1];
+		int keyNum = 0;
+		for (int pos = 1; pos <= loadNum; pos++) {
+			if (keys[pos] != 0) {
+				dataUsed[pos >>> 6] |= 1L << pos;
+				keyNum++;
+			}
+		}
+		Bucket.rebuild(
+				slice(indexBuffer, Index.dataBucketOffset(hashNum, conflictNum),
+						Bucket.calSize(dataNum)), dataNum, dataUsed);
+		return keyNum;
+	}
+
+	private static int hashIdx(long key, int hashNum) {
+		return Math.abs((int) (key % hashNum));
+	}
+
+	private static ByteBuffer slice(ByteBuffer buffer, int offset, int size) {
+		ByteBuffer tmpBuffer = buffer.duplicate();
+		tmpBuffer.position(offset);
+		tmpBuffer.limit(offset + size);
+		return tmpBuffer.slice();
+	}
+
+	// 读出所有数据块的key，下标为数据块位置；每个目录一个线程并行读
+	private long[] readKeys() throws StorageException {
+		final long[] keys = new long[this.dataNum + 1];
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (int d = 0; d < this.prefixes.length && d < this.dataFileNum; d++) {
+			final int first = d;
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					for (int i = first; i < dataFileNum; i += prefixes.length) {
+						int from = Math.max(1, i * dataNumOfOneFile);
+						int to = Math.min(dataNum + 1, (i + 1)
+								* dataNumOfOneFile);
+						ByteBuffer buffer = dataBuffers[i];
+						for (int pos = from; pos < to; pos++) {
+							keys[pos] = buffer.getLong((pos % dataNumOfOneFile)
+									* dataSize);
+						}
+					}
+					return null;
+				}
+			});
+		}
+		Utils.invokeAll(null, tasks);
+		return keys;
+	}
+
 	public void modifyDataFile(String newFileName, int newDataNum,
 			int newDataSize) throws StorageException, IOException {
 		if (newDataNum <= 0 && newDataSize <= 0)
@@ -206,10 +686,29 @@ public class StorageKit {
 		System.out.println("rebuild index start at: " + startTime);
 
 		newDataSize = newDataSize + 12;
-		int newDataNumOfOneFile = (int) (MAX_FILE_SIZE / newDataSize);
-
-		ByteBuffer[] newDataBuffers = createNewFiles(newFileName, newDataNum,
+		checkOpen();
+		MmapFile[] newDataFiles = createNewFiles(newFileName, newDataNum,
 				newDataSize);
+		try {
+			copyData(newDataFiles, newDataNum, newDataSize);
+		} finally {
+			for (int i = 0; i < newDataFiles.length; i++) {
+				newDataFiles[i].close();
+			}
+		}
+
+		long endTime = System.currentTimeMillis();
+		System.out.println("modifyDataFile succ. use " + (endTime - startTime)
+				+ " ms");
+	}
+
+	private void copyData(MmapFile[] newDataFiles, int newDataNum,
+			int newDataSize) {
+		int newDataNumOfOneFile = (int) (MAX_FILE_SIZE / newDataSize);
+		ByteBuffer[] newDataBuffers = new ByteBuffer[newDataFiles.length];
+		for (int i = 0; i < newDataFiles.length; i++) {
+			newDataBuffers[i] = newDataFiles[i].getBuffer();
+		}
 
 		int _num = this.dataNum > newDataNum ? newDataNum : this.dataNum;
 		int _size = this.dataSize > newDataSize ? newDataSize : this.dataSize;
@@ -247,19 +746,15 @@ public class StorageKit {
 			}
 		}
 
-		long endTime = System.currentTimeMillis();
-		System.out.println("modifyDataFile succ. use " + (endTime - startTime)
-				+ " ms");
 		System.out.println("oldNum=" + this.dataNum + ", oldSize="
 				+ this.dataSize + ", newNum=" + newDataNum + ", newSize="
 				+ newDataSize + " ,usedNum=" + usedNum + " ,rebuildNum="
 				+ rebuildNum);
 	}
 
-	private ByteBuffer[] createNewFiles(String newFileName, int newDataNum,
+	private MmapFile[] createNewFiles(String newFileName, int newDataNum,
 			int newDataSize) throws StorageException, IOException {
 		MmapFile[] newDataFiles;
-		ByteBuffer[] newDataBuffers;
 		long newTotalSize = 1L * (newDataNum + 1) * newDataSize;
 		long newSize = 0;
 		long newLastFileSize = 0;
@@ -282,7 +777,6 @@ public class StorageKit {
 				+ ", newDataNumOfOneFile: " + newDataNumOfOneFile);
 
 		newDataFiles = new MmapFile[newDataFileNum];
-		newDataBuffers = new ByteBuffer[newDataFileNum];
 		for (int i = 0; i < newDataFileNum; i++) {
 			File f = new File(newFileName + ".dat" + i);
 			if (f.exists())
@@ -294,10 +788,9 @@ public class StorageKit {
 				newDataFiles[i] = new MmapFile(f, newDataNumOfOneFile
 						* newDataSize);
 			}
-			newDataBuffers[i] = newDataFiles[i].getBuffer();
 		}
 
-		return newDataBuffers;
+		return newDataFiles;
 	}
 
 }
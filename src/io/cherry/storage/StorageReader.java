@@ -0,0 +1,343 @@
+package io.cherry.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.function.LongConsumer;
+import java.util.zip.CRC32C;
+
+// 只读打开正在被其他进程写的Storage(单写多读)，所有文件以READ_ONLY映射，不做任何修改
+// 写进程每次修改前后各把数据区头部的序号加1(seqlock)，读时序号为奇数或前后不一致就重试，读到的总是完整的一条数据
+// 只能读到热数据，冷数据层不可见；写进程扩容(可增长模式)后自动重新打开索引
+// 与Storage一样非线程安全，多线程时各用一个StorageReader或自行加锁
+public class StorageReader implements AutoCloseable {
+	private static final int MAX_SPIN = 1000;
+
+	private final String[] prefixes;
+	private final MmapFile headerFile;
+	private final ByteBuffer header;
+	private final int options;
+	private final CRC32C crc;
+	private MmapFile indexFile;
+	private ByteBuffer indexBuffer;
+	private int hashNum;
+	private int conflictNum;
+	private int dataNum;
+	private int dataSize;
+	private int maxValueSize;
+	private int dataNumOfOneFile;
+	private MmapFile[] dataFiles;
+	private ByteBuffer[] dataBuffers;
+	private boolean closed;
+
+	// fileName不要加后缀
+	public StorageReader(String fileName) throws StorageException,
+			IOException {
+		this(new String[] { fileName });
+	}
+
+	// 多目录模式，目录顺序须和创建Storage时一致
+	public StorageReader(String[] dirs, String name) throws StorageException,
+			IOException {
+		this(Utils.getStripePrefixes(dirs, name));
+	}
+
+	private StorageReader(String[] prefixes) throws StorageException,
+			IOException {
+		this.prefixes = prefixes;
+		File f = new File(Storage.getDataFileName(prefixes, 0));
+		if (!f.exists())
+			throw new StorageException(f.getPath() + " not exists.");
+		this.headerFile = new MmapFile(f, Storage.SEQ_OFFSET + 4, true);
+		this.header = this.headerFile.getBuffer();
+		this.options = Storage.readOptions(this.header);
+		this.crc = (this.options & Storage.OPTION_CHECKSUM) != 0 ? new CRC32C()
+				: null;
+
+		openIndex();
+	}
+
+	public boolean contains(long key) throws StorageException {
+		return readValue(key) != null;
+	}
+
+	// 返回value的拷贝，不存在返回null
+	public byte[] get(long key) throws StorageException {
+		return readValue(key);
+	}
+
+	// 从value的valueOffset处读到dst，返回读取的字节数；key不存在返回-1
+	public int read(long key, int valueOffset, ByteBuffer dst)
+			throws StorageException {
+		if (valueOffset < 0)
+			throw new IllegalArgumentException("argument err. valueOffset:"
+					+ valueOffset);
+
+		byte[] bytes = readValue(key);
+		if (bytes == null)
+			return -1;
+
+		int num = Math.max(0, Math.min(dst.remaining(), bytes.length
+				- valueOffset));
+		if (num > 0)
+			dst.put(bytes, valueOffset, num);
+		return num;
+	}
+
+	// 遍历所有热数据的key，只读索引不读数据区；每段在seqlock保护下拷出，段内有修改就重读该段
+	// 一致性同Storage.forEachKey
+	public void forEachKey(LongConsumer consumer) throws StorageException {
+		checkOpen();
+		KeyCursor cursor = new KeyCursor();
+		for (;;) {
+			int seq = beginRead();
+			if (!cursor.begin(this.hashNum))
+				return;
+			try {
+				Index.forEachKey(this.indexBuffer, this.hashNum,
+						this.conflictNum, cursor.from(), cursor.to(), cursor);
+			} catch (RuntimeException e) {
+				// 读到修改了一半的索引
+				if (endRead(seq))
+					throw e;
+				continue;
+			}
+			if (!endRead(seq))
+				continue;
+
+			cursor.commit();
+			cursor.emit(consumer);
+		}
+	}
+
+	// 近似值，不加锁
+	public int getUsedNum() {
+		checkOpen();
+		return this.indexBuffer.getInt(Index.dataBucketOffset(this.hashNum,
+				this.conflictNum) + 8);
+	}
+
+	public int size() {
+		return this.dataNum;
+	}
+
+	public int getOptions() {
+		return this.options;
+	}
+
+	// 解除所有映射，之后再调用其他方法抛IllegalStateException；重复关闭无影响
+	@Override
+	public void close() throws IOException {
+		if (this.closed)
+			return;
+
+		this.closed = true;
+		this.headerFile.close();
+		if (this.indexFile != null)
+			this.indexFile.close();
+		for (int i = 0; i < this.dataFiles.length; i++) {
+			if (this.dataFiles[i] != null)
+				this.dataFiles[i].close();
+		}
+		this.indexBuffer = null;
+		this.dataBuffers = null;
+	}
+
+	@Override
+	public String toString() {
+		if (this.closed)
+			return "StorageReader [" + this.prefixes[0] + "] closed";
+		return "StorageReader [" + this.prefixes[0] + ", dataNum="
+				+ this.dataNum + ", dataSize=" + this.dataSize + ", used="
+				+ getUsedNum() + "]";
+	}
+
+	// seqlock保护下读取key的value，不存在返回null
+	private byte[] readValue(long key) throws StorageException {
+		if (key <= 0)
+			throw new IllegalArgumentException("key must > 0. key: " + key);
+		checkOpen();
+
+		for (;;) {
+			int seq = beginRead();
+			byte[] bytes = null;
+			int checksum = 0;
+			try {
+				int pos = Index.lookup(this.indexBuffer, this.hashNum,
+						this.conflictNum, key);
+				if (pos > 0 && pos <= this.dataNum) {
+					ByteBuffer buffer = dataBuffer(pos);
+					int offset = (pos % this.dataNumOfOneFile) * this.dataSize;
+					int len = buffer.getInt(offset + 8);
+					if (buffer.getLong(offset) == key && len >= 0
+							&& len <= this.maxValueSize) {
+						bytes = new byte[len];
+						ByteBuffer tmpBuffer = buffer.duplicate();
+						tmpBuffer.position(offset + 12);
+						tmpBuffer.get(bytes);
+						checksum = buffer.getInt(offset + this.dataSize - 8);
+					}
+				}
+			} catch (RuntimeException e) {
+				// 读到修改了一半的索引
+				if (endRead(seq))
+					throw e;
+				continue;
+			} catch (StorageException e) {
+				if (endRead(seq))
+					throw e;
+				continue;
+			}
+			if (!endRead(seq))
+				continue;
+
+			if (bytes != null && this.crc != null
+					&& calChecksum(key, bytes) != checksum)
+				throw new IllegalStateException("checksum err. key=" + key);
+			return bytes;
+		}
+	}
+
+	// 等到序号为偶数(没有修改进行中)时返回序号
+	private int beginRead() throws StorageException {
+		for (int spin = 0;; spin++) {
+			int seq = this.header.getInt(Storage.SEQ_OFFSET);
+			VarHandle.acquireFence();
+			if ((seq & 1) == 0) {
+				if (this.indexBuffer.getInt(0) == Index.HASH_VERSION)
+					return seq;
+				// 写进程扩容后旧索引作废
+				reopenIndex();
+				continue;
+			}
+
+			if (spin < MAX_SPIN) {
+				Thread.onSpinWait();
+			} else {
+				if (!isWriterAlive())
+					throw new StorageException(
+							"writer exited during update, open it with Storage to recover: "
+									+ this.prefixes[0]);
+				Thread.yield();
+				spin = 0;
+			}
+		}
+	}
+
+	// 读期间没有修改返回true
+	private boolean endRead(int seq) {
+		VarHandle.loadLoadFence();
+		return this.header.getInt(Storage.SEQ_OFFSET) == seq;
+	}
+
+	// 不自己打开锁文件，写进程可能就是本进程，关闭fd会释放它的租约(见WriterLease)
+	private boolean isWriterAlive() throws StorageException {
+		try {
+			return WriterLease.isHeld(MmapBackend
+					.getLeaseFileName(this.prefixes[0]));
+		} catch (IOException e) {
+			throw new StorageException("check writer lease failed: "
+					+ e.getMessage(), e);
+		}
+	}
+
+	private void reopenIndex() throws StorageException {
+		try {
+			openIndex();
+		} catch (IOException e) {
+			throw new StorageException("reopen index failed: "
+					+ e.getMessage(), e);
+		}
+	}
+
+	// 先映射头部取得各区大小再整体映射；与写进程扩容时的改名交错时重试
+	private void openIndex() throws StorageException, IOException {
+		File f = new File(this.prefixes[0] + ".idx");
+		for (int retry = 0;; retry++) {
+			if (!f.exists())
+				throw new StorageException(f.getPath() + " not exists.");
+			MmapFile headFile = new MmapFile(f, Index.HEADER_SIZE, true);
+			ByteBuffer bb = headFile.getBuffer();
+			int version = bb.getInt(0);
+			int hashNum = bb.getInt(4);
+			int conflictNum = bb.getInt(8);
+			int dataNum = bb.getInt(12);
+			int dataSize = bb.getInt(16);
+			headFile.close();
+			if (version == Index.HASH_VERSION) {
+				MmapFile file = new MmapFile(f, Index.calSize(hashNum,
+						conflictNum, dataNum), true);
+				bb = file.getBuffer();
+				if (bb.getInt(0) == version && bb.getInt(4) == hashNum
+						&& bb.getInt(8) == conflictNum
+						&& bb.getInt(12) == dataNum) {
+					// 旧索引已作废，不会再访问
+					if (this.indexFile != null)
+						this.indexFile.close();
+					this.indexFile = file;
+					this.indexBuffer = bb;
+					this.hashNum = hashNum;
+					this.conflictNum = conflictNum;
+					this.dataNum = dataNum;
+					this.dataSize = dataSize;
+					break;
+				}
+				file.close();
+			}
+			if (retry >= MAX_SPIN)
+				throw new StorageException("Index check failed: hashVersion="
+						+ version);
+			Thread.yield();
+		}
+
+		this.maxValueSize = Storage.calMaxValueSize(this.dataSize,
+				this.options);
+		this.dataNumOfOneFile = (this.options & Storage.OPTION_GROWABLE) != 0 ? Storage
+				.calSegmentDataNum(this.dataSize) : Storage
+				.calDataNumOfOneFile(this.dataNum, this.dataSize,
+						this.prefixes.length);
+		int fileNum = Storage.calDataFileNum(this.dataNum,
+				this.dataNumOfOneFile);
+		this.dataFiles = this.dataFiles == null ? new MmapFile[fileNum]
+				: Arrays.copyOf(this.dataFiles, fileNum);
+		this.dataBuffers = this.dataBuffers == null ? new ByteBuffer[fileNum]
+				: Arrays.copyOf(this.dataBuffers, fileNum);
+	}
+
+	// 数据文件在第一次读到时才映射，可增长模式下是写进程后来新建的段
+	private ByteBuffer dataBuffer(int pos) throws StorageException {
+		int idx = pos / this.dataNumOfOneFile;
+		if (this.dataBuffers[idx] == null) {
+			int num = (this.options & Storage.OPTION_GROWABLE) != 0 ? this.dataNumOfOneFile
+					: Math.min(this.dataNumOfOneFile, this.dataNum + 1 - idx
+							* this.dataNumOfOneFile);
+			try {
+				this.dataFiles[idx] = new MmapFile(new File(
+						Storage.getDataFileName(this.prefixes, idx)), num
+						* this.dataSize, true);
+				this.dataBuffers[idx] = this.dataFiles[idx].getBuffer();
+			} catch (IOException e) {
+				throw new StorageException("open data file failed: " + idx, e);
+			}
+		}
+		return this.dataBuffers[idx];
+	}
+
+	private void checkOpen() {
+		if (this.closed)
+			throw new IllegalStateException("storage reader closed: "
+					+ this.prefixes[0]);
+	}
+
+	// 与Storage.calChecksum相同: [key][长度][data]的CRC32C
+	private int calChecksum(long key, byte[] bytes) {
+		ByteBuffer bb = ByteBuffer.allocate(12);
+		bb.putLong(key).putInt(bytes.length);
+		this.crc.reset();
+		this.crc.update(bb.array());
+		this.crc.update(bytes);
+		return (int) this.crc.getValue();
+	}
+}
@@ -1,6 +1,21 @@
 package io.cherry.storage;
 
+import java.io.File;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
 public class Utils {
+	private static final VarHandle LONG_LE = MethodHandles
+			.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
 	private Utils() {
 	}
 
@@ -19,4 +34,100 @@ public class Utils {
 		return 0;
 	}
 
+	// 64位混淆(murmur3 fmix64)，用于分片等需要key均匀分布的场合
+	public static long mix64(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+
+	// 字节数组的64位hash，每次处理8个字节
+	public static long hash64(byte[] bytes, int offset, int len) {
+		long h = 0x9E3779B97F4A7C15L ^ (len * 0xC2B2AE3D27D4EB4FL);
+		int i = offset;
+		int end = offset + len;
+		for (; i + 8 <= end; i += 8) {
+			h ^= mix64((long) LONG_LE.get(bytes, i));
+			h = Long.rotateLeft(h, 27) * 0x9E3779B97F4A7C15L + 0x52DCE729L;
+		}
+
+		long tail = 0;
+		for (int shift = 0; i < end; i++, shift += 8) {
+			tail |= (bytes[i] & 0xFFL) << shift;
+		}
+		h ^= mix64(tail);
+		return mix64(h);
+	}
+
+	// 多目录模式下各目录的文件名前缀
+	public static String[] getStripePrefixes(String[] dirs, String name) {
+		if (dirs == null || dirs.length == 0 || name == null)
+			throw new IllegalArgumentException("argument err. dirs:" + dirs
+					+ ", name:" + name);
+
+		String[] prefixes = new String[dirs.length];
+		for (int i = 0; i < dirs.length; i++) {
+			prefixes[i] = dirs[i] + File.separator + name;
+		}
+		return prefixes;
+	}
+
+	// 并行执行并等待全部结束，抛出第一个失败任务的异常
+	// executor为null时每个任务单独起一个线程；只有一个任务时直接在当前线程执行
+	public static void invokeAll(ExecutorService executor,
+			List<? extends Callable<Void>> tasks) throws StorageException {
+		try {
+			if (tasks.size() == 1) {
+				tasks.get(0).call();
+				return;
+			}
+
+			List<Future<Void>> futures = new ArrayList<Future<Void>>(
+					tasks.size());
+			for (Callable<Void> task : tasks) {
+				if (executor != null) {
+					futures.add(executor.submit(task));
+				} else {
+					FutureTask<Void> future = new FutureTask<Void>(task);
+					Thread t = new Thread(future, "storage-worker-"
+							+ futures.size());
+					t.setDaemon(true);
+					t.start();
+					futures.add(future);
+				}
+			}
+
+			StorageException err = null;
+			for (Future<Void> future : futures) {
+				try {
+					future.get();
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					if (cause instanceof RuntimeException)
+						throw (RuntimeException) cause;
+					if (cause instanceof Error)
+						throw (Error) cause;
+					if (err == null)
+						err = cause instanceof StorageException ? (StorageException) cause
+								: new StorageException("task failed", cause);
+				}
+			}
+			if (err != null)
+				throw err;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new StorageException("interrupted", e);
+		} catch (StorageException e) {
+			throw e;
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new StorageException("task failed", e);
+		}
+	}
+
 }
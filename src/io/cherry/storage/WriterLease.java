@@ -0,0 +1,80 @@
+package io.cherry.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.HashMap;
+import java.util.Map;
+
+// 写租约: 对prefix.lock加排它锁，同一时刻只有一个进程能写
+// 文件锁(fcntl)属于进程，关闭该文件上的任意一个fd都会释放本进程的锁，所以本进程持有期间不能另外打开/关闭这个文件
+// 同一进程内按文件共享一个FileChannel并引用计数，所有对锁文件的操作都在本类的锁内进行
+final class WriterLease {
+	private static final Map<String, WriterLease> LEASES = new HashMap<String, WriterLease>();
+
+	private final String path;
+	private final FileChannel channel;
+	private int refNum;
+
+	private WriterLease(String path, FileChannel channel) {
+		this.path = path;
+		this.channel = channel;
+	}
+
+	// 本进程已持有时只增加引用计数
+	static synchronized WriterLease acquire(String fileName)
+			throws IOException {
+		String path = new File(fileName).getCanonicalPath();
+		WriterLease lease = LEASES.get(path);
+		if (lease == null) {
+			FileChannel channel = new RandomAccessFile(path, "rw")
+					.getChannel();
+			if (channel.tryLock() == null) {
+				channel.close();
+				throw new IOException(
+						"storage is being written by another process: "
+								+ fileName);
+			}
+			lease = new WriterLease(path, channel);
+			LEASES.put(path, lease);
+		}
+		lease.refNum++;
+		return lease;
+	}
+
+	// 最后一个引用释放时关闭文件，锁随之释放
+	void release() throws IOException {
+		synchronized (WriterLease.class) {
+			if (this.refNum <= 0)
+				return;
+			if (--this.refNum > 0)
+				return;
+
+			LEASES.remove(this.path);
+			this.channel.close();
+		}
+	}
+
+	// 是否有进程(包括本进程)持有写租约；不存在锁文件时返回false
+	static synchronized boolean isHeld(String fileName) throws IOException {
+		File f = new File(fileName);
+		if (!f.exists())
+			return false;
+		if (LEASES.containsKey(f.getCanonicalPath()))
+			return true;
+
+		// 本进程没有持有，打开/关闭临时的fd不会影响锁
+		RandomAccessFile file = new RandomAccessFile(f, "r");
+		try {
+			FileLock lock = file.getChannel().tryLock(0, Long.MAX_VALUE, true);
+			if (lock == null)
+				return true;
+			lock.release();
+			return false;
+		} finally {
+			file.close();
+		}
+	}
+}
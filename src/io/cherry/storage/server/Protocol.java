@@ -0,0 +1,29 @@
+package io.cherry.storage.server;
+
+// 二进制协议，所有整数均为大端
+// 请求: [int 帧长(不含自身)][byte op][int reqId][body]
+// GET/FREE body: [long key]
+// PUT body: [long key][value...]
+// MULTI_GET body: [int n][long key]*n
+// 响应: [int 帧长(不含自身)][byte status][int reqId][body]
+// GET成功 body: [value...]
+// MULTI_GET成功 body: ([int len, -1表示不存在][value...])*n
+// ERROR body: UTF-8错误信息
+// 同一连接上可连续发送多个请求(pipeline)，响应按请求顺序返回
+public final class Protocol {
+	public static final byte OP_GET = 1;
+	public static final byte OP_PUT = 2;
+	public static final byte OP_FREE = 3;
+	public static final byte OP_MULTI_GET = 4;
+
+	public static final byte STATUS_OK = 0;
+	public static final byte STATUS_NOT_FOUND = 1;
+	public static final byte STATUS_ERROR = 2;
+
+	// op/status + reqId
+	public static final int HEADER_SIZE = 5;
+	public static final int MAX_FRAME_SIZE = 64 * 1024 * 1024;
+
+	private Protocol() {
+	}
+}
@@ -0,0 +1,243 @@
+package io.cherry.storage.server;
+
+import io.cherry.storage.StorageException;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+// StorageServer的阻塞客户端，非线程安全
+// 同步接口: get/put/free/multiGet
+// pipeline接口: 先多次sendXxx，再flush，最后按发送顺序readResponse
+public class StorageClient {
+	public static class Response {
+		public byte status;
+		public int reqId;
+		public byte[] body;
+	}
+
+	private final SocketChannel channel;
+	private ByteBuffer out = ByteBuffer.allocateDirect(64 * 1024);
+	private ByteBuffer in = ByteBuffer.allocateDirect(64 * 1024);
+	private int nextReqId;
+
+	public StorageClient(String host, int port) throws IOException {
+		this.channel = SocketChannel.open(new InetSocketAddress(host, port));
+		this.channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+		this.in.flip();
+	}
+
+	public int sendGet(long key) throws IOException {
+		int reqId = writeHeader(Protocol.OP_GET, 8);
+		this.out.putLong(key);
+		return reqId;
+	}
+
+	public int sendPut(long key, byte[] value) throws IOException {
+		int reqId = writeHeader(Protocol.OP_PUT, 8 + value.length);
+		this.out.putLong(key);
+		this.out.put(value);
+		return reqId;
+	}
+
+	public int sendFree(long key) throws IOException {
+		int reqId = writeHeader(Protocol.OP_FREE, 8);
+		this.out.putLong(key);
+		return reqId;
+	}
+
+	public int sendMultiGet(long[] keys) throws IOException {
+		int reqId = writeHeader(Protocol.OP_MULTI_GET, 4 + 8 * keys.length);
+		this.out.putInt(keys.length);
+		for (int i = 0; i < keys.length; i++) {
+			this.out.putLong(keys[i]);
+		}
+		return reqId;
+	}
+
+	public void flush() throws IOException {
+		this.out.flip();
+		while (this.out.hasRemaining()) {
+			this.channel.write(this.out);
+		}
+		this.out.clear();
+	}
+
+	public Response readResponse() throws IOException {
+		fill(4);
+		int frameLen = this.in.getInt();
+		if (frameLen < Protocol.HEADER_SIZE
+				|| frameLen > Protocol.MAX_FRAME_SIZE)
+			throw new IOException("bad frame length: " + frameLen);
+
+		fill(frameLen);
+		Response resp = new Response();
+		resp.status = this.in.get();
+		resp.reqId = this.in.getInt();
+		resp.body = new byte[frameLen - Protocol.HEADER_SIZE];
+		this.in.get(resp.body);
+		return resp;
+	}
+
+	public byte[] get(long key) throws IOException, StorageException {
+		sendGet(key);
+		flush();
+		Response resp = check(readResponse());
+		return resp.status == Protocol.STATUS_NOT_FOUND ? null : resp.body;
+	}
+
+	public void put(long key, byte[] value) throws IOException,
+			StorageException {
+		sendPut(key, value);
+		flush();
+		check(readResponse());
+	}
+
+	public void free(long key) throws IOException, StorageException {
+		sendFree(key);
+		flush();
+		check(readResponse());
+	}
+
+	public byte[][] multiGet(long[] keys) throws IOException,
+			StorageException {
+		sendMultiGet(keys);
+		flush();
+		return decodeMultiGet(check(readResponse()), keys.length);
+	}
+
+	public static byte[][] decodeMultiGet(Response resp, int num) {
+		byte[][] values = new byte[num][];
+		ByteBuffer bb = ByteBuffer.wrap(resp.body);
+		for (int i = 0; i < num; i++) {
+			int len = bb.getInt();
+			if (len < 0)
+				continue;
+			values[i] = new byte[len];
+			bb.get(values[i]);
+		}
+		return values;
+	}
+
+	public void close() throws IOException {
+		this.channel.close();
+	}
+
+	private Response check(Response resp) throws StorageException {
+		if (resp.status == Protocol.STATUS_ERROR)
+			throw new StorageException("server error: "
+					+ new String(resp.body, StandardCharsets.UTF_8));
+		return resp;
+	}
+
+	private int writeHeader(byte op, int bodyLen) throws IOException {
+		int frameSize = 4 + Protocol.HEADER_SIZE + bodyLen;
+		if (this.out.remaining() < frameSize) {
+			flush();
+			if (this.out.capacity() < frameSize)
+				this.out = ByteBuffer.allocateDirect(frameSize);
+		}
+
+		int reqId = ++this.nextReqId;
+		this.out.putInt(Protocol.HEADER_SIZE + bodyLen);
+		this.out.put(op);
+		this.out.putInt(reqId);
+		return reqId;
+	}
+
+	// 保证in中至少有size字节可读
+	private void fill(int size) throws IOException {
+		if (this.in.remaining() >= size)
+			return;
+
+		if (this.in.capacity() < size) {
+			ByteBuffer bigger = ByteBuffer.allocateDirect(size);
+			bigger.put(this.in);
+			this.in = bigger;
+		} else {
+			this.in.compact();
+		}
+		while (this.in.position() < size) {
+			if (this.channel.read(this.in) < 0)
+				throw new EOFException("connection closed");
+		}
+		this.in.flip();
+	}
+
+	// 压测: StorageClient host port threadNum depth seconds keyRange valueSize getRate(0-100)
+	public static void main(String[] args) throws Exception {
+		if (args.length < 8) {
+			System.out
+					.println("usage: StorageClient host port threadNum depth seconds keyRange valueSize getRate");
+			return;
+		}
+
+		final String host = args[0];
+		final int port = Integer.parseInt(args[1]);
+		int threadNum = Integer.parseInt(args[2]);
+		final int depth = Integer.parseInt(args[3]);
+		int seconds = Integer.parseInt(args[4]);
+		final int keyRange = Integer.parseInt(args[5]);
+		final int valueSize = Integer.parseInt(args[6]);
+		final int getRate = Integer.parseInt(args[7]);
+
+		final AtomicLong ops = new AtomicLong();
+		final AtomicLong errors = new AtomicLong();
+		final long deadline = System.currentTimeMillis() + seconds * 1000L;
+		Thread[] threads = new Thread[threadNum];
+		for (int t = 0; t < threadNum; t++) {
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					Random random = new Random();
+					byte[] value = new byte[valueSize];
+					try {
+						StorageClient client = new StorageClient(host, port);
+						while (System.currentTimeMillis() < deadline) {
+							for (int i = 0; i < depth; i++) {
+								long key = 1 + random.nextInt(keyRange);
+								if (random.nextInt(100) < getRate)
+									client.sendGet(key);
+								else
+									client.sendPut(key, value);
+							}
+							client.flush();
+							for (int i = 0; i < depth; i++) {
+								if (client.readResponse().status == Protocol.STATUS_ERROR)
+									errors.incrementAndGet();
+							}
+							ops.addAndGet(depth);
+						}
+						client.close();
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+			};
+			threads[t].start();
+		}
+
+		long startTime = System.currentTimeMillis();
+		long last = 0;
+		for (int i = 0; i < seconds; i++) {
+			Thread.sleep(1000);
+			long now = ops.get();
+			System.out.println("ops:" + (now - last) + "/s, errors:"
+					+ errors.get());
+			last = now;
+		}
+		for (int t = 0; t < threadNum; t++) {
+			threads[t].join();
+		}
+		long endTime = System.currentTimeMillis();
+		System.out.println("total " + ops.get() + ", use "
+				+ (endTime - startTime) + "ms, "
+				+ (ops.get() * 1000 / (endTime - startTime)) + "/s");
+	}
+}
@@ -0,0 +1,410 @@
+package io.cherry.storage.server;
+
+import io.cherry.storage.ShardedStorage;
+import io.cherry.storage.Storage;
+import io.cherry.storage.StorageException;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// 基于NIO的存储服务，协议见Protocol
+// 一个accept线程，多个事件循环线程(默认每核一个)，连接按轮询分配给事件循环
+// 每个连接一次读入多个请求依次处理(pipeline)，响应先攒在输出缓冲区，一批处理完再统一写出
+// 大value直接从mmap数据区写到socket，不经过中间拷贝
+public class StorageServer {
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final int ZERO_COPY_THRESHOLD = 4096;
+	// 每个连接未写出的响应上限
+	private static final long MAX_OUT_SIZE = 2L * Protocol.MAX_FRAME_SIZE;
+	// 未写出的响应超过该水位时暂停处理请求并停止读socket，写出到水位以下再继续
+	private static final int OUT_HIGH_WATER = 4 * 1024 * 1024;
+
+	private final ShardedStorage storage;
+	private final int port;
+	private final EventLoop[] loops;
+	private ServerSocketChannel serverChannel;
+	private Thread acceptThread;
+	private volatile boolean running;
+
+	// loopNum <= 0时取cpu核数
+	public StorageServer(ShardedStorage storage, int port, int loopNum) {
+		if (loopNum <= 0)
+			loopNum = Runtime.getRuntime().availableProcessors();
+		this.storage = storage;
+		this.port = port;
+		this.loops = new EventLoop[loopNum];
+	}
+
+	public void start() throws IOException {
+		this.running = true;
+		for (int i = 0; i < this.loops.length; i++) {
+			this.loops[i] = new EventLoop(i);
+			this.loops[i].thread.start();
+		}
+
+		this.serverChannel = ServerSocketChannel.open();
+		this.serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+		this.serverChannel.bind(new InetSocketAddress(this.port), 1024);
+		this.acceptThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				int next = 0;
+				while (running) {
+					try {
+						SocketChannel channel = serverChannel.accept();
+						loops[next++ % loops.length].register(channel);
+					} catch (IOException e) {
+						if (running)
+							System.out.println("accept failed: " + e);
+					}
+				}
+			}
+		}, "storage-server-accept");
+		this.acceptThread.start();
+		System.out.println("storage server started at " + getPort()
+				+ ", loops:" + this.loops.length);
+	}
+
+	public int getPort() {
+		return this.serverChannel == null ? this.port : this.serverChannel
+				.socket().getLocalPort();
+	}
+
+	public void stop() {
+		this.running = false;
+		try {
+			this.serverChannel.close();
+		} catch (IOException e) {
+		}
+		for (int i = 0; i < this.loops.length; i++) {
+			this.loops[i].selector.wakeup();
+		}
+	}
+
+	private class EventLoop implements Runnable {
+		private final Selector selector;
+		private final ConcurrentLinkedQueue<SocketChannel> newChannels = new ConcurrentLinkedQueue<SocketChannel>();
+		private final Thread thread;
+
+		EventLoop(int idx) throws IOException {
+			this.selector = Selector.open();
+			this.thread = new Thread(this, "storage-server-loop-" + idx);
+		}
+
+		void register(SocketChannel channel) {
+			this.newChannels.add(channel);
+			this.selector.wakeup();
+		}
+
+		@Override
+		public void run() {
+			while (running) {
+				try {
+					this.selector.select();
+					SocketChannel channel;
+					while ((channel = this.newChannels.poll()) != null) {
+						channel.configureBlocking(false);
+						channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+						SelectionKey key = channel.register(this.selector,
+								SelectionKey.OP_READ);
+						key.attach(new Connection(channel, key));
+					}
+
+					Iterator<SelectionKey> it = this.selector.selectedKeys()
+							.iterator();
+					while (it.hasNext()) {
+						SelectionKey key = it.next();
+						it.remove();
+						Connection conn = (Connection) key.attachment();
+						try {
+							if (key.isValid() && key.isReadable())
+								conn.read();
+							if (key.isValid() && key.isWritable())
+								conn.flush();
+						} catch (IOException e) {
+							conn.close();
+						} catch (RuntimeException e) {
+							// 例如CancelledKeyException，只关闭这个连接，不影响循环线程
+							System.out.println("connection failed: " + e);
+							conn.close();
+						}
+					}
+				} catch (IOException e) {
+					System.out.println("event loop failed: " + e);
+				} catch (RuntimeException e) {
+					System.out.println("event loop failed: " + e);
+				}
+			}
+
+			for (SelectionKey key : this.selector.keys()) {
+				((Connection) key.attachment()).close();
+			}
+			try {
+				this.selector.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	private class Connection {
+		private final SocketChannel channel;
+		private final SelectionKey key;
+		private ByteBuffer in = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		// 待写出的响应，写模式
+		private ByteBuffer out = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		private final ByteBuffer[] gather = new ByteBuffer[2];
+		private boolean paused; // 输出积压超过OUT_HIGH_WATER，不读socket
+
+		Connection(SocketChannel channel, SelectionKey key) {
+			this.channel = channel;
+			this.key = key;
+		}
+
+		void read() throws IOException {
+			int n = this.channel.read(this.in);
+			if (n < 0) {
+				close();
+				return;
+			}
+
+			process();
+		}
+
+		// 处理in中完整的帧，输出积压超过OUT_HIGH_WATER时暂停，剩下的帧等写出后再处理
+		void process() throws IOException {
+			this.in.flip();
+			while (this.in.remaining() >= 4) {
+				if (this.out.position() >= OUT_HIGH_WATER) {
+					this.paused = true;
+					break;
+				}
+				int pos = this.in.position();
+				int frameLen = this.in.getInt(pos);
+				if (frameLen < Protocol.HEADER_SIZE
+						|| frameLen > Protocol.MAX_FRAME_SIZE) {
+					close();
+					return;
+				}
+				if (this.in.remaining() < 4 + frameLen)
+					break;
+
+				handle(pos + 4, frameLen);
+				this.in.position(pos + 4 + frameLen);
+			}
+
+			this.in.compact();
+			if (!this.paused && !this.in.hasRemaining()) {
+				// 缓冲区满了帧还不完整: 按实际收到的数据翻倍扩容，最多到帧的大小，不按长度前缀一次申请
+				int frameSize = this.in.getInt(0) + 4;
+				ByteBuffer bigger = ByteBuffer.allocateDirect((int) Math.min(
+						frameSize, 2L * this.in.capacity()));
+				this.in.flip();
+				bigger.put(this.in);
+				this.in = bigger;
+			} else if (this.in.position() == 0
+					&& this.in.capacity() > BUFFER_SIZE) {
+				// 大帧处理完后缩回
+				this.in = ByteBuffer.allocateDirect(BUFFER_SIZE);
+			}
+			flush();
+		}
+
+		void flush() throws IOException {
+			if (this.out.position() > 0) {
+				this.out.flip();
+				this.channel.write(this.out);
+				this.out.compact();
+			}
+
+			if (this.paused && this.out.position() < OUT_HIGH_WATER) {
+				this.paused = false;
+				process();
+				return;
+			}
+			int ops = this.paused ? 0 : SelectionKey.OP_READ;
+			if (this.out.position() > 0)
+				ops |= SelectionKey.OP_WRITE;
+			this.key.interestOps(ops);
+		}
+
+		void close() {
+			this.key.cancel();
+			try {
+				this.channel.close();
+			} catch (IOException e) {
+			}
+		}
+
+		private void handle(int offset, int frameLen) throws IOException {
+			byte op = this.in.get(offset);
+			int reqId = this.in.getInt(offset + 1);
+			int bodyOffset = offset + Protocol.HEADER_SIZE;
+			int bodyLen = frameLen - Protocol.HEADER_SIZE;
+			try {
+				switch (op) {
+				case Protocol.OP_GET:
+					checkBody(bodyLen, 8);
+					handleGet(reqId, this.in.getLong(bodyOffset));
+					break;
+				case Protocol.OP_PUT:
+					checkBody(bodyLen, 8);
+					byte[] value = new byte[bodyLen - 8];
+					ByteBuffer tmpBuffer = this.in.duplicate();
+					tmpBuffer.position(bodyOffset + 8);
+					tmpBuffer.get(value);
+					storage.put(this.in.getLong(bodyOffset), value);
+					writeHeader(Protocol.STATUS_OK, reqId, 0);
+					break;
+				case Protocol.OP_FREE:
+					checkBody(bodyLen, 8);
+					storage.free(this.in.getLong(bodyOffset));
+					writeHeader(Protocol.STATUS_OK, reqId, 0);
+					break;
+				case Protocol.OP_MULTI_GET:
+					checkBody(bodyLen, 4);
+					int num = this.in.getInt(bodyOffset);
+					if (num < 0 || num > (bodyLen - 4) / 8)
+						throw new IllegalArgumentException("argument err. num:"
+								+ num + ", bodyLen:" + bodyLen);
+					handleMultiGet(reqId, bodyOffset + 4, num);
+					break;
+				default:
+					writeError(reqId, "unknown op " + op);
+				}
+			} catch (StorageException e) {
+				writeError(reqId, e.getMessage());
+			} catch (RuntimeException e) {
+				writeError(reqId, e.toString());
+			}
+		}
+
+		private void handleGet(int reqId, long key) throws IOException {
+			Storage shard = storage.getShard(storage.shardOf(key));
+			synchronized (shard) {
+				ByteBuffer bb = shard.getByteBuffer(key);
+				if (bb == null) {
+					writeHeader(Protocol.STATUS_NOT_FOUND, reqId, 0);
+					return;
+				}
+
+				writeHeader(Protocol.STATUS_OK, reqId, bb.remaining());
+				if (bb.remaining() < ZERO_COPY_THRESHOLD) {
+					ensureOut(bb.remaining());
+					this.out.put(bb);
+					return;
+				}
+
+				// 持锁期间直接从数据区写socket，写不完的部分再拷贝到输出缓冲区
+				this.out.flip();
+				this.gather[0] = this.out;
+				this.gather[1] = bb;
+				while (bb.hasRemaining()
+						&& this.channel.write(this.gather) > 0) {
+				}
+				this.gather[0] = null;
+				this.gather[1] = null;
+				this.out.compact();
+				if (bb.hasRemaining()) {
+					ensureOut(bb.remaining());
+					this.out.put(bb);
+				}
+			}
+		}
+
+		// 响应超过MAX_FRAME_SIZE时丢弃已写的部分，改回错误
+		private void handleMultiGet(int reqId, int keyOffset, int num) {
+			ensureOut(4 + Protocol.HEADER_SIZE + 4 * num);
+			int start = this.out.position();
+			writeHeader(Protocol.STATUS_OK, reqId, 0);
+			for (int i = 0; i < num; i++) {
+				long key = this.in.getLong(keyOffset + i * 8);
+				Storage shard = storage.getShard(storage.shardOf(key));
+				synchronized (shard) {
+					ByteBuffer bb = shard.getByteBuffer(key);
+					if (bb == null) {
+						ensureOut(4);
+						this.out.putInt(-1);
+					} else {
+						if ((long) this.out.position() - start + 4
+								+ bb.remaining() > Protocol.MAX_FRAME_SIZE) {
+							this.out.position(start);
+							throw new IllegalArgumentException(
+									"response too large, num:" + num);
+						}
+						ensureOut(4 + bb.remaining());
+						this.out.putInt(bb.remaining());
+						this.out.put(bb);
+					}
+				}
+			}
+			this.out.putInt(start, this.out.position() - start - 4);
+		}
+
+		private void checkBody(int bodyLen, int need) {
+			if (bodyLen < need)
+				throw new IllegalArgumentException("body too short: "
+						+ bodyLen);
+		}
+
+		private void writeHeader(byte status, int reqId, int bodyLen) {
+			ensureOut(4 + Protocol.HEADER_SIZE);
+			this.out.putInt(Protocol.HEADER_SIZE + bodyLen);
+			this.out.put(status);
+			this.out.putInt(reqId);
+		}
+
+		private void writeError(int reqId, String msg) {
+			byte[] bytes = String.valueOf(msg).getBytes(StandardCharsets.UTF_8);
+			writeHeader(Protocol.STATUS_ERROR, reqId, bytes.length);
+			ensureOut(bytes.length);
+			this.out.put(bytes);
+		}
+
+		// 未写出的响应最多MAX_OUT_SIZE，超过时抛出异常而不是无限扩大
+		private void ensureOut(int size) {
+			if (this.out.remaining() >= size)
+				return;
+
+			long need = (long) this.out.position() + size;
+			if (size < 0 || need > MAX_OUT_SIZE)
+				throw new IllegalStateException("output buffer overflow: "
+						+ need);
+			long capacity = this.out.capacity() * 2L;
+			while (capacity < need) {
+				capacity *= 2;
+			}
+			ByteBuffer bigger = ByteBuffer.allocateDirect((int) Math.min(
+					capacity, MAX_OUT_SIZE));
+			this.out.flip();
+			bigger.put(this.out);
+			this.out = bigger;
+		}
+	}
+
+	// StorageServer fileName shardNum dataNum dataSize port [loopNum]
+	public static void main(String[] args) throws StorageException,
+			IOException {
+		if (args.length < 5) {
+			System.out
+					.println("usage: StorageServer fileName shardNum dataNum dataSize port [loopNum]");
+			return;
+		}
+
+		ShardedStorage storage = new ShardedStorage(args[0],
+				Integer.parseInt(args[1]), Integer.parseInt(args[2]),
+				Integer.parseInt(args[3]));
+		StorageServer server = new StorageServer(storage,
+				Integer.parseInt(args[4]), args.length > 5 ? Integer
+						.parseInt(args[5]) : 0);
+		server.start();
+	}
+}